@@ -0,0 +1,308 @@
+package us.kbase.common.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Clock;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import us.kbase.auth.AuthException;
+import us.kbase.auth.AuthToken;
+import us.kbase.common.service.JsonServerServlet.AuthenticationHandler;
+
+/** An {@link AuthenticationHandler} that caches the results of another handler.
+ *
+ * Valid tokens are cached for the positive TTL, and tokens the wrapped handler rejects with an
+ * {@link AuthException} are cached for the negative TTL. Other errors, such as
+ * {@link IOException}s, are not cached. When the cache is full, the least recently used token
+ * is evicted.
+ *
+ * Tokens are keyed by their SHA-256 hash. Concurrent lookups of the same uncached token are
+ * coalesced into a single call to the wrapped handler.
+ */
+public class CachingAuthenticationHandler implements AuthenticationHandler {
+
+	/** The configuration key for the maximum number of tokens to cache. The cache is disabled
+	 * if this is absent or 0.
+	 */
+	public static final String CONFIG_MAX_SIZE = "auth-cache-max-size";
+	/** The configuration key for the time in milliseconds to cache valid tokens. */
+	public static final String CONFIG_TTL_MS = "auth-cache-ttl-ms";
+	/** The configuration key for the time in milliseconds to cache invalid tokens. */
+	public static final String CONFIG_NEGATIVE_TTL_MS = "auth-cache-negative-ttl-ms";
+	/** The default time to cache valid tokens, 5 minutes. */
+	public static final long DEFAULT_TTL_MS = 5 * 60 * 1000;
+	/** The default time to cache invalid tokens, 10 seconds. */
+	public static final long DEFAULT_NEGATIVE_TTL_MS = 10 * 1000;
+
+	private final AuthenticationHandler handler;
+	private final long ttlMS;
+	private final long negativeTTLMS;
+	private final Clock clock;
+	private final Map<String, CacheEntry> cache;
+	private final Map<String, FutureTask<CacheEntry>> inFlight = new ConcurrentHashMap<>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+
+	private static class CacheEntry {
+		private final AuthToken token;
+		private final AuthException error;
+		private final long expires;
+
+		private CacheEntry(final AuthToken token, final AuthException error, final long expires) {
+			this.token = token;
+			this.error = error;
+			this.expires = expires;
+		}
+	}
+
+	/** Create the handler.
+	 * @param handler the handler to wrap.
+	 * @param maxSize the maximum number of tokens to cache.
+	 * @param ttlMS the time in milliseconds to cache valid tokens.
+	 * @param negativeTTLMS the time in milliseconds to cache invalid tokens. 0 disables caching
+	 * invalid tokens.
+	 */
+	public CachingAuthenticationHandler(
+			final AuthenticationHandler handler,
+			final int maxSize,
+			final long ttlMS,
+			final long negativeTTLMS) {
+		this(handler, maxSize, ttlMS, negativeTTLMS, Clock.systemUTC());
+	}
+
+	/** Create the handler with a custom clock. Intended for testing.
+	 * @param handler the handler to wrap.
+	 * @param maxSize the maximum number of tokens to cache.
+	 * @param ttlMS the time in milliseconds to cache valid tokens.
+	 * @param negativeTTLMS the time in milliseconds to cache invalid tokens. 0 disables caching
+	 * invalid tokens.
+	 * @param clock the clock used to determine when cache entries expire.
+	 */
+	public CachingAuthenticationHandler(
+			final AuthenticationHandler handler,
+			final int maxSize,
+			final long ttlMS,
+			final long negativeTTLMS,
+			final Clock clock) {
+		if (handler == null) {
+			throw new NullPointerException("handler");
+		}
+		if (clock == null) {
+			throw new NullPointerException("clock");
+		}
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("maxSize must be at least 1");
+		}
+		if (ttlMS < 1) {
+			throw new IllegalArgumentException("ttlMS must be at least 1");
+		}
+		if (negativeTTLMS < 0) {
+			throw new IllegalArgumentException("negativeTTLMS must be at least 0");
+		}
+		this.handler = handler;
+		this.ttlMS = ttlMS;
+		this.negativeTTLMS = negativeTTLMS;
+		this.clock = clock;
+		this.cache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, CacheEntry> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/** Wrap a handler in a caching handler if the server configuration enables caching. See
+	 * the CONFIG_* keys in this class.
+	 * @param handler the handler to wrap.
+	 * @param config the server configuration.
+	 * @return the caching handler, or the original handler if caching is not enabled.
+	 * @throws IllegalArgumentException if a value in the configuration is not a valid integer.
+	 */
+	public static AuthenticationHandler fromConfig(
+			final AuthenticationHandler handler,
+			final Map<String, String> config) {
+		final long maxSize = getLong(config, CONFIG_MAX_SIZE, 0);
+		if (maxSize < 1) {
+			return handler;
+		}
+		return new CachingAuthenticationHandler(handler, (int) Math.min(Integer.MAX_VALUE, maxSize),
+				getLong(config, CONFIG_TTL_MS, DEFAULT_TTL_MS),
+				getLong(config, CONFIG_NEGATIVE_TTL_MS, DEFAULT_NEGATIVE_TTL_MS));
+	}
+
+	private static long getLong(final Map<String, String> config, final String key, final long def) {
+		final String value = config.get(key);
+		if (value == null || value.trim().isEmpty()) {
+			return def;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(String.format(
+					"Configuration key %s must be an integer, got %s", key, value));
+		}
+	}
+
+	@Override
+	public AuthToken validateToken(final String token) throws IOException, AuthException {
+		if (token == null || token.isEmpty()) {
+			return handler.validateToken(token);
+		}
+		final String key = hash(token);
+		final CacheEntry cached = getCached(key);
+		if (cached != null) {
+			hits.incrementAndGet();
+			return unwrap(cached);
+		}
+		final FutureTask<CacheEntry> lookup = new FutureTask<>(new Callable<CacheEntry>() {
+
+			@Override
+			public CacheEntry call() throws Exception {
+				return load(key, token);
+			}
+		});
+		final FutureTask<CacheEntry> existing = inFlight.putIfAbsent(key, lookup);
+		if (existing != null) {
+			coalesced.incrementAndGet();
+			return unwrap(get(existing));
+		}
+		misses.incrementAndGet();
+		try {
+			lookup.run();
+		} finally {
+			inFlight.remove(key);
+		}
+		return unwrap(get(lookup));
+	}
+
+	private CacheEntry load(final String key, final String token)
+			throws IOException, AuthException {
+		CacheEntry entry;
+		try {
+			entry = new CacheEntry(handler.validateToken(token), null, clock.millis() + ttlMS);
+		} catch (AuthException e) {
+			entry = new CacheEntry(null, e, clock.millis() + negativeTTLMS);
+			if (negativeTTLMS < 1) {
+				return entry;
+			}
+		}
+		synchronized (cache) {
+			cache.put(key, entry);
+		}
+		return entry;
+	}
+
+	private CacheEntry getCached(final String key) {
+		synchronized (cache) {
+			final CacheEntry entry = cache.get(key);
+			if (entry == null) {
+				return null;
+			}
+			if (clock.millis() >= entry.expires) {
+				cache.remove(key);
+				return null;
+			}
+			return entry;
+		}
+	}
+
+	private static CacheEntry get(final FutureTask<CacheEntry> lookup)
+			throws IOException, AuthException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return lookup.get();
+				} catch (InterruptedException e) {
+					// the lookup is running in another thread and will finish regardless
+					interrupted = true;
+				}
+			}
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static AuthToken unwrap(final CacheEntry entry) throws AuthException {
+		if (entry.error != null) {
+			throw entry.error;
+		}
+		return entry.token;
+	}
+
+	private static String hash(final String token) {
+		try {
+			final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return Base64.getEncoder().encodeToString(
+					digest.digest(token.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("This should be impossible", e);
+		}
+	}
+
+	/** Get the number of tokens currently cached, including expired tokens that have not yet
+	 * been removed.
+	 * @return the cache size.
+	 */
+	public int getSize() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	/** Get the number of lookups that were served from the cache.
+	 * @return the number of cache hits.
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/** Get the number of lookups that required a call to the wrapped handler.
+	 * @return the number of cache misses.
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/** Get the number of lookups that waited for a concurrent lookup of the same token rather
+	 * than calling the wrapped handler.
+	 * @return the number of coalesced lookups.
+	 */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	/** Remove all tokens from the cache. */
+	public void clear() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+}
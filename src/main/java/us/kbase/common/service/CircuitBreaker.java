@@ -0,0 +1,177 @@
+package us.kbase.common.service;
+
+import java.net.URL;
+import java.time.Clock;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Stops {@link JsonClientCaller} calls to a service URL after repeated failures, so that
+ * callers fail fast rather than waiting on a service that is down.
+ *
+ * Each URL has its own circuit. A circuit opens when the number of consecutive failed calls to
+ * the URL reaches the failure threshold, and calls to the URL then fail immediately with a
+ * {@link CircuitOpenException}. Once the circuit has been open for the open time, it is half
+ * open and a single probe call is allowed through. If the probe succeeds the circuit closes,
+ * and if it fails the circuit opens again.
+ *
+ * A call fails if it throws an {@link java.io.IOException}. A call that receives a response
+ * from the server, including an error response, succeeds.
+ *
+ * A circuit breaker may be shared between clients.
+ */
+public class CircuitBreaker {
+
+	/** The state of a circuit. */
+	public enum State {
+		/** Calls are allowed. */
+		CLOSED,
+		/** Calls are rejected. */
+		OPEN,
+		/** A single probe call is allowed. */
+		HALF_OPEN
+	}
+
+	private final int failureThreshold;
+	private final long openMS;
+	private final Clock clock;
+	private final Map<String, Circuit> circuits = new ConcurrentHashMap<>();
+	private final AtomicLong opened = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	private static class Circuit {
+		private State state = State.CLOSED;
+		private int failures = 0;
+		private long openedAt = 0;
+		private boolean probing = false;
+	}
+
+	/** Create the circuit breaker.
+	 * @param failureThreshold the number of consecutive failed calls that opens a circuit.
+	 * @param openMS the time in milliseconds a circuit stays open before a probe call is
+	 * allowed.
+	 */
+	public CircuitBreaker(final int failureThreshold, final long openMS) {
+		this(failureThreshold, openMS, Clock.systemUTC());
+	}
+
+	/** Create the circuit breaker with a custom clock. Intended for testing.
+	 * @param failureThreshold the number of consecutive failed calls that opens a circuit.
+	 * @param openMS the time in milliseconds a circuit stays open before a probe call is
+	 * allowed.
+	 * @param clock the clock used to determine when a circuit is half open.
+	 */
+	public CircuitBreaker(final int failureThreshold, final long openMS, final Clock clock) {
+		if (failureThreshold < 1) {
+			throw new IllegalArgumentException("failureThreshold must be at least 1");
+		}
+		if (openMS < 0) {
+			throw new IllegalArgumentException("openMS must be at least 0");
+		}
+		if (clock == null) {
+			throw new NullPointerException("clock");
+		}
+		this.failureThreshold = failureThreshold;
+		this.openMS = openMS;
+		this.clock = clock;
+	}
+
+	private Circuit getCircuit(final URL url) {
+		final String key = url.toString();
+		Circuit c = circuits.get(key);
+		if (c == null) {
+			final Circuit newCircuit = new Circuit();
+			c = circuits.putIfAbsent(key, newCircuit);
+			if (c == null) {
+				c = newCircuit;
+			}
+		}
+		return c;
+	}
+
+	/* Returns true if a call to the URL may proceed. If so, the result of the call must be
+	 * recorded.
+	 */
+	boolean allowRequest(final URL url) {
+		final Circuit c = getCircuit(url);
+		synchronized (c) {
+			if (c.state == State.OPEN && clock.millis() - c.openedAt >= openMS) {
+				c.state = State.HALF_OPEN;
+				c.probing = false;
+			}
+			if (c.state == State.CLOSED) {
+				return true;
+			}
+			if (c.state == State.HALF_OPEN && !c.probing) {
+				c.probing = true;
+				return true;
+			}
+		}
+		rejected.incrementAndGet();
+		return false;
+	}
+
+	/* Records a call that received a response. */
+	void recordSuccess(final URL url) {
+		final Circuit c = getCircuit(url);
+		synchronized (c) {
+			c.state = State.CLOSED;
+			c.failures = 0;
+			c.probing = false;
+		}
+	}
+
+	/* Records a call that failed to get a response. */
+	void recordFailure(final URL url) {
+		final Circuit c = getCircuit(url);
+		synchronized (c) {
+			c.failures++;
+			c.probing = false;
+			if (c.state == State.HALF_OPEN ||
+					(c.state == State.CLOSED && c.failures >= failureThreshold)) {
+				c.state = State.OPEN;
+				c.openedAt = clock.millis();
+				opened.incrementAndGet();
+			}
+		}
+	}
+
+	/* Records a call that ended without contacting the service, e.g. because it was
+	 * cancelled or missing credentials.
+	 */
+	void recordIgnored(final URL url) {
+		final Circuit c = getCircuit(url);
+		synchronized (c) {
+			c.probing = false;
+		}
+	}
+
+	/** Get the state of the circuit for a URL. An open circuit is reported as open until a
+	 * call is attempted after the open time has passed.
+	 * @param url the service URL.
+	 * @return the state of the circuit.
+	 */
+	public State getState(final URL url) {
+		final Circuit c = circuits.get(url.toString());
+		if (c == null) {
+			return State.CLOSED;
+		}
+		synchronized (c) {
+			return c.state;
+		}
+	}
+
+	/** Get the number of times a circuit has opened.
+	 * @return the number of times a circuit opened.
+	 */
+	public long getOpenedCount() {
+		return opened.get();
+	}
+
+	/** Get the number of calls rejected because a circuit was open.
+	 * @return the number of rejected calls.
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+}
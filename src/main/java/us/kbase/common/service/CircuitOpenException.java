@@ -0,0 +1,15 @@
+package us.kbase.common.service;
+
+import java.io.IOException;
+
+/** 
+ * Raised by a client when a call is not made because the {@link CircuitBreaker} for the
+ * service is open.
+ *
+ */
+public class CircuitOpenException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public CircuitOpenException(String message) {super(message);}
+}
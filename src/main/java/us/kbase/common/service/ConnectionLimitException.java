@@ -0,0 +1,16 @@
+package us.kbase.common.service;
+
+import java.io.IOException;
+
+/** 
+ * Raised by a {@link KeepAliveConnectionProvider} when a host is at its connection limit and
+ * no connection became free within the acquire timeout. The service was not contacted, so the
+ * error does not count as a failure of the service.
+ *
+ */
+public class ConnectionLimitException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public ConnectionLimitException(String message) {super(message);}
+}
@@ -0,0 +1,97 @@
+package us.kbase.common.service;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Determines when {@link JsonClientCaller} sends a hedged request, a second copy of a call
+ * that is taking longer than usual. The result of whichever request completes first is used,
+ * and the other request is disconnected.
+ *
+ * Calls are hedged once they have run longer than a percentile of the latencies of recent
+ * successful calls made under the policy, or the minimum delay if that is longer. No calls are
+ * hedged until {@value #MIN_SAMPLES} latencies, or the sample size if that is smaller, have been
+ * recorded.
+ *
+ * Only calls to methods that the client's {@link RetryPolicy} marks as idempotent are hedged.
+ */
+public class HedgingPolicy {
+
+	/** The number of latencies that must be recorded before calls are hedged. */
+	public static final int MIN_SAMPLES = 10;
+
+	private final double percentile;
+	private final long minDelayMS;
+	private final long[] latencies;
+	private int next = 0;
+	private int count = 0;
+	private final AtomicLong hedged = new AtomicLong();
+	private final AtomicLong hedgeWins = new AtomicLong();
+
+	/** Create the policy.
+	 * @param percentile the percentile of recent latencies after which a call is hedged, e.g.
+	 * 95.
+	 * @param minDelayMS the minimum time in milliseconds before a call is hedged.
+	 * @param sampleSize the number of recent latencies to track.
+	 */
+	public HedgingPolicy(final double percentile, final long minDelayMS, final int sampleSize) {
+		if (!(percentile > 0 && percentile <= 100)) {
+			throw new IllegalArgumentException("percentile must be greater than 0 and at most 100");
+		}
+		if (minDelayMS < 0) {
+			throw new IllegalArgumentException("minDelayMS must be at least 0");
+		}
+		if (sampleSize < 1) {
+			throw new IllegalArgumentException("sampleSize must be at least 1");
+		}
+		this.percentile = percentile;
+		this.minDelayMS = minDelayMS;
+		this.latencies = new long[sampleSize];
+	}
+
+	/* Records the latency of a successful call. */
+	synchronized void recordLatency(final long latencyMS) {
+		latencies[next] = latencyMS;
+		next = (next + 1) % latencies.length;
+		count = Math.min(count + 1, latencies.length);
+	}
+
+	/** Get the time after which a call is currently hedged.
+	 * @return the delay in milliseconds, or -1 if too few latencies have been recorded.
+	 */
+	public long getHedgeDelayMS() {
+		final long[] sorted;
+		synchronized (this) {
+			if (count < Math.min(MIN_SAMPLES, latencies.length)) {
+				return -1;
+			}
+			sorted = Arrays.copyOf(latencies, count);
+		}
+		Arrays.sort(sorted);
+		final int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+		return Math.max(minDelayMS, sorted[Math.max(0, index)]);
+	}
+
+	/* Counts a hedged request. */
+	void recordHedge() {
+		hedged.incrementAndGet();
+	}
+
+	/* Counts a hedged request that completed before the original request. */
+	void recordHedgeWin() {
+		hedgeWins.incrementAndGet();
+	}
+
+	/** Get the number of hedged requests sent under this policy.
+	 * @return the number of hedged requests.
+	 */
+	public long getHedgedCount() {
+		return hedged.get();
+	}
+
+	/** Get the number of hedged requests that completed before the original request.
+	 * @return the number of hedged requests that won.
+	 */
+	public long getHedgeWinCount() {
+		return hedgeWins.get();
+	}
+}
@@ -0,0 +1,28 @@
+package us.kbase.common.service;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/** Provides the HTTP connections {@link JsonClientCaller} uses to make calls.
+ *
+ * Each connection opened by {@link #openConnection(URL)} is passed to
+ * {@link #releaseConnection(HttpURLConnection)} exactly once when the call is complete, after
+ * the response has been read and closed.
+ */
+public interface HttpConnectionProvider {
+
+	/** Open a connection to a URL. The caller configures the connection further.
+	 * @param url the URL.
+	 * @return the connection.
+	 * @throws IOException if the connection could not be opened.
+	 */
+	HttpURLConnection openConnection(URL url) throws IOException;
+
+	/** Release a connection once a call is complete.
+	 * @param conn the connection.
+	 */
+	default void releaseConnection(final HttpURLConnection conn) {
+		// nothing to do
+	}
+}
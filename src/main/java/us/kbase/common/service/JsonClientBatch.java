@@ -0,0 +1,335 @@
+package us.kbase.common.service;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/** A batch of JSON RPC calls that are sent to the server in a single request.
+ *
+ * Calls are added to the batch with the add methods, each of which returns a future for the
+ * call's result, and are sent when the batch is executed. The results in the server's
+ * response are matched to calls by id, or by position for results without an id.
+ *
+ * If the server does not support batch requests, the calls are made one at a time instead
+ * and the client does not attempt to send batches to the server again.
+ *
+ * Obtain a batch with {@link JsonClientCaller#newBatch()}. A batch can only be executed once.
+ */
+public class JsonClientBatch {
+
+	private final JsonClientCaller client;
+	private final List<Call<?>> calls = new ArrayList<>();
+	private boolean executed = false;
+
+	/* A call in the batch. */
+	static class Call<RET> {
+
+		final String method;
+		final Object arg;
+		final TypeReference<RET> cls;
+		final boolean ret;
+		final boolean authRequired;
+		final RpcContext context;
+		final String id;
+		final CompletableFuture<RET> future = new CompletableFuture<>();
+
+		private Call(
+				final String method,
+				final Object arg,
+				final TypeReference<RET> cls,
+				final boolean ret,
+				final boolean authRequired,
+				final RpcContext context,
+				final String id) {
+			this.method = method;
+			this.arg = arg;
+			this.cls = cls;
+			this.ret = ret;
+			this.authRequired = authRequired;
+			this.context = context;
+			this.id = id;
+		}
+
+		private void complete(final JsonNode response) {
+			try {
+				future.complete(JsonClientCaller.getResult(response, cls, ret));
+			} catch (Throwable e) {
+				future.completeExceptionally(e);
+			}
+		}
+
+		private void call(final JsonClientCaller client, final URL url) {
+			try {
+				future.complete(client.jsonrpcCall(url, method, arg, cls, ret, authRequired,
+						context));
+			} catch (Throwable e) {
+				future.completeExceptionally(e);
+			}
+		}
+	}
+
+	JsonClientBatch(final JsonClientCaller client) {
+		this.client = client;
+	}
+
+	/** Add a call to the batch.
+	 * @param method the full method name, e.g. MyService.my_method.
+	 * @param arg the method arguments, usually a list.
+	 * @param cls the type of the result.
+	 * @param ret true if the method returns a result.
+	 * @param authRequired true if the method requires authentication.
+	 * @return a future that completes with the result of the call when the batch is executed.
+	 */
+	public <ARG, RET> CompletableFuture<RET> add(
+			final String method,
+			final ARG arg,
+			final TypeReference<RET> cls,
+			final boolean ret,
+			final boolean authRequired) {
+		return add(method, arg, cls, ret, authRequired, null);
+	}
+
+	/** Add a call to the batch.
+	 * @param method the full method name, e.g. MyService.my_method.
+	 * @param arg the method arguments, usually a list.
+	 * @param cls the type of the result.
+	 * @param ret true if the method returns a result.
+	 * @param authRequired true if the method requires authentication.
+	 * @param context the RPC context, or null.
+	 * @return a future that completes with the result of the call when the batch is executed.
+	 */
+	public synchronized <ARG, RET> CompletableFuture<RET> add(
+			final String method,
+			final ARG arg,
+			final TypeReference<RET> cls,
+			final boolean ret,
+			final boolean authRequired,
+			final RpcContext context) {
+		if (method == null) {
+			throw new NullPointerException("method");
+		}
+		if (cls == null) {
+			throw new NullPointerException("cls");
+		}
+		if (executed) {
+			throw new IllegalStateException("The batch has already been executed");
+		}
+		final Call<RET> call = new Call<>(method, arg, cls, ret, authRequired, context,
+				("" + Math.random()).replace(".", "") + "-" + calls.size());
+		calls.add(call);
+		return call.future;
+	}
+
+	/** Get the number of calls in the batch.
+	 * @return the number of calls.
+	 */
+	public synchronized int size() {
+		return calls.size();
+	}
+
+	/* Marks the batch as executed and returns the calls that haven't been cancelled. */
+	private synchronized List<Call<?>> startExecution() {
+		if (executed) {
+			throw new IllegalStateException("The batch has already been executed");
+		}
+		executed = true;
+		final List<Call<?>> ret = new ArrayList<>();
+		for (final Call<?> call: calls) {
+			if (!call.future.isDone()) {
+				ret.add(call);
+			}
+		}
+		return ret;
+	}
+
+	/** Send the batch to the server and wait for the results. Errors are reported via the
+	 * futures of the calls they affect rather than thrown.
+	 * @throws IllegalStateException if the batch has already been executed.
+	 */
+	public void execute() {
+		execute(startExecution());
+	}
+
+	/** Send the batch to the server asynchronously. The batch is run as an asynchronous call of
+	 * the client that created it and is subject to the client's asynchronous call limit.
+	 * @return a future that completes when all the calls in the batch are complete.
+	 * @throws IllegalStateException if the batch has already been executed.
+	 */
+	public CompletableFuture<Void> executeAsync() {
+		final List<Call<?>> toRun = startExecution();
+		final CompletableFuture<Void> done = new CompletableFuture<>();
+		done.whenComplete(new BiConsumer<Void, Throwable>() {
+
+			@Override
+			public void accept(final Void result, final Throwable error) {
+				if (error != null) { // the executor rejected the batch
+					for (final Call<?> call: toRun) {
+						call.future.completeExceptionally(error);
+					}
+				}
+			}
+		});
+		client.runAsync(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					execute(toRun);
+					done.complete(null);
+				} catch (Throwable e) {
+					done.completeExceptionally(e);
+				}
+			}
+		}, done);
+		return done;
+	}
+
+	private void execute(final List<Call<?>> toRun) {
+		final Map<URL, List<Call<?>>> byURL = new LinkedHashMap<>();
+		final Map<String, URL> moduleURLs = new HashMap<>();
+		for (final Call<?> call: toRun) {
+			final URL url;
+			try {
+				url = getURL(call, moduleURLs);
+			} catch (Throwable e) {
+				call.future.completeExceptionally(e);
+				continue;
+			}
+			if (!byURL.containsKey(url)) {
+				byURL.put(url, new ArrayList<Call<?>>());
+			}
+			byURL.get(url).add(call);
+		}
+		for (final Map.Entry<URL, List<Call<?>>> e: byURL.entrySet()) {
+			execute(e.getKey(), e.getValue());
+		}
+	}
+
+	/* Looks up the URL of the call's service, once per module for dynamic services. */
+	private URL getURL(final Call<?> call, final Map<String, URL> moduleURLs)
+			throws Exception {
+		if (!client.isDynamic()) {
+			return client.getURL();
+		}
+		final String module = call.method.split(Pattern.quote("."))[0];
+		if (!moduleURLs.containsKey(module)) {
+			moduleURLs.put(module, client.getCallUrl(call.method, call.ret, null));
+		}
+		return moduleURLs.get(module);
+	}
+
+	private void execute(final URL url, final List<Call<?>> batch) {
+		if (batch.size() == 1 || client.isBatchUnsupported(url)) {
+			for (final Call<?> call: batch) {
+				call.call(client, url);
+			}
+			return;
+		}
+		boolean authRequired = false;
+		for (final Call<?> call: batch) {
+			authRequired |= call.authRequired;
+		}
+		final JsonNode response;
+		try {
+			response = client.jsonrpcBatchCall(url, batch, authRequired);
+		} catch (Throwable e) {
+			for (final Call<?> call: batch) {
+				call.future.completeExceptionally(e);
+			}
+			return;
+		}
+		if (response == null || !response.isArray()) {
+			final boolean unsupported = isBatchUnsupported(response);
+			if (unsupported || isBatchTooBig(response)) {
+				if (unsupported) {
+					client.setBatchUnsupported(url);
+				}
+				for (final Call<?> call: batch) {
+					call.call(client, url);
+				}
+				return;
+			}
+			// the server rejected the request as a whole, e.g. because it's too busy, so
+			// sending the calls one at a time would only add to its load
+			for (final Call<?> call: batch) {
+				if (response != null && response.get("error") != null) {
+					call.complete(response);
+				} else {
+					call.future.completeExceptionally(new JsonClientException(
+							"The server's batch response was not an array"));
+				}
+			}
+			return;
+		}
+		final Map<String, Call<?>> byID = new HashMap<>();
+		for (final Call<?> call: batch) {
+			byID.put(call.id, call);
+		}
+		final Call<?>[] unmatched = batch.toArray(new Call<?>[batch.size()]);
+		final List<Integer> noID = new ArrayList<>();
+		for (int i = 0; i < response.size(); i++) {
+			final JsonNode id = response.get(i).get("id");
+			final Call<?> call = id == null ? null : byID.remove(id.asText());
+			if (call == null) {
+				noID.add(i);
+			} else {
+				call.complete(response.get(i));
+				unmatched[batch.indexOf(call)] = null;
+			}
+		}
+		// the server returns results in the same order as the calls
+		for (final int i: noID) {
+			if (i < unmatched.length && unmatched[i] != null) {
+				unmatched[i].complete(response.get(i));
+				unmatched[i] = null;
+			}
+		}
+		for (final Call<?> call: Arrays.asList(unmatched)) {
+			if (call != null) {
+				call.future.completeExceptionally(new JsonClientException(
+						"The server's batch response did not include a result for the call to " +
+						call.method));
+			}
+		}
+	}
+
+	/* Returns true if the response is a JSON RPC error stating the request couldn't be parsed
+	 * or was invalid, which is how servers without batch support respond to batches.
+	 */
+	private static boolean isBatchUnsupported(final JsonNode response) {
+		final int code = getErrorCode(response);
+		return code == -32600 ||
+				(code == -32700 && getErrorMessage(response).startsWith("Parse error"));
+	}
+	
+	/* Returns true if the response is a JsonServerServlet error stating the request was too
+	 * large. The calls may still be small enough to send one at a time.
+	 */
+	private static boolean isBatchTooBig(final JsonNode response) {
+		return getErrorCode(response) == -32700 &&
+				getErrorMessage(response).startsWith("Object is too big");
+	}
+	
+	private static int getErrorCode(final JsonNode response) {
+		if (response == null || response.get("error") == null) {
+			return 0;
+		}
+		final JsonNode code = response.get("error").get("code");
+		return code == null ? 0 : code.asInt();
+	}
+	
+	private static String getErrorMessage(final JsonNode response) {
+		final JsonNode message = response.get("error").get("message");
+		return message == null ? "" : message.asText();
+	}
+}
@@ -7,19 +7,42 @@ import us.kbase.auth.AuthToken;
 import us.kbase.auth.ConfigurableAuthService;
 
 import java.net.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
 import java.io.*;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
@@ -29,6 +52,7 @@ import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 /**
@@ -44,9 +68,48 @@ public class JsonClientCaller {
 	private boolean allowInsecureHttp = false;
 	private boolean trustAllCerts = false;
 	private boolean streamRequest = false;
+	private StreamingMode streamingMode = StreamingMode.COUNT_LENGTH;
+	private int streamingBufferSize = DEFAULT_STREAMING_BUFFER_SIZE;
+	private File streamingTempDir = null;
 	private Integer connectionReadTimeOut = 30 * 60 * 1000;
 	private File fileForNextRpcResponse = null;
 	private boolean isDynamic = false;
+	private boolean acceptCompressedResponse = true;
+	private boolean compressRequest = false;
+	private Integer connectionTimeOut = 10000;
+	private HttpConnectionProvider connectionProvider = DEFAULT_CONNECTION_PROVIDER;
+	private RetryPolicy retryPolicy = null;
+	private HedgingPolicy hedgingPolicy = null;
+	private CircuitBreaker circuitBreaker = null;
+	private Executor asyncExecutor = null;
+	private final Queue<QueuedCall> asyncQueue = new LinkedList<>();
+	private int maxAsyncCalls = DEFAULT_MAX_ASYNC_CALLS;
+	private int asyncRunning = 0;
+	private final Object batchLock = new Object();
+	private JsonClientBatch pendingBatch = null;
+	private long batchWindowMS = DEFAULT_BATCH_WINDOW_MS;
+	private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+	private final Set<String> batchUnsupported = Collections.synchronizedSet(new HashSet<String>());
+
+	/** The default maximum number of asynchronous calls a client runs at once. */
+	public static final int DEFAULT_MAX_ASYNC_CALLS = 32;
+	/** The default maximum size of a request held in memory in the buffered streaming mode. */
+	public static final int DEFAULT_STREAMING_BUFFER_SIZE = 16 * 1024 * 1024;
+	/** The default time in milliseconds batched calls wait for other calls to batch with. */
+	public static final long DEFAULT_BATCH_WINDOW_MS = 5;
+	/** The default maximum number of batched calls sent in one batch. */
+	public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+	private static Executor DEFAULT_ASYNC_EXECUTOR = null;
+	private static ScheduledExecutorService ASYNC_TIMER = null;
+	// hedges run on their own threads, since the calls they hedge may be on async threads
+	private static Executor HEDGE_EXECUTOR = null;
+
+	private static final long FILE_TRANSFER_SIZE = 1024 * 1024;
+
+	private static final HttpConnectionProvider DEFAULT_CONNECTION_PROVIDER =
+			new KeepAliveConnectionProvider(0, 0);
+	// shared so that HTTPS connections can be kept alive and TLS sessions resumed
+	private static SSLSocketFactory GULLIBLE_SSL_FACTORY = null;
 
 	private static TrustManager[] GULLIBLE_TRUST_MGR = new TrustManager[] {
 		new X509TrustManager() {
@@ -159,7 +222,8 @@ public class JsonClientCaller {
 	
 	/** Sets streaming mode on. In this case, the data will be streamed to
 	 * the server in chunks as it is read from disk rather than buffered in
-	 * memory. Many servers are not compatible with this feature.
+	 * memory. Many servers are not compatible with this feature. How the request is
+	 * streamed is set via {@link #setStreamingMode(StreamingMode)}.
 	 * @param streamRequest true to set streaming mode on, false otherwise.
 	 */
 	public void setStreamingModeOn(boolean streamRequest) {
@@ -173,6 +237,187 @@ public class JsonClientCaller {
 		return streamRequest;
 	}
 	
+	/** How a request is sent to the server when streaming mode is on. */
+	public enum StreamingMode {
+		/** Serialize the request twice, once to determine its length and once to send it.
+		 * Compressed requests are sent with chunked transfer encoding. The default.
+		 */
+		COUNT_LENGTH,
+		/** Serialize the request once into a buffer that is spilled to a temporary file if
+		 * it exceeds the buffer size, and then send the buffer.
+		 */
+		BUFFERED,
+		/** Serialize the request once, directly to the server, with chunked transfer encoding.
+		 * The server must support chunked requests.
+		 */
+		CHUNKED
+	}
+	
+	/** Sets how requests are sent when streaming mode is on. The default is
+	 * {@link StreamingMode#COUNT_LENGTH}.
+	 * @param mode the streaming mode.
+	 */
+	public void setStreamingMode(final StreamingMode mode) {
+		if (mode == null) {
+			throw new NullPointerException("mode");
+		}
+		this.streamingMode = mode;
+	}
+	
+	/** Returns how requests are sent when streaming mode is on.
+	 * @return the streaming mode.
+	 */
+	public StreamingMode getStreamingMode() {
+		return streamingMode;
+	}
+	
+	/** Sets the maximum size of a request held in memory in the
+	 * {@link StreamingMode#BUFFERED} streaming mode. Larger requests are written to a temporary
+	 * file. The default is {@value #DEFAULT_STREAMING_BUFFER_SIZE} bytes.
+	 * @param size the buffer size in bytes.
+	 */
+	public void setStreamingBufferSize(final int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("Streaming buffer size must be at least 0");
+		}
+		this.streamingBufferSize = size;
+	}
+	
+	/** Returns the maximum size of a request held in memory in the
+	 * {@link StreamingMode#BUFFERED} streaming mode.
+	 * @return the buffer size in bytes.
+	 */
+	public int getStreamingBufferSize() {
+		return streamingBufferSize;
+	}
+	
+	/** Sets the directory for the temporary files used in the {@link StreamingMode#BUFFERED}
+	 * streaming mode.
+	 * @param dir the directory, or null to use the system temporary directory.
+	 */
+	public void setStreamingTempDir(final File dir) {
+		this.streamingTempDir = dir;
+	}
+	
+	/** Returns the directory for the temporary files used in the
+	 * {@link StreamingMode#BUFFERED} streaming mode.
+	 * @return the directory, or null if the system temporary directory is used.
+	 */
+	public File getStreamingTempDir() {
+		return streamingTempDir;
+	}
+	
+	/** Sets whether the client asks the server to compress responses with gzip or deflate.
+	 * On by default. Compressed responses are always decompressed, regardless of this
+	 * setting.
+	 * @param accept true to accept compressed responses.
+	 */
+	public void setCompressedResponseAccepted(final boolean accept) {
+		this.acceptCompressedResponse = accept;
+	}
+	
+	/** Returns true if the client asks the server to compress responses.
+	 * @return true if compressed responses are accepted.
+	 */
+	public boolean isCompressedResponseAccepted() {
+		return acceptCompressedResponse;
+	}
+	
+	/** Sets whether requests are gzip compressed. Off by default, since the server must
+	 * support compressed requests. If streaming mode is on, compressed requests are sent with
+	 * chunked transfer encoding, since their size isn't known in advance.
+	 * @param compress true to compress requests.
+	 */
+	public void setRequestCompressed(final boolean compress) {
+		this.compressRequest = compress;
+	}
+	
+	/** Returns true if requests are gzip compressed.
+	 * @return true if requests are compressed.
+	 */
+	public boolean isRequestCompressed() {
+		return compressRequest;
+	}
+	
+	/** Sets the timeout for establishing a connection to the server. The default is 10
+	 * seconds.
+	 * @param connectionTimeOut the timeout in milliseconds, or null or 0 for no timeout.
+	 */
+	public void setConnectionTimeOut(final Integer connectionTimeOut) {
+		this.connectionTimeOut = connectionTimeOut;
+	}
+	
+	/** Returns the timeout for establishing a connection to the server.
+	 * @return the timeout in milliseconds.
+	 */
+	public Integer getConnectionTimeOut() {
+		return connectionTimeOut;
+	}
+	
+	/** Sets the provider of the HTTP connections used for calls. By default, connections are
+	 * kept alive and reused between calls with no limit on the number of connections per host.
+	 * @param provider the connection provider.
+	 */
+	public void setConnectionProvider(final HttpConnectionProvider provider) {
+		if (provider == null) {
+			throw new NullPointerException("provider");
+		}
+		this.connectionProvider = provider;
+	}
+	
+	/** Returns the provider of the HTTP connections used for calls.
+	 * @return the connection provider.
+	 */
+	public HttpConnectionProvider getConnectionProvider() {
+		return connectionProvider;
+	}
+	
+	/** Sets the policy that determines which failed calls are retried. By default, calls are
+	 * not retried.
+	 * @param policy the retry policy, or null to not retry calls.
+	 */
+	public void setRetryPolicy(final RetryPolicy policy) {
+		this.retryPolicy = policy;
+	}
+	
+	/** Returns the policy that determines which failed calls are retried.
+	 * @return the retry policy, or null if calls are not retried.
+	 */
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+	
+	/** Sets the policy that determines when slow calls are hedged. Only calls to methods the
+	 * retry policy marks as idempotent are hedged, and calls that write their response to a
+	 * file are never hedged. By default, calls are not hedged.
+	 * @param policy the hedging policy, or null to not hedge calls.
+	 */
+	public void setHedgingPolicy(final HedgingPolicy policy) {
+		this.hedgingPolicy = policy;
+	}
+	
+	/** Returns the policy that determines when slow calls are hedged.
+	 * @return the hedging policy, or null if calls are not hedged.
+	 */
+	public HedgingPolicy getHedgingPolicy() {
+		return hedgingPolicy;
+	}
+	
+	/** Sets the circuit breaker that stops calls to services that are failing. By default,
+	 * there is no circuit breaker.
+	 * @param breaker the circuit breaker, or null for none.
+	 */
+	public void setCircuitBreaker(final CircuitBreaker breaker) {
+		this.circuitBreaker = breaker;
+	}
+	
+	/** Returns the circuit breaker that stops calls to services that are failing.
+	 * @return the circuit breaker, or null if there is none.
+	 */
+	public CircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+	
 	public void setConnectionReadTimeOut(Integer connectionReadTimeOut) {
 		this.connectionReadTimeOut = connectionReadTimeOut;
 	}
@@ -194,13 +439,39 @@ public class JsonClientCaller {
 			final boolean trustAllCerts)
 			throws IOException, JsonClientException {
 		final HttpURLConnection conn =
-				(HttpURLConnection) serviceUrl.openConnection();
-		conn.setConnectTimeout(10000);
+				accessTokenHolder.connectionProvider.openConnection(serviceUrl);
+		try {
+			configureCall(conn, authRequired, connectionReadTimeOut, accessTokenHolder,
+					allowInsecureHttp, trustAllCerts);
+		} catch (IOException | JsonClientException | RuntimeException e) {
+			accessTokenHolder.connectionProvider.releaseConnection(conn);
+			throw e;
+		}
+		return conn;
+	}
+	
+	private static void configureCall(
+			final HttpURLConnection conn,
+			final boolean authRequired, 
+			final Integer connectionReadTimeOut,
+			final JsonClientCaller accessTokenHolder, 
+			final boolean allowInsecureHttp,
+			final boolean trustAllCerts)
+			throws IOException, JsonClientException {
+		if (accessTokenHolder.connectionTimeOut != null) {
+			conn.setConnectTimeout(accessTokenHolder.connectionTimeOut);
+		}
 		if (connectionReadTimeOut != null) {
 			conn.setReadTimeout(connectionReadTimeOut);
 		}
 		conn.setDoOutput(true);
 		conn.setRequestMethod("POST");
+		if (accessTokenHolder.acceptCompressedResponse) {
+			conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+		}
+		if (accessTokenHolder.compressRequest) {
+			conn.setRequestProperty("Content-Encoding", "gzip");
+		}
 		if (authRequired || accessTokenHolder.accessToken != null) {
 			if (!(conn instanceof HttpsURLConnection || allowInsecureHttp)) {
 				throw new UnauthorizedException(
@@ -219,6 +490,13 @@ public class JsonClientCaller {
 		}
 		if (conn instanceof HttpsURLConnection && trustAllCerts) {
 			final HttpsURLConnection hc = (HttpsURLConnection) conn;
+			hc.setSSLSocketFactory(getGullibleSSLFactory());
+			hc.setHostnameVerifier(GULLIBLE_HOSTNAME_VERIFIER);
+		}
+	}
+	
+	private static synchronized SSLSocketFactory getGullibleSSLFactory() {
+		if (GULLIBLE_SSL_FACTORY == null) {
 			final SSLContext sc;
 			try {
 				sc = SSLContext.getInstance("SSL");
@@ -232,10 +510,9 @@ public class JsonClientCaller {
 				throw new RuntimeException(
 						"Couldn't initialize SSLContext", e);
 			}
-			hc.setSSLSocketFactory(sc.getSocketFactory());
-			hc.setHostnameVerifier(GULLIBLE_HOSTNAME_VERIFIER);
+			GULLIBLE_SSL_FACTORY = sc.getSocketFactory();
 		}
-		return conn;
+		return GULLIBLE_SSL_FACTORY;
 	}
 
 	public static AuthToken requestTokenFromKBase(
@@ -305,227 +582,1360 @@ public class JsonClientCaller {
 	public <ARG, RET> RET jsonrpcCall(String method, ARG arg, TypeReference<RET> cls, 
 	        boolean ret, boolean authRequired, RpcContext context, String serviceVersion)
 			throws IOException, JsonClientException {
-	    URL url;
-	    if (isDynamic) {
-	        String serviceModuleName = method.split(Pattern.quote("."))[0];
-	        List<Object> serviceStatusArgs = new ArrayList<Object>();
-            Map<String, String> serviceStruct = new LinkedHashMap<String, String>();
-            serviceStruct.put("module_name", serviceModuleName);
-            serviceStruct.put("version", serviceVersion);
-            serviceStatusArgs.add(serviceStruct);
-            List<Map<String, Object>> serviceState = jsonrpcCallStatic(serviceUrl, 
-                    "ServiceWizard.get_service_status", serviceStatusArgs, 
-                    new TypeReference<List<Map<String, Object>>>() {}, ret, 
-                    false, null, streamRequest, connectionReadTimeOut, 
-	                this, allowInsecureHttp, trustAllCerts, null);
-            url = new URL((String)serviceState.get(0).get("url"));
-	    } else {
-	        url = serviceUrl;
-	    }
+	    final URL url = getCallUrl(method, ret, serviceVersion);
 	    try {
-	        return jsonrpcCallStatic(url, method, arg, cls, ret, authRequired, 
-	                context, streamRequest, connectionReadTimeOut, 
-	                this, allowInsecureHttp, trustAllCerts,
-	                fileForNextRpcResponse);
+	        return jsonrpcCallWithPolicies(url, method, arg, cls, ret, authRequired, 
+	                context, connectionReadTimeOut, fileForNextRpcResponse, null);
 	    } finally {
             fileForNextRpcResponse = null;
 	    }
 	}
 	
-	private static <ARG, RET> RET jsonrpcCallStatic(
-			final URL serviceUrl,
+	/* Returns the URL of the service, looking it up in the service wizard for dynamic
+	 * services.
+	 */
+	URL getCallUrl(final String method, final boolean ret, final String serviceVersion)
+			throws IOException, JsonClientException {
+		if (!isDynamic) {
+			return serviceUrl;
+		}
+		final String serviceModuleName = method.split(Pattern.quote("."))[0];
+		final List<Object> serviceStatusArgs = new ArrayList<Object>();
+		final Map<String, String> serviceStruct = new LinkedHashMap<String, String>();
+		serviceStruct.put("module_name", serviceModuleName);
+		serviceStruct.put("version", serviceVersion);
+		serviceStatusArgs.add(serviceStruct);
+		final List<Map<String, Object>> serviceState = jsonrpcCallStatic(serviceUrl, 
+				"ServiceWizard.get_service_status", serviceStatusArgs, 
+				new TypeReference<List<Map<String, Object>>>() {}, ret, 
+				false, null, streamRequest, connectionReadTimeOut, 
+				this, allowInsecureHttp, trustAllCerts, null, null);
+		return new URL((String)serviceState.get(0).get("url"));
+	}
+	
+	/** Make a JSON RPC call asynchronously. See
+	 * {@link #jsonrpcCallAsync(String, Object, TypeReference, boolean, boolean, RpcContext,
+	 * String, long)}.
+	 * @param method the full method name, e.g. MyService.my_method.
+	 * @param arg the method arguments, usually a list.
+	 * @param cls the type of the result.
+	 * @param ret true if the method returns a result.
+	 * @param authRequired true if the method requires authentication.
+	 * @return a future that completes with the result of the call.
+	 */
+	public <ARG, RET> CompletableFuture<RET> jsonrpcCallAsync(
+			final String method,
+			final ARG arg,
+			final TypeReference<RET> cls,
+			final boolean ret,
+			final boolean authRequired) {
+		return jsonrpcCallAsync(method, arg, cls, ret, authRequired, null, null, 0);
+	}
+	
+	/** Make a JSON RPC call asynchronously.
+	 * 
+	 * The call is run on the asynchronous executor. If the maximum number of asynchronous
+	 * calls are already in progress, the call is queued until one finishes, without blocking
+	 * the calling thread.
+	 * 
+	 * Cancelling the future, or the timeout expiring, disconnects the call's connection. A
+	 * timed out call completes exceptionally with a {@link TimeoutException}.
+	 * 
+	 * The file set via {@link #setFileForNextRpcResponse(File)} is not used by asynchronous
+	 * calls.
+	 * @param method the full method name, e.g. MyService.my_method.
+	 * @param arg the method arguments, usually a list.
+	 * @param cls the type of the result.
+	 * @param ret true if the method returns a result.
+	 * @param authRequired true if the method requires authentication.
+	 * @param context the RPC context, or null.
+	 * @param serviceVersion the service version for dynamic services, or null.
+	 * @param timeoutMS the time in milliseconds, from when this method is called, in which the
+	 * call must complete, including any time spent queued. 0 means no timeout other than the
+	 * connection timeouts.
+	 * @return a future that completes with the result of the call.
+	 */
+	public <ARG, RET> CompletableFuture<RET> jsonrpcCallAsync(
 			final String method,
 			final ARG arg,
 			final TypeReference<RET> cls,
 			final boolean ret,
 			final boolean authRequired,
 			final RpcContext context,
-			final boolean streamRequest,
-			final Integer connectionReadTimeOut,
-			final JsonClientCaller accessTokenHolder,
-			final boolean allowInsecureHttp,
-			final boolean trustAllCerts,
-			final File fileForNextRpcResponse)
-			throws IOException, JsonClientException {
-		HttpURLConnection conn = setupCall(serviceUrl, authRequired, connectionReadTimeOut, 
-				accessTokenHolder, allowInsecureHttp, trustAllCerts);
-		String id = ("" + Math.random()).replace(".", "");
-		if (streamRequest) {
-			// Calculate content-length before
-			final long size = calculateResponseLength(method, arg, id, context);
-			// Set content-length
-			conn.setFixedLengthStreamingMode(size);
-		}
-		// Write real data into http output stream
-		try (final OutputStream out = conn.getOutputStream()) {
-			writeRequestDataStatic(method, arg, out, id, context);
+			final String serviceVersion,
+			final long timeoutMS) {
+		if (timeoutMS < 0) {
+			throw new IllegalArgumentException("timeoutMS must be at least 0");
 		}
-
-
-		// Read response
-		int code = conn.getResponseCode();
-		conn.getResponseMessage();
-		InputStream istream = null;
-
-		try {
-			if (code == 500) {
-				istream = conn.getErrorStream();
-			} else {
-				istream = conn.getInputStream();
-			}
-			// Parse response into json
-			UnclosableInputStream wrapStream = new UnclosableInputStream(istream);
-			if (fileForNextRpcResponse == null) {
-				JsonParser jp = mapper.getFactory().createParser(wrapStream);
+		final CompletableFuture<RET> future = new CompletableFuture<>();
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMS);
+		final AsyncCall call = new AsyncCall();
+		final Runnable task = new Runnable() {
+			
+			@Override
+			public void run() {
+				boolean deadlineTimeOut = false;
 				try {
-					checkToken(JsonToken.START_OBJECT, jp.nextToken());
-				} catch (JsonParseException ex) {
-					String receivedHeadingMessage = wrapStream.getHeadingBuffer();
-					if (receivedHeadingMessage.startsWith("{"))
-						throw ex;
-					throw new JsonClientException("Server response is not in JSON format:\n" +
-							receivedHeadingMessage);
-				}
-				Map<String, String> retError = null;
-				RET res = null;
-				while (jp.nextToken() != JsonToken.END_OBJECT) {
-					checkToken(JsonToken.FIELD_NAME, jp.getCurrentToken());
-					String fieldName = jp.getCurrentName();
-					if (fieldName.equals("error")) {
-						jp.nextToken();
-						retError = jp.getCodec().readValue(jp, new TypeReference<Map<String, String>>() {
-						});
-					} else if (fieldName.equals("result")) {
-						checkFor500(code, wrapStream);
-						jp.nextToken();
-						try {
-							res = jp.getCodec().readValue(jp, cls);
-						} catch (JsonParseException e) {
-							throw new JsonClientException(
-									"Parse error while parsing response in: " +
-											wrapStream.getHeadingBuffer(), e);
+					if (future.isDone()) { // cancelled or timed out while queued
+						return;
+					}
+					Integer readTimeOut = connectionReadTimeOut;
+					if (timeoutMS > 0) {
+						final long remaining = TimeUnit.NANOSECONDS.toMillis(
+								deadline - System.nanoTime());
+						if (remaining < 1) {
+							future.completeExceptionally(getTimeoutException(method, timeoutMS));
+							return;
+						}
+						if (readTimeOut == null || readTimeOut < 1 || readTimeOut > remaining) {
+							readTimeOut = (int) Math.min(Integer.MAX_VALUE, remaining);
+							deadlineTimeOut = true;
 						}
-					} else {
-						jp.nextToken();
-						jp.getCodec().readValue(jp, Object.class);
 					}
+					future.complete(jsonrpcCallWithPolicies(
+							getCallUrl(method, ret, serviceVersion), method, arg, cls, ret,
+							authRequired, context, readTimeOut, null, call));
+				} catch (SocketTimeoutException e) {
+					// the read timeout may fire just before the deadline timer
+					future.completeExceptionally(deadlineTimeOut ?
+							getTimeoutException(method, timeoutMS) : e);
+				} catch (Throwable e) {
+					future.completeExceptionally(e);
+				} finally {
+					finishAsyncCall();
 				}
-				if (retError != null) {
-					String data = retError.get("data") == null ? retError.get("error") : retError.get("data");
-					throw new ServerException(retError.get("message"),
-							new Integer(retError.get("code")), retError.get("name"),
-							data);
-				}
-				if (res == null && ret) {
-					throw new ServerException("An unknown server error occured",
-							0, "Unknown", null);
-				}
-				return res;
-			} else {
-				FileOutputStream fos = null;
-				try {
-					fos = new FileOutputStream(fileForNextRpcResponse);
-					byte[] rpcBuffer = new byte[10000];
-					while (true) {
-						int count = wrapStream.read(rpcBuffer);
-						if (count < 0)
-							break;
-						fos.write(rpcBuffer, 0, count);
-					}
-					fos.close();
-					JsonTokenStream jts = new JsonTokenStream(fileForNextRpcResponse);
-					Map<String, UObject> resp;
-					try {
-						resp = mapper.readValue(jts, new TypeReference<Map<String, UObject>>() {
-						});
-					} catch (JsonParseException ex) {
-						String receivedHeadingMessage = wrapStream.getHeadingBuffer();
-						if (receivedHeadingMessage.startsWith("{"))
-							throw ex;
-						throw new JsonClientException("Server response is not in JSON format:\n" +
-								receivedHeadingMessage);
-					} finally {
-						jts.close();
-					}
-					if (resp.containsKey("error")) {
-						Map<String, String> retError = resp.get("error").asClassInstance(new TypeReference<Map<String, String>>() {
-						});
-						String data = retError.get("data") == null ? retError.get("error") : retError.get("data");
-						throw new ServerException(retError.get("message"),
-								new Integer(retError.get("code")), retError.get("name"),
-								data);
-					}
-					if (resp.containsKey("result")) {
-						checkFor500(code, wrapStream);
-						RET res = mapper.readValue(resp.get("result").getPlacedStream(), cls);
-						return res;
-					} else {
-						throw new ServerException("An unknown server error occured", 0, "Unknown", null);
+			}
+		};
+		final ScheduledFuture<?> timeout = timeoutMS < 1 ? null : getAsyncTimer().schedule(
+				new Runnable() {
+					
+					@Override
+					public void run() {
+						future.completeExceptionally(getTimeoutException(method, timeoutMS));
 					}
-				} finally {
-					if (fos != null)
-						try {
-							fos.close();
-						} catch (Exception ignore) {
-						}
+				}, timeoutMS, TimeUnit.MILLISECONDS);
+		future.whenComplete(new BiConsumer<RET, Throwable>() {
+			
+			@Override
+			public void accept(final RET result, final Throwable error) {
+				if (timeout != null) {
+					timeout.cancel(false);
+				}
+				if (error instanceof CancellationException || error instanceof TimeoutException) {
+					// stops the call if it's still running
+					call.abort();
 				}
 			}
-		}
-		finally {
-			if(istream !=null)
-				istream.close();
-		}
+		});
+		startAsyncCall(task, future);
+		return future;
 	}
-
-	private static <ARG> long calculateResponseLength(String method, ARG arg,
-			String id, RpcContext context) throws IOException {
-		final long[] sizeWrapper = new long[] {0};
-		OutputStream os = new OutputStream() {
-			@Override
-			public void write(int b) {sizeWrapper[0]++;}
-			@Override
-			public void write(byte[] b) {sizeWrapper[0] += b.length;}
-			@Override
-			public void write(byte[] b, int o, int l) {sizeWrapper[0] += l;}
-		};
-		writeRequestDataStatic(method, arg, os, id, context);
-		return sizeWrapper[0];
+	
+	private static TimeoutException getTimeoutException(final String method, final long timeoutMS) {
+		return new TimeoutException(String.format("Call to %s timed out after %s ms",
+				method, timeoutMS));
 	}
-
-	private static void checkFor500(int code, UnclosableInputStream wrapStream)
-			throws IOException, JsonClientException {
-		if (code == 500) {
-			String header = wrapStream.getHeadingBuffer();
-			if (header.length() > 300)
-				header = header.substring(0, 300) + "...";
-			throw new JsonClientException("Server response contains result but has error code 500, " +
-					"response header is:\n" + header);
+	
+	private static class QueuedCall {
+		
+		private final Runnable task;
+		private final CompletableFuture<?> future;
+		
+		private QueuedCall(final Runnable task, final CompletableFuture<?> future) {
+			this.task = task;
+			this.future = future;
 		}
 	}
-
-	private static void checkToken(JsonToken expected, JsonToken actual) throws JsonClientException {
-		if (expected != actual)
-			throw new JsonClientException("Expected " + expected + " token but " + actual + " was occured");
+	
+	/* Runs the call now if there is capacity, or queues it otherwise. */
+	private void startAsyncCall(final Runnable task, final CompletableFuture<?> future) {
+		final QueuedCall call = new QueuedCall(task, future);
+		synchronized (asyncQueue) {
+			if (maxAsyncCalls > 0 && asyncRunning >= maxAsyncCalls) {
+				asyncQueue.add(call);
+				return;
+			}
+			asyncRunning++;
+		}
+		executeAsyncCall(call);
 	}
-		
-	public void writeRequestData(String method, Object arg, OutputStream os, String id, RpcContext context) 
-			throws IOException {
-	    writeRequestDataStatic(method, arg, os, id, context);
+	
+	/* Starts the next queued call, if any. */
+	private void finishAsyncCall() {
+		final QueuedCall next;
+		synchronized (asyncQueue) {
+			next = asyncQueue.poll();
+			if (next == null) {
+				asyncRunning--;
+				return;
+			}
+		}
+		executeAsyncCall(next);
 	}
 	
-	private static void writeRequestDataStatic(String method, Object arg, OutputStream os, String id, 
-	        RpcContext context) throws IOException {
-		JsonGenerator g = mapper.getFactory().createGenerator(os, JsonEncoding.UTF8);
-		g.writeStartObject();
-		g.writeObjectField("params", arg);
-		g.writeStringField("method", method);
-		g.writeStringField("version", "1.1");
-		g.writeStringField("id", id);
-		if (context != null)
-	        g.writeObjectField("context", context);		    
-		g.writeEndObject();
-		g.close();
-		os.flush();
+	private void executeAsyncCall(final QueuedCall call) {
+		try {
+			getAsyncExecutor().execute(call.task);
+		} catch (RejectedExecutionException e) {
+			call.future.completeExceptionally(e);
+			finishAsyncCall();
+		}
+	}
+	
+	/* Tracks the connection of an asynchronous call so it can be disconnected to stop the
+	 * call.
+	 */
+	private static class AsyncCall {
+		
+		private HttpURLConnection conn = null;
+		private boolean aborted = false;
+		private final List<AsyncCall> children = new LinkedList<>();
+		
+		private synchronized void setConnection(final HttpURLConnection conn) {
+			this.conn = conn;
+			if (aborted) {
+				conn.disconnect();
+			}
+		}
+		
+		/* Creates a call that is aborted when this call is aborted. */
+		private synchronized AsyncCall newChild() {
+			final AsyncCall child = new AsyncCall();
+			if (aborted) {
+				child.abort();
+			} else {
+				children.add(child);
+			}
+			return child;
+		}
+		
+		private synchronized boolean isAborted() {
+			return aborted;
+		}
+		
+		private synchronized void abort() {
+			aborted = true;
+			if (conn != null) {
+				conn.disconnect();
+			}
+			for (final AsyncCall child: children) {
+				child.abort();
+			}
+		}
+	}
+	
+	private static synchronized ScheduledExecutorService getAsyncTimer() {
+		if (ASYNC_TIMER == null) {
+			final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1,
+					newDaemonThreadFactory("JsonClientCaller-timeout-"));
+			timer.setRemoveOnCancelPolicy(true);
+			ASYNC_TIMER = timer;
+		}
+		return ASYNC_TIMER;
+	}
+	
+	private static synchronized Executor getHedgeExecutor() {
+		if (HEDGE_EXECUTOR == null) {
+			HEDGE_EXECUTOR = Executors.newCachedThreadPool(
+					newDaemonThreadFactory("JsonClientCaller-hedge-"));
+		}
+		return HEDGE_EXECUTOR;
+	}
+	
+	private static synchronized Executor getDefaultAsyncExecutor() {
+		if (DEFAULT_ASYNC_EXECUTOR == null) {
+			DEFAULT_ASYNC_EXECUTOR = Executors.newCachedThreadPool(
+					newDaemonThreadFactory("JsonClientCaller-async-"));
+		}
+		return DEFAULT_ASYNC_EXECUTOR;
+	}
+	
+	private static ThreadFactory newDaemonThreadFactory(final String prefix) {
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadFactory() {
+			
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(r, prefix + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+	
+	/** Sets the executor used to run asynchronous calls. By default, a cached pool of daemon
+	 * threads shared by all clients is used.
+	 * @param executor the executor, or null to use the default executor.
+	 */
+	public void setAsyncExecutor(final Executor executor) {
+		this.asyncExecutor = executor;
+	}
+	
+	/** Returns the executor used to run asynchronous calls.
+	 * @return the executor.
+	 */
+	public Executor getAsyncExecutor() {
+		final Executor exe = asyncExecutor;
+		return exe == null ? getDefaultAsyncExecutor() : exe;
+	}
+	
+	/** Sets the maximum number of asynchronous calls this client runs at once. Further calls
+	 * are queued. The default is {@value #DEFAULT_MAX_ASYNC_CALLS}.
+	 * @param maxAsyncCalls the maximum number of calls, or 0 for no limit.
+	 */
+	public void setMaxAsyncCalls(final int maxAsyncCalls) {
+		if (maxAsyncCalls < 0) {
+			throw new IllegalArgumentException("maxAsyncCalls must be at least 0");
+		}
+		synchronized (asyncQueue) {
+			this.maxAsyncCalls = maxAsyncCalls;
+		}
+	}
+	
+	/** Returns the maximum number of asynchronous calls this client runs at once.
+	 * @return the maximum number of calls, or 0 if there is no limit.
+	 */
+	public int getMaxAsyncCalls() {
+		synchronized (asyncQueue) {
+			return maxAsyncCalls;
+		}
+	}
+	
+	/** Returns the number of asynchronous calls that are running or queued.
+	 * @return the number of calls in progress.
+	 */
+	public int getAsyncCallsInProgress() {
+		synchronized (asyncQueue) {
+			return asyncRunning + asyncQueue.size();
+		}
+	}
+	
+	/** Create a batch of calls that are sent to the server as a single JSON RPC batch
+	 * request. See {@link JsonClientBatch}.
+	 * @return a new, empty batch.
+	 */
+	public JsonClientBatch newBatch() {
+		return new JsonClientBatch(this);
+	}
+	
+	/** Make a JSON RPC call that is sent to the server in a batch with other calls made within
+	 * the batch window. The batch is sent when the window expires or when it reaches the maximum
+	 * batch size, whichever is first, and is run as an asynchronous call.
+	 * @param method the full method name, e.g. MyService.my_method.
+	 * @param arg the method arguments, usually a list.
+	 * @param cls the type of the result.
+	 * @param ret true if the method returns a result.
+	 * @param authRequired true if the method requires authentication.
+	 * @return a future that completes with the result of the call.
+	 */
+	public <ARG, RET> CompletableFuture<RET> jsonrpcCallBatched(
+			final String method,
+			final ARG arg,
+			final TypeReference<RET> cls,
+			final boolean ret,
+			final boolean authRequired) {
+		return jsonrpcCallBatched(method, arg, cls, ret, authRequired, null);
+	}
+	
+	/** Make a JSON RPC call that is sent to the server in a batch with other calls made within
+	 * the batch window. See {@link #jsonrpcCallBatched(String, Object, TypeReference, boolean,
+	 * boolean)}.
+	 * @param method the full method name, e.g. MyService.my_method.
+	 * @param arg the method arguments, usually a list.
+	 * @param cls the type of the result.
+	 * @param ret true if the method returns a result.
+	 * @param authRequired true if the method requires authentication.
+	 * @param context the RPC context, or null.
+	 * @return a future that completes with the result of the call.
+	 */
+	public <ARG, RET> CompletableFuture<RET> jsonrpcCallBatched(
+			final String method,
+			final ARG arg,
+			final TypeReference<RET> cls,
+			final boolean ret,
+			final boolean authRequired,
+			final RpcContext context) {
+		final CompletableFuture<RET> future;
+		JsonClientBatch full = null;
+		synchronized (batchLock) {
+			if (pendingBatch == null) {
+				final JsonClientBatch batch = new JsonClientBatch(this);
+				pendingBatch = batch;
+				if (batchWindowMS > 0) {
+					getAsyncTimer().schedule(new Runnable() {
+						
+						@Override
+						public void run() {
+							flushBatch(batch);
+						}
+					}, batchWindowMS, TimeUnit.MILLISECONDS);
+				}
+			}
+			future = pendingBatch.add(method, arg, cls, ret, authRequired, context);
+			if (batchWindowMS < 1 || pendingBatch.size() >= maxBatchSize) {
+				full = pendingBatch;
+				pendingBatch = null;
+			}
+		}
+		if (full != null) {
+			full.executeAsync();
+		}
+		return future;
+	}
+	
+	/** Send any calls made via {@link #jsonrpcCallBatched(String, Object, TypeReference,
+	 * boolean, boolean)} that are waiting for the batch window to expire.
+	 */
+	public void flushBatchedCalls() {
+		final JsonClientBatch batch;
+		synchronized (batchLock) {
+			batch = pendingBatch;
+			pendingBatch = null;
+		}
+		if (batch != null) {
+			batch.executeAsync();
+		}
+	}
+	
+	private void flushBatch(final JsonClientBatch batch) {
+		synchronized (batchLock) {
+			if (pendingBatch != batch) { // already sent
+				return;
+			}
+			pendingBatch = null;
+		}
+		batch.executeAsync();
+	}
+	
+	/** Sets the time calls made via {@link #jsonrpcCallBatched(String, Object, TypeReference,
+	 * boolean, boolean)} wait for other calls to batch with. The default is
+	 * {@value #DEFAULT_BATCH_WINDOW_MS} ms.
+	 * @param batchWindowMS the batch window in milliseconds, or 0 to send each call immediately.
+	 */
+	public void setBatchWindowMS(final long batchWindowMS) {
+		if (batchWindowMS < 0) {
+			throw new IllegalArgumentException("batchWindowMS must be at least 0");
+		}
+		synchronized (batchLock) {
+			this.batchWindowMS = batchWindowMS;
+		}
+	}
+	
+	/** Returns the time batched calls wait for other calls to batch with.
+	 * @return the batch window in milliseconds.
+	 */
+	public long getBatchWindowMS() {
+		synchronized (batchLock) {
+			return batchWindowMS;
+		}
+	}
+	
+	/** Sets the maximum number of calls made via {@link #jsonrpcCallBatched(String, Object,
+	 * TypeReference, boolean, boolean)} that are sent in one batch. The default is
+	 * {@value #DEFAULT_MAX_BATCH_SIZE}.
+	 * @param maxBatchSize the maximum batch size.
+	 */
+	public void setMaxBatchSize(final int maxBatchSize) {
+		if (maxBatchSize < 1) {
+			throw new IllegalArgumentException("maxBatchSize must be at least 1");
+		}
+		synchronized (batchLock) {
+			this.maxBatchSize = maxBatchSize;
+		}
+	}
+	
+	/** Returns the maximum number of batched calls that are sent in one batch.
+	 * @return the maximum batch size.
+	 */
+	public int getMaxBatchSize() {
+		synchronized (batchLock) {
+			return maxBatchSize;
+		}
+	}
+	
+	/* Runs a task on the asynchronous executor, subject to the asynchronous call limit. The task
+	 * must complete the future.
+	 */
+	void runAsync(final Runnable task, final CompletableFuture<?> future) {
+		startAsyncCall(new Runnable() {
+			
+			@Override
+			public void run() {
+				try {
+					task.run();
+				} finally {
+					finishAsyncCall();
+				}
+			}
+		}, future);
+	}
+	
+	/* Makes a single call on behalf of a batch. Unlike jsonrpcCall, ignores the file for the
+	 * next response.
+	 */
+	<ARG, RET> RET jsonrpcCall(
+			final URL url,
+			final String method,
+			final ARG arg,
+			final TypeReference<RET> cls,
+			final boolean ret,
+			final boolean authRequired,
+			final RpcContext context)
+			throws IOException, JsonClientException {
+		return jsonrpcCallWithPolicies(url, method, arg, cls, ret, authRequired, context,
+				connectionReadTimeOut, null, null);
+	}
+	
+	/* Sends a batch of calls in a single request, subject to the circuit breaker. The batch is
+	 * retried as per the retry policy if all the calls in it are idempotent. Returns the parsed
+	 * response, or null if the response isn't JSON.
+	 */
+	JsonNode jsonrpcBatchCall(
+			final URL url,
+			final List<JsonClientBatch.Call<?>> calls,
+			final boolean authRequired)
+			throws IOException, JsonClientException {
+		final RetryPolicy retry = retryPolicy;
+		boolean idempotent = retry != null;
+		for (final JsonClientBatch.Call<?> call: calls) {
+			idempotent = idempotent && retry.isIdempotent(call.method);
+		}
+		final int attempts = idempotent ? retry.getMaxAttempts() : 1;
+		for (int attempt = 1;; attempt++) {
+			try {
+				return jsonrpcBatchCallOnce(url, calls, authRequired);
+			} catch (IOException | JsonClientException e) {
+				if (attempt >= attempts || !retry.isRetryable(e)) {
+					throw e;
+				}
+				waitToRetry(retry, attempt, "batch call");
+			}
+		}
+	}
+	
+	private JsonNode jsonrpcBatchCallOnce(
+			final URL url,
+			final List<JsonClientBatch.Call<?>> calls,
+			final boolean authRequired)
+			throws IOException, JsonClientException {
+		final CircuitBreaker breaker = circuitBreaker;
+		if (breaker != null && !breaker.allowRequest(url)) {
+			throw new CircuitOpenException("The circuit breaker for " + url + " is open");
+		}
+		try {
+			final JsonNode response = jsonrpcBatchCallOnConnection(url, calls, authRequired);
+			if (breaker != null) {
+				if (response == null) {
+					breaker.recordIgnored(url);
+				} else {
+					// the server is up, even if it rejected the batch
+					breaker.recordSuccess(url);
+				}
+			}
+			return response;
+		} catch (ConnectionLimitException e) {
+			if (breaker != null) {
+				breaker.recordIgnored(url);
+			}
+			throw e;
+		} catch (IOException e) {
+			if (breaker != null) {
+				breaker.recordFailure(url);
+			}
+			throw e;
+		} catch (JsonClientException | RuntimeException | Error e) {
+			if (breaker != null) {
+				breaker.recordIgnored(url);
+			}
+			throw e;
+		}
+	}
+	
+	private JsonNode jsonrpcBatchCallOnConnection(
+			final URL url,
+			final List<JsonClientBatch.Call<?>> calls,
+			final boolean authRequired)
+			throws IOException, JsonClientException {
+		final HttpURLConnection conn = setupCall(url, authRequired, connectionReadTimeOut, this,
+				allowInsecureHttp, trustAllCerts);
+		InputStream istream = null;
+		InputStream rawStream = null;
+		boolean complete = false;
+		try {
+			sendRequest(conn, streamRequest, this, new RequestWriter() {
+				
+				@Override
+				public void write(final OutputStream os) throws IOException {
+					final JsonGenerator g = mapper.getFactory().createGenerator(
+							os, JsonEncoding.UTF8);
+					g.writeStartArray();
+					for (final JsonClientBatch.Call<?> call: calls) {
+						writeRequestObject(g, call.method, call.arg, call.id, call.context);
+					}
+					g.writeEndArray();
+					g.close();
+					os.flush();
+				}
+			});
+			if (conn.getResponseCode() == 500) {
+				istream = conn.getErrorStream();
+			} else {
+				istream = conn.getInputStream();
+			}
+			rawStream = istream;
+			istream = getDecodingInputStream(istream, conn.getContentEncoding());
+			final JsonNode response;
+			try {
+				response = mapper.readTree(new UnclosableInputStream(istream));
+			} catch (JsonParseException e) {
+				return null;
+			}
+			complete = true;
+			return response;
+		} finally {
+			try {
+				finishResponse(conn, istream, rawStream, complete);
+			} finally {
+				connectionProvider.releaseConnection(conn);
+			}
+		}
+	}
+	
+	/* Returns true if the server at the URL is known to not support batch requests. */
+	boolean isBatchUnsupported(final URL url) {
+		return batchUnsupported.contains(url.toString());
+	}
+	
+	void setBatchUnsupported(final URL url) {
+		batchUnsupported.add(url.toString());
+	}
+	
+	/* Converts a JSON RPC response object to the call result or a ServerException, as per
+	 * jsonrpcCallOnConnection.
+	 */
+	static <RET> RET getResult(final JsonNode response, final TypeReference<RET> cls,
+			final boolean ret)
+			throws IOException, JsonClientException {
+		final JsonNode error = response.get("error");
+		if (error != null && !error.isNull()) {
+			final Map<String, String> retError = mapper.readValue(mapper.treeAsTokens(error),
+					new TypeReference<Map<String, String>>() {});
+			final String data = retError.get("data") == null ?
+					retError.get("error") : retError.get("data");
+			throw new ServerException(retError.get("message"),
+					Integer.parseInt(retError.get("code")), retError.get("name"), data);
+		}
+		final JsonNode result = response.get("result");
+		final RET res = result == null ? null : mapper.readValue(mapper.treeAsTokens(result), cls);
+		if (res == null && ret) {
+			throw new ServerException("An unknown server error occured", 0, "Unknown", null);
+		}
+		return res;
+	}
+	
+	/* Makes a call, applying the retry and hedging policies and the circuit breaker. */
+	private <ARG, RET> RET jsonrpcCallWithPolicies(
+			final URL url,
+			final String method,
+			final ARG arg,
+			final TypeReference<RET> cls,
+			final boolean ret,
+			final boolean authRequired,
+			final RpcContext context,
+			final Integer readTimeOut,
+			final File file,
+			final AsyncCall asyncCall)
+			throws IOException, JsonClientException {
+		final RetryPolicy retry = retryPolicy;
+		final HedgingPolicy hedging = hedgingPolicy;
+		final boolean idempotent = retry != null && retry.isIdempotent(method);
+		final int attempts = idempotent ? retry.getMaxAttempts() : 1;
+		for (int attempt = 1;; attempt++) {
+			try {
+				if (idempotent && hedging != null && file == null) {
+					return jsonrpcCallHedged(url, method, arg, cls, ret, authRequired, context,
+							readTimeOut, asyncCall, hedging);
+				}
+				return jsonrpcCallOnce(url, method, arg, cls, ret, authRequired, context,
+						readTimeOut, file, asyncCall, hedging);
+			} catch (IOException | JsonClientException e) {
+				if (attempt >= attempts || !retry.isRetryable(e) ||
+						(asyncCall != null && asyncCall.isAborted())) {
+					throw e;
+				}
+				waitToRetry(retry, attempt, "call to " + method);
+			}
+		}
+	}
+	
+	private static void waitToRetry(final RetryPolicy retry, final int attempt, final String call)
+			throws InterruptedIOException {
+		try {
+			Thread.sleep(retry.getBackoffMS(attempt));
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to retry " + call);
+		}
+	}
+	
+	/* Makes a single attempt at a call, subject to the circuit breaker. */
+	private <ARG, RET> RET jsonrpcCallOnce(
+			final URL url,
+			final String method,
+			final ARG arg,
+			final TypeReference<RET> cls,
+			final boolean ret,
+			final boolean authRequired,
+			final RpcContext context,
+			final Integer readTimeOut,
+			final File file,
+			final AsyncCall asyncCall,
+			final HedgingPolicy hedging)
+			throws IOException, JsonClientException {
+		final CircuitBreaker breaker = circuitBreaker;
+		if (breaker != null && !breaker.allowRequest(url)) {
+			throw new CircuitOpenException("The circuit breaker for " + url + " is open");
+		}
+		final long start = System.nanoTime();
+		try {
+			final RET res = jsonrpcCallStatic(url, method, arg, cls, ret, authRequired, context,
+					streamRequest, readTimeOut, this, allowInsecureHttp, trustAllCerts, file,
+					asyncCall);
+			if (breaker != null) {
+				breaker.recordSuccess(url);
+			}
+			if (hedging != null) {
+				hedging.recordLatency(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+			}
+			return res;
+		} catch (ServerException e) {
+			// the server is up
+			if (breaker != null) {
+				breaker.recordSuccess(url);
+			}
+			throw e;
+		} catch (ConnectionLimitException e) {
+			// the client ran out of connections, the server wasn't contacted
+			if (breaker != null) {
+				breaker.recordIgnored(url);
+			}
+			throw e;
+		} catch (IOException e) {
+			if (breaker != null) {
+				if (asyncCall != null && asyncCall.isAborted()) {
+					breaker.recordIgnored(url);
+				} else {
+					breaker.recordFailure(url);
+				}
+			}
+			throw e;
+		} catch (JsonClientException | RuntimeException | Error e) {
+			if (breaker != null) {
+				breaker.recordIgnored(url);
+			}
+			throw e;
+		}
+	}
+	
+	/* Makes a call, and a second copy of the call if the first is slow. Returns the result
+	 * of the first to succeed and disconnects the other.
+	 * The first attempt runs on the calling thread and the hedge on the hedge executor, so
+	 * the call never waits on work queued behind it on the async executor.
+	 */
+	private <ARG, RET> RET jsonrpcCallHedged(
+			final URL url,
+			final String method,
+			final ARG arg,
+			final TypeReference<RET> cls,
+			final boolean ret,
+			final boolean authRequired,
+			final RpcContext context,
+			final Integer readTimeOut,
+			final AsyncCall asyncCall,
+			final HedgingPolicy hedging)
+			throws IOException, JsonClientException {
+		final long delay = hedging.getHedgeDelayMS();
+		if (delay < 0) {
+			return jsonrpcCallOnce(url, method, arg, cls, ret, authRequired, context,
+					readTimeOut, null, asyncCall, hedging);
+		}
+		final AsyncCall parent = asyncCall == null ? new AsyncCall() : asyncCall;
+		final AsyncCall primary = parent.newChild();
+		final AsyncCall hedge = parent.newChild();
+		final CompletableFuture<RET> hedgeResult = new CompletableFuture<>();
+		// 0 until the hedge is started (1) or can no longer be started (-1)
+		final AtomicInteger hedgeState = new AtomicInteger();
+		final AtomicReference<AsyncCall> winner = new AtomicReference<>();
+		final Runnable hedgeTask = new Runnable() {
+			
+			@Override
+			public void run() {
+				try {
+					final RET res = jsonrpcCallOnce(url, method, arg, cls, ret, authRequired,
+							context, readTimeOut, null, hedge, hedging);
+					if (winner.compareAndSet(null, hedge)) {
+						hedging.recordHedgeWin();
+						hedgeResult.complete(res);
+						primary.abort();
+					}
+				} catch (Throwable e) {
+					hedgeResult.completeExceptionally(e);
+				}
+			}
+		};
+		final ScheduledFuture<?> timer = getAsyncTimer().schedule(new Runnable() {
+			
+			@Override
+			public void run() {
+				// the first attempt may have finished, in which case no hedge is sent
+				if (winner.get() == null && hedgeState.compareAndSet(0, 1)) {
+					hedging.recordHedge();
+					try {
+						getHedgeExecutor().execute(hedgeTask);
+					} catch (RejectedExecutionException e) {
+						hedgeResult.completeExceptionally(e);
+					}
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+		try {
+			final RET res;
+			try {
+				res = jsonrpcCallOnce(url, method, arg, cls, ret, authRequired, context,
+						readTimeOut, null, primary, hedging);
+			} catch (IOException | JsonClientException | RuntimeException | Error e) {
+				/* if the hedge hasn't been started, stop it from starting. Otherwise the
+				 * hedge has won, and aborted this attempt, or its result is needed.
+				 */
+				if (hedgeState.compareAndSet(0, -1)) {
+					throw e;
+				}
+				return getHedgeResult(hedgeResult, method, e);
+			}
+			if (winner.compareAndSet(null, primary)) {
+				return res;
+			}
+			return getHedgeResult(hedgeResult, method, null);
+		} finally {
+			timer.cancel(false);
+			if (winner.get() != hedge) {
+				// stops the hedge if it's still running
+				hedge.abort();
+			}
+		}
+	}
+	
+	/* Waits for the hedge, which runs on the hedge executor and so always completes.
+	 * primaryError is thrown if the hedge failed after the first attempt failed.
+	 */
+	private static <RET> RET getHedgeResult(
+			final CompletableFuture<RET> hedgeResult,
+			final String method,
+			final Throwable primaryError)
+			throws IOException, JsonClientException {
+		try {
+			return hedgeResult.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for call to " + method);
+		} catch (ExecutionException e) {
+			final Throwable cause = primaryError == null ? e.getCause() : primaryError;
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof JsonClientException) {
+				throw (JsonClientException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+	
+	private static <ARG, RET> RET jsonrpcCallStatic(
+			final URL serviceUrl,
+			final String method,
+			final ARG arg,
+			final TypeReference<RET> cls,
+			final boolean ret,
+			final boolean authRequired,
+			final RpcContext context,
+			final boolean streamRequest,
+			final Integer connectionReadTimeOut,
+			final JsonClientCaller accessTokenHolder,
+			final boolean allowInsecureHttp,
+			final boolean trustAllCerts,
+			final File fileForNextRpcResponse,
+			final AsyncCall asyncCall)
+			throws IOException, JsonClientException {
+		final HttpURLConnection conn = setupCall(serviceUrl, authRequired,
+				connectionReadTimeOut, accessTokenHolder, allowInsecureHttp, trustAllCerts);
+		try {
+			if (asyncCall != null) {
+				asyncCall.setConnection(conn);
+			}
+			return jsonrpcCallOnConnection(conn, method, arg, cls, ret, context, streamRequest,
+					accessTokenHolder, fileForNextRpcResponse);
+		} finally {
+			accessTokenHolder.connectionProvider.releaseConnection(conn);
+		}
+	}
+	
+	private static <ARG, RET> RET jsonrpcCallOnConnection(
+			final HttpURLConnection conn,
+			final String method,
+			final ARG arg,
+			final TypeReference<RET> cls,
+			final boolean ret,
+			final RpcContext context,
+			final boolean streamRequest,
+			final JsonClientCaller accessTokenHolder,
+			final File fileForNextRpcResponse)
+			throws IOException, JsonClientException {
+		final String id = ("" + Math.random()).replace(".", "");
+		sendRequest(conn, streamRequest, accessTokenHolder, new RequestWriter() {
+			
+			@Override
+			public void write(final OutputStream os) throws IOException {
+				writeRequestDataStatic(method, arg, os, id, context);
+			}
+		});
+
+		// Read response
+		int code = conn.getResponseCode();
+		conn.getResponseMessage();
+		InputStream istream = null;
+		InputStream rawStream = null;
+		boolean complete = false;
+		try {
+			if (code == 500) {
+				istream = conn.getErrorStream();
+			} else {
+				istream = conn.getInputStream();
+			}
+			rawStream = istream;
+			istream = getDecodingInputStream(istream, conn.getContentEncoding());
+			// Parse response into json
+			UnclosableInputStream wrapStream = new UnclosableInputStream(istream);
+			if (fileForNextRpcResponse == null) {
+				JsonParser jp = mapper.getFactory().createParser(wrapStream);
+				try {
+					checkToken(JsonToken.START_OBJECT, jp.nextToken());
+				} catch (JsonParseException ex) {
+					String receivedHeadingMessage = wrapStream.getHeadingBuffer();
+					if (receivedHeadingMessage.startsWith("{"))
+						throw ex;
+					throw new JsonClientException("Server response is not in JSON format:\n" +
+							receivedHeadingMessage);
+				}
+				Map<String, String> retError = null;
+				RET res = null;
+				while (jp.nextToken() != JsonToken.END_OBJECT) {
+					checkToken(JsonToken.FIELD_NAME, jp.getCurrentToken());
+					String fieldName = jp.getCurrentName();
+					if (fieldName.equals("error")) {
+						jp.nextToken();
+						retError = jp.getCodec().readValue(jp, new TypeReference<Map<String, String>>() {
+						});
+					} else if (fieldName.equals("result")) {
+						checkFor500(code, wrapStream);
+						jp.nextToken();
+						try {
+							res = jp.getCodec().readValue(jp, cls);
+						} catch (JsonParseException e) {
+							throw new JsonClientException(
+									"Parse error while parsing response in: " +
+											wrapStream.getHeadingBuffer(), e);
+						}
+					} else {
+						jp.nextToken();
+						jp.getCodec().readValue(jp, Object.class);
+					}
+				}
+				complete = true;
+				if (retError != null) {
+					String data = retError.get("data") == null ? retError.get("error") : retError.get("data");
+					throw new ServerException(retError.get("message"),
+							new Integer(retError.get("code")), retError.get("name"),
+							data);
+				}
+				if (res == null && ret) {
+					throw new ServerException("An unknown server error occured",
+							0, "Unknown", null);
+				}
+				return res;
+			} else {
+				try {
+					final RET res = readFileResponse(
+							wrapStream, code, fileForNextRpcResponse, cls);
+					complete = true;
+					return res;
+				} catch (ServerException e) {
+					// the response was read in full before the error was parsed
+					complete = true;
+					throw e;
+				}
+			}
+		}
+		finally {
+			finishResponse(conn, istream, rawStream, complete);
+		}
+	}
+
+	/* Writes the response to the file, then scans the response envelope once to find the error
+	 * or the byte range of the result. The result is deserialized from a memory mapped view of
+	 * that range, so UObjects in the result read from the file without rescanning the
+	 * envelope.
+	 */
+	private static <RET> RET readFileResponse(
+			final UnclosableInputStream wrapStream,
+			final int code,
+			final File file,
+			final TypeReference<RET> cls)
+			throws IOException, JsonClientException {
+		try (final FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			final ReadableByteChannel in = Channels.newChannel(wrapStream);
+			long pos = 0;
+			long count;
+			while ((count = out.transferFrom(in, pos, FILE_TRANSFER_SIZE)) > 0) {
+				pos += count;
+			}
+		}
+		Map<String, String> retError = null;
+		boolean hasResult = false;
+		RET res = null;
+		long resultStart = -1;
+		long resultEnd = -1;
+		try (final JsonParser jp = mapper.getFactory().createParser(file)) {
+			checkToken(JsonToken.START_OBJECT, jp.nextToken());
+			while (jp.nextToken() == JsonToken.FIELD_NAME) {
+				final String fieldName = jp.getCurrentName();
+				final JsonToken value = jp.nextToken();
+				if (fieldName.equals("error")) {
+					retError = jp.readValueAs(new TypeReference<Map<String, String>>() {});
+				} else if (fieldName.equals("result")) {
+					hasResult = true;
+					if (value == JsonToken.START_ARRAY || value == JsonToken.START_OBJECT) {
+						resultStart = jp.getTokenLocation().getByteOffset();
+						jp.skipChildren();
+						resultEnd = jp.getCurrentLocation().getByteOffset();
+					} else {
+						res = jp.readValueAs(cls);
+					}
+				} else {
+					jp.skipChildren();
+				}
+			}
+		} catch (JsonParseException ex) {
+			String receivedHeadingMessage = wrapStream.getHeadingBuffer();
+			if (receivedHeadingMessage.startsWith("{"))
+				throw ex;
+			throw new JsonClientException("Server response is not in JSON format:\n" +
+					receivedHeadingMessage);
+		}
+		if (retError != null) {
+			String data = retError.get("data") == null ? retError.get("error") : retError.get("data");
+			throw new ServerException(retError.get("message"),
+					new Integer(retError.get("code")), retError.get("name"),
+					data);
+		}
+		if (!hasResult) {
+			throw new ServerException("An unknown server error occured", 0, "Unknown", null);
+		}
+		checkFor500(code, wrapStream);
+		if (resultStart < 0) {
+			return res;
+		}
+		final JsonTokenStream jts;
+		if (resultEnd - resultStart <= Integer.MAX_VALUE) {
+			try (final FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				jts = new JsonTokenStream(fc.map(FileChannel.MapMode.READ_ONLY, resultStart,
+						resultEnd - resultStart));
+			}
+		} else {
+			// too large for a single mapping
+			jts = new JsonTokenStream(file).setMemoryMapped(true)
+					.setRoot(Arrays.asList("result"));
+		}
+		try {
+			return mapper.readValue(jts, cls);
+		} finally {
+			// UObjects in the result reopen the stream as needed
+			jts.close();
+		}
+	}
+
+	/* Finishes with a response. If the response was read successfully, up to 64KiB of any
+	 * trailing data is drained so the connection can be kept alive and reused. Otherwise the
+	 * connection is disconnected rather than waiting on a server that may have stalled.
+	 */
+	private static void finishResponse(
+			final HttpURLConnection conn,
+			final InputStream istream,
+			final InputStream rawStream,
+			final boolean complete)
+			throws IOException {
+		if (!complete) {
+			conn.disconnect();
+			if (istream != null) {
+				try {
+					istream.close();
+				} catch (IOException ignore) {
+					// the connection is already closed
+				}
+			}
+			return;
+		}
+		if (istream != null) {
+			drain(istream);
+			if (rawStream != istream) {
+				// a decoder may stop reading before the end of the response body
+				drain(rawStream);
+			}
+			istream.close();
+		}
+	}
+	
+	/* Reads any remaining response data so the connection can be kept alive and reused. Large
+	 * remainders are left, and the connection discarded, rather than read.
+	 */
+	private static void drain(final InputStream istream) {
+		try {
+			final byte[] buf = new byte[8192];
+			long remaining = 64 * 1024;
+			int read;
+			while (remaining > 0 && (read = istream.read(buf)) >= 0) {
+				remaining -= read;
+			}
+		} catch (IOException ignore) {
+			// the connection won't be reused
+		}
+	}
+
+	private static InputStream getDecodingInputStream(
+			final InputStream istream,
+			final String contentEncoding)
+			throws IOException {
+		if (istream == null || contentEncoding == null) {
+			return istream;
+		}
+		final String enc = contentEncoding.trim();
+		if (enc.equalsIgnoreCase("gzip") || enc.equalsIgnoreCase("x-gzip")) {
+			return new GZIPInputStream(istream, 8192);
+		}
+		if (enc.equalsIgnoreCase("deflate")) {
+			return new InflaterInputStream(istream);
+		}
+		return istream;
+	}
+
+	/* Writes a request body to a stream. */
+	private interface RequestWriter {
+		void write(OutputStream os) throws IOException;
+	}
+	
+	private static void sendRequest(
+			final HttpURLConnection conn,
+			final boolean streamRequest,
+			final JsonClientCaller caller,
+			final RequestWriter writer)
+			throws IOException {
+		final boolean compress = caller.compressRequest;
+		final StreamingMode mode = streamRequest ? caller.streamingMode : null;
+		if (mode == StreamingMode.BUFFERED) {
+			final SpillingOutputStream buffer = new SpillingOutputStream(
+					caller.streamingBufferSize, caller.streamingTempDir);
+			try {
+				try {
+					writeRequest(buffer, compress, writer);
+				} finally {
+					buffer.close();
+				}
+				conn.setFixedLengthStreamingMode(buffer.getSize());
+				try (final OutputStream out = conn.getOutputStream()) {
+					buffer.writeTo(out);
+				}
+			} finally {
+				buffer.delete();
+			}
+			return;
+		}
+		if (mode == StreamingMode.CHUNKED ||
+				(mode == StreamingMode.COUNT_LENGTH && compress)) {
+			// the compressed size isn't known until the request is written
+			conn.setChunkedStreamingMode(0);
+		} else if (mode == StreamingMode.COUNT_LENGTH) {
+			// Calculate content-length before
+			final long size = calculateRequestLength(writer);
+			// Set content-length
+			conn.setFixedLengthStreamingMode(size);
+		}
+		// Write real data into http output stream
+		try (final OutputStream out = conn.getOutputStream()) {
+			writeRequest(out, compress, writer);
+		}
+	}
+	
+	private static void writeRequest(
+			final OutputStream out,
+			final boolean compress,
+			final RequestWriter writer)
+			throws IOException {
+		final GZIPOutputStream gzip = compress ? new GZIPOutputStream(out, 8192) : null;
+		final OutputStream target = compress ? gzip : out;
+		// the request writer closes the stream, which would close the connection stream
+		// before the flush that follows
+		writer.write(new FilterOutputStream(target) {
+			
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				target.write(b, off, len);
+			}
+			
+			@Override
+			public void close() throws IOException {
+				flush();
+			}
+		});
+		if (compress) {
+			gzip.finish();
+		}
+	}
+	
+	/* Holds data in memory up to a limit, and in a temporary file after that. */
+	private static class SpillingOutputStream extends OutputStream {
+		
+		private final int memoryLimit;
+		private final File tempDir;
+		private ByteArrayOutputStream memory = new ByteArrayOutputStream(8192);
+		private File file = null;
+		private OutputStream fileOut = null;
+		private long size = 0;
+		
+		private SpillingOutputStream(final int memoryLimit, final File tempDir) {
+			this.memoryLimit = memoryLimit;
+			this.tempDir = tempDir;
+		}
+		
+		@Override
+		public void write(final int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+		
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			if (fileOut == null && size + len > memoryLimit) {
+				file = File.createTempFile("jsonrpc_request", ".json", tempDir);
+				fileOut = new BufferedOutputStream(new FileOutputStream(file), 65536);
+				memory.writeTo(fileOut);
+				memory = null;
+			}
+			if (fileOut == null) {
+				memory.write(b, off, len);
+			} else {
+				fileOut.write(b, off, len);
+			}
+			size += len;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			if (fileOut != null) {
+				fileOut.close();
+			}
+		}
+		
+		private long getSize() {
+			return size;
+		}
+		
+		private void writeTo(final OutputStream out) throws IOException {
+			if (file == null) {
+				memory.writeTo(out);
+				return;
+			}
+			try (final InputStream is = new FileInputStream(file)) {
+				final byte[] buf = new byte[65536];
+				int read;
+				while ((read = is.read(buf)) >= 0) {
+					out.write(buf, 0, read);
+				}
+			}
+		}
+		
+		private void delete() {
+			memory = null;
+			if (fileOut != null) {
+				try {
+					fileOut.close();
+				} catch (IOException ignore) {
+					// nothing to be done
+				}
+			}
+			if (file != null) {
+				file.delete();
+			}
+		}
+	}
+
+	private static long calculateRequestLength(final RequestWriter writer) throws IOException {
+		final long[] sizeWrapper = new long[] {0};
+		OutputStream os = new OutputStream() {
+			@Override
+			public void write(int b) {sizeWrapper[0]++;}
+			@Override
+			public void write(byte[] b) {sizeWrapper[0] += b.length;}
+			@Override
+			public void write(byte[] b, int o, int l) {sizeWrapper[0] += l;}
+		};
+		writer.write(os);
+		return sizeWrapper[0];
+	}
+
+	private static void checkFor500(int code, UnclosableInputStream wrapStream)
+			throws IOException, JsonClientException {
+		if (code == 500) {
+			String header = wrapStream.getHeadingBuffer();
+			if (header.length() > 300)
+				header = header.substring(0, 300) + "...";
+			throw new JsonClientException("Server response contains result but has error code 500, " +
+					"response header is:\n" + header);
+		}
+	}
+
+	private static void checkToken(JsonToken expected, JsonToken actual) throws JsonClientException {
+		if (expected != actual)
+			throw new JsonClientException("Expected " + expected + " token but " + actual + " was occured");
+	}
+		
+	public void writeRequestData(String method, Object arg, OutputStream os, String id, RpcContext context) 
+			throws IOException {
+	    writeRequestDataStatic(method, arg, os, id, context);
+	}
+	
+	private static void writeRequestDataStatic(String method, Object arg, OutputStream os, String id, 
+	        RpcContext context) throws IOException {
+		JsonGenerator g = mapper.getFactory().createGenerator(os, JsonEncoding.UTF8);
+		writeRequestObject(g, method, arg, id, context);
+		g.close();
+		os.flush();
+	}
+	
+	private static void writeRequestObject(JsonGenerator g, String method, Object arg, String id,
+			RpcContext context) throws IOException {
+		g.writeStartObject();
+		g.writeObjectField("params", arg);
+		g.writeStringField("method", method);
+		g.writeStringField("version", "1.1");
+		g.writeStringField("id", id);
+		if (context != null)
+	        g.writeObjectField("context", context);		    
+		g.writeEndObject();
 	}
 	
 	public void setFileForNextRpcResponse(File f) {
@@ -18,4 +18,5 @@ public @interface JsonServerMethod {
 	boolean authOptional() default false;
 	boolean async() default true; // removed from JsonServerServlet, not from SDK
 	boolean sync() default true;  // removed from JsonServerServlet, not from SDK
+	boolean compressResponse() default true; // false for methods returning incompressible data
 }
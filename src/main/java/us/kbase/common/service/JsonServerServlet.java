@@ -7,16 +7,17 @@ import us.kbase.auth.AuthException;
 import us.kbase.auth.AuthToken;
 import us.kbase.auth.ConfigurableAuthService;
 
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.PushbackInputStream;
 import java.io.StringWriter;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -24,18 +25,44 @@ import java.lang.reflect.Type;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationSupport;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
@@ -44,8 +71,12 @@ import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
@@ -62,8 +93,23 @@ public class JsonServerServlet extends HttpServlet {
 	private static final String STRING_TRUE = "true";
 	private static final String X_FORWARDED_FOR = "X-Forwarded-For";
 	private static final String X_REAL_IP = "X-Real-IP";
+	private static final int RPC_COPY_BUFFER_SIZE = 100000;
+	private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+	// the most memory allocated for a request body before its bytes arrive
+	private static final int MAX_RPC_BODY_PREALLOCATION = RPC_COPY_BUFFER_SIZE * 10;
+	// reused across requests handled by the same thread when spilling RPC bodies to disk
+	private static final ThreadLocal<byte[]> RPC_COPY_BUFFER = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[RPC_COPY_BUFFER_SIZE];
+		}
+	};
 	private ObjectMapper mapper;
-	private final Map<String, Method> rpcCache = new HashMap<>();
+	private ObjectReader rpcCallReader;
+	private ObjectReader rpcBatchReader;
+	private final Map<String, RpcMethodDescriptor> rpcCache = new HashMap<>();
+	// writers for method results keyed by the runtime class of the result
+	private final Map<Class<?>, ObjectWriter> resultWriters = new ConcurrentHashMap<>();
 	public static final int LOG_LEVEL_ERR = JsonServerSyslog.LOG_LEVEL_ERR;
 	public static final int LOG_LEVEL_INFO = JsonServerSyslog.LOG_LEVEL_INFO;
 	public static final int LOG_LEVEL_DEBUG = JsonServerSyslog.LOG_LEVEL_DEBUG;
@@ -86,14 +132,41 @@ public class JsonServerServlet extends HttpServlet {
 	//set to 'true' for true, anything else for false.
 	private static final String CONFIG_AUTH_SERVICE_ALLOW_INSECURE_URL_PARAM =
 			"auth-service-url-allow-insecure";
+	//set to 'true' for true, anything else for false.
+	private static final String CONFIG_ASYNC_RPC_PARAM = "async-rpc";
+	private static final String CONFIG_COMPRESSION_LEVEL_PARAM = "rpc-compression-level";
+	private static final String CONFIG_COMPRESSION_THRESHOLD_PARAM = "rpc-compression-threshold";
+	private static final String CONTENT_ENCODING = "Content-Encoding";
+	private static final String ENCODING_GZIP = "gzip";
+	private static final String ENCODING_DEFLATE = "deflate";
+	private static final String ENCODING_IDENTITY = "identity";
+	/** The default size of the buffer for RPC responses, 64KiB. */
+	public static final int DEFAULT_RPC_RESPONSE_BUFFER_SIZE = 64 * 1024;
+	/** The default minimum size of an RPC response to compress, 1KiB. */
+	public static final int DEFAULT_RPC_COMPRESSION_THRESHOLD = 1024;
+	/** The default maximum size of a compressed RPC request body once decompressed, 256MiB. */
+	public static final long DEFAULT_MAX_RPC_DECODED_SIZE = 256L * 1024 * 1024;
+	// the maximum number of idle RPC response buffers kept for reuse
+	private static final int MAX_POOLED_RPC_RESPONSE_BUFFERS = 16;
+	// buffers are removed from the pool while in use, so they are never shared
+	private static final BlockingQueue<byte[]> RPC_RESPONSE_BUFFERS =
+			new ArrayBlockingQueue<>(MAX_POOLED_RPC_RESPONSE_BUFFERS);
 	private final AuthenticationHandler auth;
 	protected Map<String, String> config; // would like to be final but might break stuff
 	private Server jettyServer = null;
 	private Integer jettyPort = null;
 	private boolean startupFailed = false;
 	private Long maxRPCPackageSize = null;
+	private long maxRpcDecodedSize = DEFAULT_MAX_RPC_DECODED_SIZE;
 	private int maxRpcMemoryCacheSize = 16 * 1024 * 1024;
 	private File rpcDiskCacheTempDir = null;
+	private RpcBufferArena rpcBufferArena = null;
+	private Executor rpcExecutor = null;
+	private Executor rpcBatchExecutor = null;
+	private RpcAdmissionController rpcAdmissionController = null;
+	private int rpcResponseBufferSize = DEFAULT_RPC_RESPONSE_BUFFER_SIZE;
+	private int rpcCompressionLevel = Deflater.DEFAULT_COMPRESSION;
+	private int rpcCompressionThreshold = DEFAULT_RPC_COMPRESSION_THRESHOLD;
 	private final String specServiceName;
 	private String serviceVersion = null;
 	private final boolean trustX_IPHeaders;
@@ -174,6 +247,17 @@ public class JsonServerServlet extends HttpServlet {
 	 * * dont-trust-x-ip-headers or dont_trust_x_ip_headers: if either is true, the
 	 *   X-Forwarded-For and X-Real-IP headers will be ignored when determining the requester's
 	 *   IP address. See ({@link #getIpAddress(HttpServletRequest, boolean)} for more information.
+	 * * async-rpc: set to "true" (no quotes) to run RPC calls asynchronously on an executor
+	 *   created by {@link #newRpcExecutor()}. See {@link #setRpcExecutor(Executor)}.
+	 * * auth-cache-max-size, auth-cache-ttl-ms, auth-cache-negative-ttl-ms: cache token
+	 *   validation results. See {@link CachingAuthenticationHandler}.
+	 * * rpc-max-concurrent, rpc-max-concurrent.[Service.method], rpc-max-queued,
+	 *   rpc-queue-timeout-ms: limits on the number of concurrent RPC calls. See
+	 *   {@link RpcAdmissionController}.
+	 * * rpc-compression-level: the compression level for RPC responses. See
+	 *   {@link #setRpcCompressionLevel(int)}.
+	 * * rpc-compression-threshold: the minimum size of an RPC response to compress. See
+	 *   {@link #setRpcCompressionThreshold(int)}.
 	 *   
 	 * For logging properties, refer to {@link JsonServerSyslog}.
 	 * 
@@ -182,6 +266,8 @@ public class JsonServerServlet extends HttpServlet {
 	public JsonServerServlet(final String specServiceName) {
 		this.specServiceName = specServiceName;
 		this.mapper = new ObjectMapper().registerModule(new JacksonTupleModule());
+		this.rpcCallReader = mapper.readerFor(RpcCallData.class);
+		this.rpcBatchReader = mapper.readerFor(new TypeReference<List<RpcCallData>>() {});
 		setUpMethodCache();
 		sysLogger = new JsonServerSyslog(getServiceName(specServiceName),
 				KB_DEP, LOG_LEVEL_INFO, false);
@@ -191,14 +277,51 @@ public class JsonServerServlet extends HttpServlet {
 		this.trustX_IPHeaders =
 				!STRING_TRUE.equals(config.get(DONT_TRUST_X_IP_HEADERS)) &&
 				!STRING_TRUE.equals(config.get(DONT_TRUST_X_IP_HEADERS2));
+		if (STRING_TRUE.equals(config.get(CONFIG_ASYNC_RPC_PARAM))) {
+			rpcExecutor = newRpcExecutor();
+		}
+		try {
+			rpcAdmissionController = RpcAdmissionController.fromConfig(config);
+		} catch (IllegalArgumentException e) {
+			startupFailed();
+			sysLogger.log(LOG_LEVEL_ERR, getClass().getName(),
+					"Invalid RPC concurrency limits: " + e.getLocalizedMessage());
+		}
+		try {
+			final Integer level = getIntConfig(CONFIG_COMPRESSION_LEVEL_PARAM);
+			if (level != null) {
+				setRpcCompressionLevel(level);
+			}
+			final Integer threshold = getIntConfig(CONFIG_COMPRESSION_THRESHOLD_PARAM);
+			if (threshold != null) {
+				setRpcCompressionThreshold(threshold);
+			}
+		} catch (IllegalArgumentException e) {
+			startupFailed();
+			sysLogger.log(LOG_LEVEL_ERR, getClass().getName(),
+					"Invalid RPC compression settings: " + e.getLocalizedMessage());
+		}
 		//TODO TEST with default authentication. Needs auth server test mode running
 	}
 
+	private Integer getIntConfig(final String key) {
+		final String value = config.get(key);
+		if (value == null || value.trim().isEmpty()) {
+			return null;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(String.format(
+					"Configuration key %s must be an integer, got %s", key, value));
+		}
+	}
+
 	private void setUpMethodCache() {
 		for (final Method m : getClass().getMethods()) {
 			if (m.isAnnotationPresent(JsonServerMethod.class)) {
 				JsonServerMethod ann = m.getAnnotation(JsonServerMethod.class);
-				rpcCache.put(ann.rpc(), m);
+				rpcCache.put(ann.rpc(), new RpcMethodDescriptor(this, m, mapper));
 			}
 		}
 	}
@@ -245,6 +368,8 @@ public class JsonServerServlet extends HttpServlet {
 		this.auth = requireNonNull(auth, "auth");
 		this.trustX_IPHeaders = trustX_IPHeaders;
 		this.mapper = new ObjectMapper().registerModule(new JacksonTupleModule());
+		this.rpcCallReader = mapper.readerFor(RpcCallData.class);
+		this.rpcBatchReader = mapper.readerFor(new TypeReference<List<RpcCallData>>() {});
 		setUpMethodCache();
 		
 		this.sysLogger = requireNonNull(sysLogger, "sysLogger");
@@ -292,7 +417,8 @@ public class JsonServerServlet extends HttpServlet {
 			}
 		}
 		try {
-			return new DefaultAuthenticationHandler(new ConfigurableAuthService(c));
+			return getCachingAuth(new DefaultAuthenticationHandler(new ConfigurableAuthService(c)),
+					config);
 		} catch (IOException e) {
 			startupFailed();
 			sysLogger.log(LOG_LEVEL_ERR, getClass().getName(),
@@ -302,6 +428,19 @@ public class JsonServerServlet extends HttpServlet {
 		}
 	}
 	
+	private AuthenticationHandler getCachingAuth(
+			final AuthenticationHandler auth,
+			final Map<String, String> config) {
+		try {
+			return CachingAuthenticationHandler.fromConfig(auth, config);
+		} catch (IllegalArgumentException e) {
+			startupFailed();
+			sysLogger.log(LOG_LEVEL_ERR, getClass().getName(),
+					"Invalid authentication cache configuration: " + e.getLocalizedMessage());
+			return auth;
+		}
+	}
+	
 	/**
 	 * Returns the configuration from the KBase deploy.cfg config file.
 	 * Returns an empty map if no config file is specified, if the file
@@ -452,7 +591,10 @@ public class JsonServerServlet extends HttpServlet {
 		checkMemoryForRpc();
 		String remoteIp = getIpAddress(request, trustX_IPHeaders);
 		setupResponseHeaders(request, response);
-		OutputStream output = response.getOutputStream();
+		final RpcResponseOutputStream output = new RpcResponseOutputStream(response,
+				rpcResponseBufferSize, rpcCompressionLevel == Deflater.NO_COMPRESSION ? null :
+					selectResponseEncoding(request.getHeader("Accept-Encoding")),
+				rpcCompressionLevel, rpcCompressionThreshold);
 		ResponseStatusSetter respStatus = new ResponseStatusSetter() {
 			@Override
 			public void setStatus(int status) {
@@ -463,107 +605,755 @@ public class JsonServerServlet extends HttpServlet {
 		info.setIp(remoteIp);
 		JsonTokenStream jts = null; 
 		File tempFile = null;
+		ByteBuffer arenaBuffer = null;
+		InputStream decodingInput = null;
+		boolean async = false;
 		try {
-			InputStream input = request.getInputStream();
-			byte[] buffer = new byte[100000];
-			ByteArrayOutputStream bufferOs = new ByteArrayOutputStream();
-			long rpcSize = 0;
-			while (rpcSize < maxRpcMemoryCacheSize) {
-				int count = input.read(buffer, 0, Math.min(buffer.length, maxRpcMemoryCacheSize - (int)rpcSize));
-				if (count < 0)
-					break;
-				bufferOs.write(buffer, 0, count);
-				rpcSize += count;
+			final String contentEncoding = request.getHeader(CONTENT_ENCODING);
+			final InputStream input;
+			final int contentLength;
+			if (contentEncoding == null || contentEncoding.trim().isEmpty() ||
+					contentEncoding.trim().equalsIgnoreCase(ENCODING_IDENTITY)) {
+				input = request.getInputStream();
+				contentLength = request.getContentLength();
+			} else if (isRpcTooBig(request.getContentLength())) {
+				writeError(respStatus, -32700, getRpcTooBigMessage(), output);
+				request.getInputStream().close();
+				return;
+			} else {
+				decodingInput = getDecodingInputStream(
+						request.getInputStream(), contentEncoding.trim());
+				input = decodingInput == null ? null :
+						new DecodedSizeLimitInputStream(decodingInput, maxRpcDecodedSize);
+				if (input == null) {
+					writeError(respStatus, -32700, "Unsupported content encoding: " +
+							contentEncoding, output);
+					request.getInputStream().close();
+					return;
+				}
+				// the content length is the compressed size, so is no use for reading the body
+				contentLength = -1;
+			}
+			if (contentLength > 0 && isRpcTooBig(contentLength)) {
+				writeError(respStatus, -32700, getRpcTooBigMessage(), output);
+				input.close();
+				return;
 			}
-			if (rpcSize >= maxRpcMemoryCacheSize) {
-				OutputStream os;
-				if (rpcDiskCacheTempDir == null) {
-					os = bufferOs;
+			if (rpcBufferArena != null) {
+				arenaBuffer = rpcBufferArena.acquire();
+				if (arenaBuffer == null) {
+					writeError(respStatus, -32000, "The server is too busy to process the " +
+							"request, please try again later", output);
+					input.close();
+					return;
+				}
+				final PushbackInputStream pbinput = new PushbackInputStream(input, 1);
+				final boolean complete = readRpcBody(pbinput, arenaBuffer);
+				if (complete && isRpcTooBig(arenaBuffer.remaining())) {
+					writeError(respStatus, -32700, getRpcTooBigMessage(), output);
+					input.close();
+					return;
+				}
+				if (!complete && rpcDiskCacheTempDir == null) {
+					writeError(respStatus, -32700, "Object is too big, length is more than " +
+							rpcBufferArena.getPerRequestCap() + " bytes", output);
+					input.close();
+					return;
+				}
+				if (complete) {
+					jts = new JsonTokenStream(arenaBuffer);
 				} else {
 					tempFile = generateTempFile();
-					os = new BufferedOutputStream(new FileOutputStream(tempFile));
-					bufferOs.close();
-					os.write(bufferOs.toByteArray());
-					bufferOs = null;
-				}
-				while (true) {
-					int count = input.read(buffer, 0, buffer.length);
-					if (count < 0)
-						break;
-					os.write(buffer, 0, count);
-					rpcSize += count;
-					if (maxRPCPackageSize != null && rpcSize > maxRPCPackageSize) {
-						writeError(respStatus, -32700, "Object is too big, length is more than " + maxRPCPackageSize + " bytes", output);
-						os.close();
+					if (!spillRpcBody(arenaBuffer, pbinput, tempFile)) {
+						writeError(respStatus, -32700, getRpcTooBigMessage(), output);
 						input.close();
 						return;
 					}
+					jts = new JsonTokenStream(mapRpcBody(tempFile));
 				}
-				os.close();
-				if (tempFile == null) {
-					jts = new JsonTokenStream(((ByteArrayOutputStream)os).toByteArray());
-					bufferOs = null;
+			} else {
+				final byte[] head;
+				final boolean complete;
+				if (contentLength > 0 && (contentLength < maxRpcMemoryCacheSize ||
+						rpcDiskCacheTempDir == null)) {
+					if (contentLength > MAX_ARRAY_SIZE) {
+						writeError(respStatus, -32700, "Object is too big, length is more " +
+								"than " + MAX_ARRAY_SIZE + " bytes", output);
+						input.close();
+						return;
+					}
+					// the size is known and the body will stay in memory, so read it in one go
+					head = readRpcBody(input, contentLength, contentLength);
+					complete = true;
+				} else if (rpcDiskCacheTempDir == null) {
+					head = readRpcBody(input, -1, maxRPCPackageSize == null ? MAX_ARRAY_SIZE :
+							(int) Math.min(maxRPCPackageSize + 1, MAX_ARRAY_SIZE));
+					complete = true;
+				} else if (contentLength > 0) {
+					// the body will be cached on disk, no point in buffering it in memory first
+					head = new byte[0];
+					complete = false;
+				} else {
+					head = readRpcBody(input, -1, maxRpcMemoryCacheSize);
+					complete = head.length < maxRpcMemoryCacheSize;
+				}
+				if (isRpcTooBig(head.length)) {
+					writeError(respStatus, -32700, getRpcTooBigMessage(), output);
+					input.close();
+					return;
+				}
+				if (complete) {
+					jts = new JsonTokenStream(head);
 				} else {
+					tempFile = generateTempFile();
+					if (!spillRpcBody(head, input, tempFile)) {
+						writeError(respStatus, -32700, getRpcTooBigMessage(), output);
+						input.close();
+						return;
+					}
 					jts = new JsonTokenStream(tempFile);
 				}
-			} else {
-				bufferOs.close();
-				jts = new JsonTokenStream(bufferOs.toByteArray());
 			}
-			bufferOs = null;
 			String token = request.getHeader("Authorization");
 			String requestHeaderXFF = request.getHeader(X_FORWARDED_FOR);
-			RpcCallData rpcCallData;
+			final RpcCallData rpcCallData;
+			final List<RpcCallData> batch;
 			try {
-				rpcCallData = mapper.readValue(jts, RpcCallData.class);
+				if (jts.nextToken() == JsonToken.START_ARRAY) {
+					batch = rpcBatchReader.readValue(jts);
+					rpcCallData = null;
+				} else {
+					batch = null;
+					rpcCallData = rpcCallReader.readValue(jts);
+				}
 			} catch (Exception ex) {
 				writeError(respStatus, -32700, "Parse error (" + ex.getMessage() + ")", ex, output);
 				return;
 			} finally {
 				jts.close();
 			}
-			Object idNode = rpcCallData.getId();
-			try {
-				info.setId(idNode == null ? null : "" + idNode);
-			} catch (Exception ex) {}
-			String rpcName = rpcCallData.getMethod();
-			if (rpcName == null) {
-				writeError(respStatus, -32601, "JSON RPC method property is not defined", output);
+			if (batch != null && batch.isEmpty()) {
+				writeError(respStatus, -32600, "JSON RPC batch is empty", output);
 				return;
 			}
-			rpcName = correctRpcMethod(rpcName);
-			List<UObject> paramsList = rpcCallData.getParams();
-			if (paramsList == null) {
-				writeError(respStatus, -32601, "JSON RPC params property is not defined", output);
-				return;
+			if (rpcExecutor != null) {
+				// the async call takes ownership of the request data
+				async = startAsyncRpcCall(request, response, rpcCallData, batch, token, info,
+						requestHeaderXFF, respStatus, output, jts, tempFile, arenaBuffer);
 			}
-			if (!rpcName.contains(".")) {
-				rpcName = specServiceName + "." + rpcName;
-				rpcCallData.setMethod(rpcName);
+			if (!async) {
+				processRpcRequest(rpcCallData, batch, token, info, requestHeaderXFF, respStatus,
+						output);
 			}
-			RpcContext context = rpcCallData.getContext();
-			if (context == null) {
-				context = new RpcContext();
-				rpcCallData.setContext(context);
-			}
-			if (context.getCallStack() == null)
-				context.setCallStack(new ArrayList<MethodCall>());
-			context.getCallStack().add(new MethodCall().withMethod(rpcName)
-					.withTime(DATE_FORMATTER.print(new DateTime())));
-			processRpcCall(rpcCallData, token, info, requestHeaderXFF, respStatus, output, false);
+		} catch (DecodedRpcTooBigException ex) {
+			writeError(respStatus, -32700, ex.getMessage(), output);
 		} catch (Exception ex) {
 			writeError(respStatus, -32400, "Unexpected internal error (" + ex.getMessage() + ")", ex, output);    
 		} finally {
-			if (jts != null) {
+			if (decodingInput != null) {
+				// the body has been read by now, so this just frees the decompressor
 				try {
-					jts.close();
+					decodingInput.close();
 				} catch (Exception ignore) {}
-				if (tempFile != null) {
+			}
+			if (!async) {
+				try {
+					releaseRpcData(jts, tempFile, arenaBuffer);
+				} finally {
+					output.finish();
+				}
+			}
+		}
+	}
+	
+	/* Returns a stream that decodes the request body, or null if the encoding is not
+	 * supported.
+	 */
+	private static InputStream getDecodingInputStream(
+			final InputStream input,
+			final String contentEncoding)
+			throws IOException {
+		if (contentEncoding.equalsIgnoreCase(ENCODING_GZIP) ||
+				contentEncoding.equalsIgnoreCase("x-gzip")) {
+			return new GZIPInputStream(input, 8192);
+		}
+		if (contentEncoding.equalsIgnoreCase(ENCODING_DEFLATE)) {
+			return new InflaterInputStream(input);
+		}
+		return null;
+	}
+	
+	@SuppressWarnings("serial")
+	private static class DecodedRpcTooBigException extends IOException {
+		
+		private DecodedRpcTooBigException(final long limit) {
+			super("Object is too big, decompressed length is more than " + limit + " bytes");
+		}
+	}
+	
+	/* Stops a decompressed request body from expanding beyond the limit, since a small
+	 * compressed body can decompress to gigabytes.
+	 */
+	private static class DecodedSizeLimitInputStream extends FilterInputStream {
+		
+		private final long limit;
+		private long size = 0;
+		
+		private DecodedSizeLimitInputStream(final InputStream in, final long limit) {
+			super(in);
+			this.limit = limit;
+		}
+		
+		private int count(final int read) throws DecodedRpcTooBigException {
+			if (read > 0) {
+				size += read;
+				if (size > limit) {
+					throw new DecodedRpcTooBigException(limit);
+				}
+			}
+			return read;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			final int b = super.read();
+			if (b >= 0) {
+				count(1);
+			}
+			return b;
+		}
+		
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			return count(super.read(b, off, len));
+		}
+		
+		@Override
+		public long skip(final long n) throws IOException {
+			return count((int) super.skip(Math.min(n, Integer.MAX_VALUE)));
+		}
+	}
+	
+	/* Picks the encoding for the response from the Accept-Encoding header, preferring gzip.
+	 * A * accepts any coding that isn't listed explicitly. Returns null if the client doesn't
+	 * accept gzip or deflate.
+	 */
+	private static String selectResponseEncoding(final String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return null;
+		}
+		// null if the coding isn't listed
+		Boolean gzip = null;
+		Boolean deflate = null;
+		Boolean any = null;
+		for (final String coding: acceptEncoding.split(",")) {
+			final String[] parts = coding.split(";");
+			final String name = parts[0].trim().toLowerCase();
+			boolean accepted = true;
+			for (int i = 1; i < parts.length; i++) {
+				final String param = parts[i].trim();
+				if (param.startsWith("q=")) {
 					try {
-						tempFile.delete();
-					} catch (Exception ignore) {}
+						accepted = Double.parseDouble(param.substring(2).trim()) > 0;
+					} catch (NumberFormatException e) {
+						accepted = false;
+					}
+				}
+			}
+			if (name.equals(ENCODING_GZIP) || name.equals("x-gzip")) {
+				gzip = accepted || Boolean.TRUE.equals(gzip);
+			} else if (name.equals(ENCODING_DEFLATE)) {
+				deflate = accepted;
+			} else if (name.equals("*")) {
+				any = accepted;
+			}
+		}
+		final boolean anyAccepted = Boolean.TRUE.equals(any);
+		if (gzip == null ? anyAccepted : gzip) {
+			return ENCODING_GZIP;
+		}
+		if (deflate == null ? anyAccepted : deflate) {
+			return ENCODING_DEFLATE;
+		}
+		return null;
+	}
+	
+	/* Processes a single call or a batch of calls. */
+	private void processRpcRequest(
+			final RpcCallData rpcCallData,
+			final List<RpcCallData> batch,
+			final String token,
+			final JsonServerSyslog.RpcInfo info,
+			final String requestHeaderXFF,
+			final ResponseStatusSetter respStatus,
+			final RpcResponseOutputStream output)
+			throws IOException {
+		if (batch == null) {
+			if (prepareRpcCall(rpcCallData, info, respStatus, output)) {
+				final RpcMethodDescriptor rpcMethod = rpcCache.get(rpcCallData.getMethod());
+				if (rpcMethod != null && !rpcMethod.isCompressResponse()) {
+					output.setCompressible(false);
+				}
+				processAdmittedRpcCall(rpcCallData, token, info, requestHeaderXFF, respStatus,
+						output);
+			}
+		} else {
+			processRpcBatch(batch, token, info, requestHeaderXFF, output);
+		}
+	}
+	
+	/* Checks the call is valid, qualifies the method name with the service name if necessary,
+	 * and adds the call to the context's call stack.
+	 * Returns false if the call is invalid, in which case an error has been written.
+	 */
+	private boolean prepareRpcCall(
+			final RpcCallData rpcCallData,
+			final JsonServerSyslog.RpcInfo info,
+			final ResponseStatusSetter respStatus,
+			final OutputStream output) {
+		Object idNode = rpcCallData.getId();
+		try {
+			info.setId(idNode == null ? null : "" + idNode);
+		} catch (Exception ex) {}
+		String rpcName = rpcCallData.getMethod();
+		if (rpcName == null) {
+			writeError(respStatus, -32601, "JSON RPC method property is not defined", output);
+			return false;
+		}
+		rpcName = correctRpcMethod(rpcName);
+		List<UObject> paramsList = rpcCallData.getParams();
+		if (paramsList == null) {
+			writeError(respStatus, -32601, "JSON RPC params property is not defined", output);
+			return false;
+		}
+		if (!rpcName.contains(".")) {
+			rpcName = specServiceName + "." + rpcName;
+			rpcCallData.setMethod(rpcName);
+		}
+		RpcContext context = rpcCallData.getContext();
+		if (context == null) {
+			context = new RpcContext();
+			rpcCallData.setContext(context);
+		}
+		if (context.getCallStack() == null)
+			context.setCallStack(new ArrayList<MethodCall>());
+		context.getCallStack().add(new MethodCall().withMethod(rpcName)
+				.withTime(DATE_FORMATTER.print(new DateTime())));
+		return true;
+	}
+	
+	/* Runs each call in the batch and writes the responses as a JSON array in the same order as
+	 * the calls. Errors are reported per call, so the HTTP status is not changed.
+	 * If a batch executor is set, the calls are run in parallel.
+	 */
+	private void processRpcBatch(
+			final List<RpcCallData> batch,
+			final String token,
+			final JsonServerSyslog.RpcInfo info,
+			final String requestHeaderXFF,
+			final OutputStream output)
+			throws IOException {
+		final ResponseStatusSetter callStatus = new ResponseStatusSetter() {
+			@Override
+			public void setStatus(int status) {
+				// errors are reported in the response for each call
+			}
+		};
+		final Executor executor = rpcBatchExecutor;
+		final List<Future<byte[]>> results = new ArrayList<>();
+		if (executor != null && batch.size() > 1) {
+			for (final RpcCallData rpcCallData: batch) {
+				results.add(submitBatchedRpcCall(executor, rpcCallData, token, info,
+						requestHeaderXFF, callStatus));
+			}
+		}
+		try {
+			final OutputStream out = new UnclosableOutputStream(output);
+			out.write('[');
+			for (int i = 0; i < batch.size(); i++) {
+				if (i > 0) {
+					out.write(',');
+				}
+				if (results.isEmpty()) {
+					processBatchedRpcCall(batch.get(i), token, info, requestHeaderXFF, callStatus,
+							out);
+				} else {
+					out.write(getBatchedRpcResult(results.get(i)));
+				}
+			}
+			out.write(']');
+			out.flush();
+		} finally {
+			// the calls read the request data, which is released when this method returns
+			awaitBatchedRpcCalls(results);
+		}
+	}
+	
+	/* Waits for all the calls to complete, ignoring their results. */
+	private static void awaitBatchedRpcCalls(final List<Future<byte[]>> results) {
+		boolean interrupted = false;
+		for (final Future<byte[]> result: results) {
+			while (!result.isDone()) {
+				try {
+					result.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException | CancellationException e) {
+					// already reported, or the response was abandoned
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private void processBatchedRpcCall(
+			final RpcCallData rpcCallData,
+			final String token,
+			final JsonServerSyslog.RpcInfo info,
+			final String requestHeaderXFF,
+			final ResponseStatusSetter respStatus,
+			final OutputStream output) {
+		info.reset();
+		if (rpcCallData == null) {
+			writeError(respStatus, -32600, "JSON RPC call in batch is null", output);
+			return;
+		}
+		if (prepareRpcCall(rpcCallData, info, respStatus, output)) {
+			processAdmittedRpcCall(rpcCallData, token, info, requestHeaderXFF, respStatus, output);
+		}
+	}
+	
+	/* Runs the call on the executor, or in the current thread if the executor rejects it. */
+	private Future<byte[]> submitBatchedRpcCall(
+			final Executor executor,
+			final RpcCallData rpcCallData,
+			final String token,
+			final JsonServerSyslog.RpcInfo info,
+			final String requestHeaderXFF,
+			final ResponseStatusSetter respStatus)
+			throws IOException {
+		final JsonTokenStream jts = rebindParams(rpcCallData);
+		final JsonServerSyslog.RpcInfo callInfo = new JsonServerSyslog.RpcInfo().copyFrom(info);
+		final FutureTask<byte[]> task = new FutureTask<>(new Callable<byte[]>() {
+			
+			@Override
+			public byte[] call() throws Exception {
+				try {
+					final ByteArrayOutputStream result = new ByteArrayOutputStream();
+					processBatchedRpcCall(rpcCallData, token,
+							JsonServerSyslog.getCurrentRpcInfo().copyFrom(callInfo),
+							requestHeaderXFF, respStatus, result);
+					return result.toByteArray();
+				} finally {
+					if (jts != null) {
+						jts.close();
+					}
 				}
 			}
+		});
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			task.run();
+		}
+		return task;
+	}
+	
+	/* UObjects read from the same request share a token stream, which is not thread safe, so
+	 * give the call parameters their own copy of the stream.
+	 * Returns the copy, or null if no parameters use the token stream.
+	 */
+	private static JsonTokenStream rebindParams(final RpcCallData rpcCallData)
+			throws IOException {
+		final List<UObject> params = rpcCallData == null ? null : rpcCallData.getParams();
+		if (params == null) {
+			return null;
+		}
+		JsonTokenStream jts = null;
+		final List<UObject> rebound = new ArrayList<>(params.size());
+		for (final UObject param: params) {
+			if (param != null && param.isTokenStream()) {
+				if (jts == null) {
+					jts = ((JsonTokenStream) param.getUserObject()).copy();
+				}
+				rebound.add(new UObject(jts, param.getRootPath()));
+			} else {
+				rebound.add(param);
+			}
+		}
+		rpcCallData.setParams(rebound);
+		return jts;
+	}
+	
+	private static byte[] getBatchedRpcResult(final Future<byte[]> result) throws IOException {
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for batched call", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw new IOException("Batched call failed: " + e.getCause().getMessage(),
+					e.getCause());
+		}
+	}
+	
+	/* Runs the call if the admission controller, if any, admits it, or writes a server busy
+	 * error otherwise.
+	 */
+	private void processAdmittedRpcCall(
+			final RpcCallData rpcCallData,
+			final String token,
+			final JsonServerSyslog.RpcInfo info,
+			final String requestHeaderXFF,
+			final ResponseStatusSetter respStatus,
+			final OutputStream output) {
+		final RpcAdmissionController admission = rpcAdmissionController;
+		if (admission == null) {
+			processRpcCall(rpcCallData, token, info, requestHeaderXFF, respStatus, output, false);
+			return;
+		}
+		final String rpcName = rpcCallData.getMethod();
+		final boolean admitted;
+		try {
+			admitted = admission.acquire(rpcName);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			writeError(respStatus, -32400, "Interrupted while waiting to run method " + rpcName,
+					e, output);
+			return;
+		}
+		if (!admitted) {
+			writeError(respStatus, -32000, "The server is too busy to run method " + rpcName +
+					", please try again later", output);
+			return;
+		}
+		try {
+			processRpcCall(rpcCallData, token, info, requestHeaderXFF, respStatus, output, false);
+		} finally {
+			admission.release(rpcName);
+		}
+	}
+	
+	private void releaseRpcData(
+			final JsonTokenStream jts,
+			final File tempFile,
+			final ByteBuffer arenaBuffer) {
+		if (jts != null) {
+			try {
+				jts.close();
+			} catch (Exception ignore) {}
+		}
+		if (tempFile != null) {
+			try {
+				tempFile.delete();
+			} catch (Exception ignore) {}
+		}
+		if (arenaBuffer != null) {
+			if (jts != null) {
+				// UObjects kept past the call must not read the next request in the buffer
+				try {
+					jts.releaseDataSource();
+				} catch (Exception ignore) {}
+			}
+			rpcBufferArena.release(arenaBuffer);
+		}
+	}
+	
+	/* Suspends the request and runs the RPC call on the RPC executor, freeing the container
+	 * thread. The request data is released when the call completes.
+	 * Returns false if the container does not support continuations, in which case the caller
+	 * should run the call synchronously.
+	 */
+	private boolean startAsyncRpcCall(
+			final HttpServletRequest request,
+			final HttpServletResponse response,
+			final RpcCallData rpcCallData,
+			final List<RpcCallData> batch,
+			final String token,
+			final JsonServerSyslog.RpcInfo info,
+			final String requestHeaderXFF,
+			final ResponseStatusSetter respStatus,
+			final RpcResponseOutputStream output,
+			final JsonTokenStream jts,
+			final File tempFile,
+			final ByteBuffer arenaBuffer) {
+		final Continuation continuation;
+		try {
+			continuation = ContinuationSupport.getContinuation(request);
+		} catch (IllegalStateException e) {
+			return false;
+		}
+		continuation.setTimeout(0); // never expire, the call always completes the continuation
+		continuation.suspend(response);
+		// the request thread's info is reused for the next request, so take a snapshot
+		final JsonServerSyslog.RpcInfo callInfo = new JsonServerSyslog.RpcInfo().copyFrom(info);
+		final Runnable call = new Runnable() {
+			
+			@Override
+			public void run() {
+				try {
+					final JsonServerSyslog.RpcInfo workerInfo =
+							JsonServerSyslog.getCurrentRpcInfo().copyFrom(callInfo);
+					processRpcRequest(rpcCallData, batch, token, workerInfo, requestHeaderXFF,
+							respStatus, output);
+				} catch (Exception ex) {
+					writeError(respStatus, -32400, "Unexpected internal error (" +
+							ex.getMessage() + ")", ex, output);
+				} finally {
+					releaseRpcData(jts, tempFile, arenaBuffer);
+					finishAsyncRpcCall(output, continuation);
+				}
+			}
+		};
+		try {
+			rpcExecutor.execute(call);
+		} catch (RejectedExecutionException e) {
+			try {
+				writeError(respStatus, -32000, "The server is too busy to process the " +
+						"request, please try again later", output);
+			} finally {
+				releaseRpcData(jts, tempFile, arenaBuffer);
+				finishAsyncRpcCall(output, continuation);
+			}
+		}
+		return true;
+	}
+	
+	private void finishAsyncRpcCall(
+			final RpcResponseOutputStream output,
+			final Continuation continuation) {
+		try {
+			output.finish();
+		} catch (IOException e) {
+			// the client has most likely gone away, nothing more to be done
+			sysLogger.log(LOG_LEVEL_ERR, getClass().getName(),
+					"Couldn't send the RPC response: " + e.getMessage());
+		} finally {
+			continuation.complete();
+		}
+	}
+	
+	private boolean isRpcTooBig(final long rpcSize) {
+		return maxRPCPackageSize != null && rpcSize > maxRPCPackageSize;
+	}
+	
+	private String getRpcTooBigMessage() {
+		return "Object is too big, length is more than " + maxRPCPackageSize + " bytes";
+	}
+	
+	/* Reads the RPC body into an array without intermediate copies when the content length is
+	 * known (> 0) and small. Otherwise the array is grown as the bytes arrive and trimmed once
+	 * at the end, so a client can't claim a huge content length to make the server allocate
+	 * memory it never uses. Reads at most limit bytes.
+	 */
+	private static byte[] readRpcBody(
+			final InputStream input,
+			final int contentLength,
+			final int limit)
+			throws IOException {
+		byte[] data = new byte[Math.min(limit, contentLength > 0 ?
+				Math.min(contentLength, MAX_RPC_BODY_PREALLOCATION) : RPC_COPY_BUFFER_SIZE)];
+		int size = 0;
+		while (size < limit) {
+			if (size == data.length) {
+				data = Arrays.copyOf(data, (int) Math.min(limit, data.length * 2L));
+			}
+			final int count = input.read(data, size, data.length - size);
+			if (count < 0) {
+				break;
+			}
+			size += count;
+		}
+		return size == data.length ? data : Arrays.copyOf(data, size);
+	}
+	
+	/* Writes the already read part of the RPC body and the remainder of the input stream to
+	 * the file. Returns false if the body is larger than the max RPC package size.
+	 */
+	private boolean spillRpcBody(final byte[] head, final InputStream input, final File file)
+			throws IOException {
+		final byte[] buffer = RPC_COPY_BUFFER.get();
+		long rpcSize = head.length;
+		try (final OutputStream os = new FileOutputStream(file)) {
+			os.write(head);
+			while (true) {
+				final int count = input.read(buffer, 0, buffer.length);
+				if (count < 0) {
+					return true;
+				}
+				os.write(buffer, 0, count);
+				rpcSize += count;
+				if (isRpcTooBig(rpcSize)) {
+					return false;
+				}
+			}
+		}
+	}
+
+	/* Reads the RPC body into the buffer until the buffer is full or the input is exhausted.
+	 * Returns true and flips the buffer if the entire body fit in the buffer.
+	 */
+	private static boolean readRpcBody(final PushbackInputStream input, final ByteBuffer buffer)
+			throws IOException {
+		final ReadableByteChannel channel = Channels.newChannel(input);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				buffer.flip();
+				return true;
+			}
+		}
+		final int next = input.read();
+		if (next < 0) {
+			buffer.flip();
+			return true;
+		}
+		input.unread(next);
+		return false;
+	}
+	
+	/* Writes the contents of the full buffer and the remainder of the input stream to the file,
+	 * reusing the buffer for the copy. Returns false if the body is larger than the max RPC
+	 * package size.
+	 */
+	private boolean spillRpcBody(final ByteBuffer buffer, final InputStream input, final File file)
+			throws IOException {
+		final ReadableByteChannel in = Channels.newChannel(input);
+		long rpcSize = 0;
+		try (final FileChannel out = FileChannel.open(file.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			buffer.flip();
+			while (true) {
+				rpcSize += buffer.remaining();
+				if (isRpcTooBig(rpcSize)) {
+					return false;
+				}
+				while (buffer.hasRemaining()) {
+					out.write(buffer);
+				}
+				buffer.clear();
+				if (in.read(buffer) < 0) {
+					return true;
+				}
+				buffer.flip();
+			}
+		}
+	}
+	
+	/* Maps the spilled RPC body into memory if possible, otherwise returns the file. */
+	private static Object mapRpcBody(final File file) throws IOException {
+		try (final FileChannel channel = FileChannel.open(
+				file.toPath(), StandardOpenOption.READ)) {
+			final long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				return file;
+			}
+			return channel.map(MapMode.READ_ONLY, 0, size);
 		}
 	}
 
@@ -585,7 +1375,7 @@ public class JsonServerServlet extends HttpServlet {
 				br.close();
 			}
 			os = new FileOutputStream(output);
-			RpcCallData rpcCallData = mapper.readValue(input, RpcCallData.class);
+			RpcCallData rpcCallData = rpcCallReader.readValue(input);
 			processRpcCall(rpcCallData, token, info, null, response, os, true);
 		} catch (Throwable ex) {
 			writeError(response, -32400, "Unexpected internal error (" + ex.getMessage() + ")", ex, os);    
@@ -609,26 +1399,18 @@ public class JsonServerServlet extends HttpServlet {
 		List<UObject> paramsList = rpcCallData.getParams();
 		AuthToken userProfile = null;
 		try {
-			Method rpcMethod = rpcCache.get(rpcName);
+			final RpcMethodDescriptor rpcMethod = rpcCache.get(rpcName);
 			if (rpcMethod == null) {
 				writeError(response, -32601, "Can not find method [" + rpcName + "] in server class " + getClass().getName(), output);
 				return;
 			}
-			int rpcArgCount = rpcMethod.getGenericParameterTypes().length;
-			Object[] methodValues = new Object[rpcArgCount];
-			boolean lastParamRpcContext = rpcArgCount > 0 && rpcMethod.getParameterTypes()[rpcArgCount - 1].equals(RpcContext.class);
-			boolean lastParamRpcContextArr = rpcArgCount > 0 && rpcMethod.getParameterTypes()[rpcArgCount - 1].isArray() && 
-					rpcMethod.getParameterTypes()[rpcArgCount - 1].getComponentType().equals(RpcContext.class);
-			if (lastParamRpcContext || lastParamRpcContextArr) {
-				rpcArgCount--;
-				if (lastParamRpcContext) {
-					methodValues[rpcArgCount] = context;
-				} else {
-					methodValues[rpcArgCount] = new RpcContext[] {context};
-				}
+			final Object[] methodValues = new Object[rpcMethod.getArgCount()];
+			if (rpcMethod.getContextSlot() >= 0) {
+				methodValues[rpcMethod.getContextSlot()] = rpcMethod.isContextArray() ?
+						new RpcContext[] {context} : context;
 			}
-			if (rpcArgCount > 0 && rpcMethod.getParameterTypes()[rpcArgCount - 1].equals(AuthToken.class)) {
-				if (token != null || !rpcMethod.getAnnotation(JsonServerMethod.class).authOptional()) {
+			if (rpcMethod.getAuthSlot() >= 0) {
+				if (token != null || !rpcMethod.isAuthOptional()) {
 					try {
 						userProfile = validateToken(token);
 						if (userProfile != null) {
@@ -639,30 +1421,28 @@ public class JsonServerServlet extends HttpServlet {
 						return;
 					}
 				}
-				rpcArgCount--;
-				methodValues[rpcArgCount] = userProfile;
+				methodValues[rpcMethod.getAuthSlot()] = userProfile;
 			}
 			if (startupFailed) {
 				writeError(response, -32603, "The server did not start up properly. Please check the log files for the cause.", output);
 				return;
 			}
-			if (paramsList.size() != rpcArgCount) {
+			if (paramsList.size() != rpcMethod.getParamCount()) {
 				writeError(response, -32602, "Wrong parameter count for method " + rpcName, output);
 				return;
 			}
 			for (int typePos = 0; typePos < paramsList.size(); typePos++) {
 				UObject jsonData = paramsList.get(typePos);
-				Type paramType = rpcMethod.getGenericParameterTypes()[typePos];
-				PlainTypeRef paramJavaType = new PlainTypeRef(paramType);
+				final ObjectReader reader = rpcMethod.getParamReader(typePos);
 				try {
 					Object obj;
 					if (jsonData == null) {
 						obj = null;
-					} else if (paramType instanceof Class && paramType.equals(UObject.class)) {
+					} else if (reader == null) {
 						obj = jsonData;
 					} else {
 						try {
-							obj = mapper.readValue(jsonData.getPlacedStream(), paramJavaType);
+							obj = reader.readValue(jsonData.getPlacedStream());
 						} finally {
 							if (jsonData.isTokenStream())
 								((JsonTokenStream)jsonData.getUserObject()).close();
@@ -678,7 +1458,7 @@ public class JsonServerServlet extends HttpServlet {
 			try {
 				logHeaders(requestHeaderXForwardedFor);
 				sysLogger.log(LOG_LEVEL_INFO, getClass().getName(), "start method");
-				result = rpcMethod.invoke(this, methodValues);
+				result = rpcMethod.invoke(methodValues);
 				sysLogger.log(LOG_LEVEL_INFO, getClass().getName(), "end method");
 			} catch (Throwable ex) {
 				if (ex instanceof InvocationTargetException && ex.getCause() != null) {
@@ -689,16 +1469,7 @@ public class JsonServerServlet extends HttpServlet {
 				return;
 			}
 			try {
-				boolean notVoid = !rpcMethod.getReturnType().equals(Void.TYPE);
-				boolean isTuple = rpcMethod.getAnnotation(JsonServerMethod.class).tuple();
-				if (notVoid && !isTuple) {
-					result = Arrays.asList(result);
-				}
-				Map<String, Object> ret = new LinkedHashMap<String, Object>();
-				ret.put("version", "1.1");
-				ret.put("result", result);
-				mapper.writeValue(new UnclosableOutputStream(output), ret);
-				output.flush();
+				writeRpcResult(rpcMethod, result, output);
 			} finally {
 				try {
 					onRpcMethodDone();
@@ -709,6 +1480,48 @@ public class JsonServerServlet extends HttpServlet {
 		}
 	}
 
+	/* Writes the {"version":"1.1","result":...} envelope directly rather than building a map.
+	 * Results of non-void, non-tuple methods are wrapped in a single element list.
+	 */
+	private void writeRpcResult(
+			final RpcMethodDescriptor rpcMethod,
+			final Object result,
+			final OutputStream output)
+			throws IOException {
+		final boolean wrap = !rpcMethod.isVoid() && !rpcMethod.isTuple();
+		try (final JsonGenerator gen = mapper.getFactory().createGenerator(
+				new UnclosableOutputStream(output))) {
+			gen.writeStartObject();
+			gen.writeStringField("version", "1.1");
+			gen.writeFieldName("result");
+			if (wrap) {
+				gen.writeStartArray();
+			}
+			if (result == null) {
+				gen.writeNull();
+			} else if (result instanceof UObject) {
+				// token stream backed UObjects can copy trusted JSON straight to the output
+				((UObject) result).write(gen);
+			} else {
+				getResultWriter(result.getClass()).writeValue(gen, result);
+			}
+			if (wrap) {
+				gen.writeEndArray();
+			}
+			gen.writeEndObject();
+		}
+		output.flush();
+	}
+	
+	private ObjectWriter getResultWriter(final Class<?> resultClass) {
+		ObjectWriter writer = resultWriters.get(resultClass);
+		if (writer == null) {
+			writer = mapper.writerFor(resultClass);
+			resultWriters.put(resultClass, writer);
+		}
+		return writer;
+	}
+
 	protected AuthToken validateToken(final String token)
 			throws AuthException, IOException {
 		if (token == null || token.isEmpty()) {
@@ -785,6 +1598,27 @@ public class JsonServerServlet extends HttpServlet {
 		this.maxRPCPackageSize = maxRPCPackageSize;
 	}
 	
+	/** Get the maximum size of a compressed RPC request body once decompressed.
+	 * @return the size in bytes.
+	 */
+	public long getMaxRpcDecodedSize() {
+		return maxRpcDecodedSize;
+	}
+	
+	/** Set the maximum size of a compressed RPC request body once decompressed. Requests that
+	 * decompress to more than this are rejected with a parse error, since a small compressed
+	 * body can decompress to gigabytes. The limit applies in addition to
+	 * {@link #setMaxRPCPackageSize(Long)}, and the default is
+	 * {@link #DEFAULT_MAX_RPC_DECODED_SIZE}.
+	 * @param size the size in bytes.
+	 */
+	public void setMaxRpcDecodedSize(final long size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("Max decoded size must be at least 1");
+		}
+		this.maxRpcDecodedSize = size;
+	}
+	
 	protected void writeError(ResponseStatusSetter response, int code, String message, OutputStream output) {
 		writeError(response, code, message, null, output);
 	}
@@ -843,6 +1677,168 @@ public class JsonServerServlet extends HttpServlet {
 		this.maxRpcMemoryCacheSize = maxRpcMemoryCacheSize;
 	}
 	
+	/** Get the arena of direct buffers used to cache RPC request bodies in memory, if any.
+	 * @return the arena, or null if the heap is used to cache request bodies.
+	 */
+	public RpcBufferArena getRpcBufferArena() {
+		return rpcBufferArena;
+	}
+	
+	/** Set an arena of direct buffers to use to cache RPC request bodies in memory rather than
+	 * the heap. When an arena is set, {@link #getMaxRpcMemoryCacheSize()} is ignored and the
+	 * per request buffer size of the arena is used instead. Request bodies larger than a buffer
+	 * are spilled to the disk cache, if set, and memory mapped. If no buffer is available within
+	 * the arena's timeout, the request is rejected with a server busy error.
+	 * 
+	 * UObject parameters read from a request body in an arena buffer are only valid for the
+	 * duration of the call. The buffer is returned to the arena once the response is written,
+	 * after which reading such a parameter throws an exception. Methods that need the data
+	 * later must copy it, e.g. with {@link UObject#asClassInstance(Class)}.
+	 * @param rpcBufferArena the arena, or null to cache request bodies on the heap.
+	 */
+	public void setRpcBufferArena(final RpcBufferArena rpcBufferArena) {
+		this.rpcBufferArena = rpcBufferArena;
+	}
+	
+	/** Get the controller that limits the number of concurrent RPC calls, if any.
+	 * @return the controller, or null if the number of concurrent calls is not limited.
+	 */
+	public RpcAdmissionController getRpcAdmissionController() {
+		return rpcAdmissionController;
+	}
+	
+	/** Set a controller to limit the number of concurrent RPC calls. Calls the controller
+	 * rejects receive a server busy error.
+	 * @param rpcAdmissionController the controller, or null to not limit concurrent calls.
+	 */
+	public void setRpcAdmissionController(final RpcAdmissionController rpcAdmissionController) {
+		this.rpcAdmissionController = rpcAdmissionController;
+	}
+	
+	/** Get the executor used to run RPC calls asynchronously, if any.
+	 * @return the executor, or null if RPC calls are run on the container's request thread.
+	 */
+	public Executor getRpcExecutor() {
+		return rpcExecutor;
+	}
+	
+	/** Set an executor to run RPC calls asynchronously. When set, the container's request thread
+	 * reads and parses the request body, suspends the request, and hands the call off to the
+	 * executor, which runs the method and writes the response. This keeps long running methods
+	 * from exhausting the container's thread pool.
+	 * 
+	 * Requires a container that supports Jetty continuations or Servlet 3.0 asynchronous
+	 * requests. If the container does not, calls are run synchronously.
+	 * 
+	 * If the executor rejects a call, a server busy error is returned.
+	 * @param rpcExecutor the executor, or null to run calls on the request thread.
+	 * @see #newRpcExecutor()
+	 */
+	public void setRpcExecutor(final Executor rpcExecutor) {
+		this.rpcExecutor = rpcExecutor;
+	}
+	
+	/** Create an executor for asynchronous RPC calls. If the JVM supports virtual threads,
+	 * each call is run in a new virtual thread. Otherwise, calls are run in a cached pool of
+	 * daemon threads.
+	 * @return a new executor.
+	 */
+	public static ExecutorService newRpcExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+					.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			// virtual threads are not available in this JVM
+		}
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			
+			private final AtomicInteger count = new AtomicInteger();
+			
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(r, "JsonServerServlet-rpc-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	
+	/** Get the executor used to run the calls in a batch request in parallel, if any.
+	 * @return the executor, or null if batched calls are run one after another.
+	 */
+	public Executor getRpcBatchExecutor() {
+		return rpcBatchExecutor;
+	}
+	
+	/** Set an executor to run the calls in a batch request in parallel. The responses are
+	 * always returned in the same order as the calls. Calls rejected by the executor are run
+	 * in the request thread. The executor should be bounded to prevent a single batch from
+	 * starting an unbounded number of threads.
+	 * @param rpcBatchExecutor the executor, or null to run batched calls one after another.
+	 */
+	public void setRpcBatchExecutor(final Executor rpcBatchExecutor) {
+		this.rpcBatchExecutor = rpcBatchExecutor;
+	}
+	
+	/** Get the size of the buffer for RPC responses.
+	 * @return the buffer size in bytes.
+	 */
+	public int getRpcResponseBufferSize() {
+		return rpcResponseBufferSize;
+	}
+	
+	/** Set the size of the buffer for RPC responses. Responses that fit in the buffer are sent
+	 * with a Content-Length header. Larger responses are streamed to the client with chunked
+	 * transfer encoding as they are written. Each request thread keeps one buffer for reuse.
+	 * @param rpcResponseBufferSize the buffer size in bytes, or 0 to always stream responses.
+	 */
+	public void setRpcResponseBufferSize(final int rpcResponseBufferSize) {
+		if (rpcResponseBufferSize < 0) {
+			throw new IllegalArgumentException("rpcResponseBufferSize must be at least 0");
+		}
+		this.rpcResponseBufferSize = rpcResponseBufferSize;
+	}
+	
+	/** Get the compression level for RPC responses.
+	 * @return the compression level.
+	 */
+	public int getRpcCompressionLevel() {
+		return rpcCompressionLevel;
+	}
+	
+	/** Set the compression level for RPC responses. Responses are compressed with gzip or
+	 * deflate if the client accepts either in the Accept-Encoding header. The default is
+	 * {@link Deflater#DEFAULT_COMPRESSION}. The level can also be set via the
+	 * rpc-compression-level configuration key.
+	 * @param level the compression level, from 1 (fastest) to 9 (smallest),
+	 * {@link Deflater#DEFAULT_COMPRESSION}, or 0 to disable compression.
+	 */
+	public void setRpcCompressionLevel(final int level) {
+		if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("Compression level must be between -1 and 9");
+		}
+		this.rpcCompressionLevel = level;
+	}
+	
+	/** Get the minimum size of an RPC response to compress.
+	 * @return the size in bytes.
+	 */
+	public int getRpcCompressionThreshold() {
+		return rpcCompressionThreshold;
+	}
+	
+	/** Set the minimum size of an RPC response to compress. Responses larger than the response
+	 * buffer are always compressed, since they are streamed before their size is known. The
+	 * threshold can also be set via the rpc-compression-threshold configuration key.
+	 * @param threshold the size in bytes.
+	 */
+	public void setRpcCompressionThreshold(final int threshold) {
+		if (threshold < 0) {
+			throw new IllegalArgumentException("Compression threshold must be at least 0");
+		}
+		this.rpcCompressionThreshold = threshold;
+	}
+	
 	public File getRpcDiskCacheTempDir() {
 		return rpcDiskCacheTempDir;
 	}
@@ -968,6 +1964,172 @@ public class JsonServerServlet extends HttpServlet {
 		}
 	}
 
+	/* Buffers an RPC response so that responses that fit in the buffer are sent in one write
+	 * with a Content-Length header. When a response outgrows the buffer, the buffer is written
+	 * to the servlet output and the rest of the response is streamed, which the container
+	 * sends with chunked transfer encoding.
+	 * If an encoding is given, responses of at least the threshold size, and all streamed
+	 * responses, are compressed with that encoding.
+	 * The buffer is borrowed from a small shared pool and returned by finish(), which
+	 * must always be called once the response is complete. Flushing the stream before then
+	 * has no effect unless the response is already being streamed.
+	 */
+	private static class RpcResponseOutputStream extends OutputStream {
+		
+		private final HttpServletResponse response;
+		private final int bufferSize;
+		private final String encoding;
+		private final int compressionLevel;
+		private final int compressionThreshold;
+		private boolean compressible = true;
+		private byte[] buffer = null;
+		private int count = 0;
+		private OutputStream servletOut = null;
+		private OutputStream out = null;
+		
+		private RpcResponseOutputStream(
+				final HttpServletResponse response,
+				final int bufferSize,
+				final String encoding,
+				final int compressionLevel,
+				final int compressionThreshold) {
+			this.response = response;
+			this.bufferSize = bufferSize;
+			this.encoding = encoding;
+			this.compressionLevel = compressionLevel;
+			this.compressionThreshold = compressionThreshold;
+		}
+		
+		/* Set whether the response may be compressed. Has no effect once the response has
+		 * started streaming.
+		 */
+		private void setCompressible(final boolean compressible) {
+			this.compressible = compressible;
+		}
+		
+		@Override
+		public void write(final int b) throws IOException {
+			if (out == null && count < bufferSize) {
+				getBuffer()[count++] = (byte) b;
+			} else {
+				startStreaming().write(b);
+			}
+		}
+		
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			if (out == null && len <= bufferSize - count) {
+				System.arraycopy(b, off, getBuffer(), count, len);
+				count += len;
+			} else {
+				startStreaming().write(b, off, len);
+			}
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			if (out != null) {
+				out.flush();
+			}
+		}
+		
+		@Override
+		public void close() {
+			// the response is completed by finish()
+		}
+		
+		/* Sends any buffered data, setting the content length if the response was never
+		 * streamed or compressed, and flushes the servlet output.
+		 */
+		private void finish() throws IOException {
+			try {
+				if (out == null) {
+					commit(true);
+				}
+				if (out != servletOut) {
+					out.close(); // finishes the compressed stream
+				}
+				servletOut.flush();
+			} finally {
+				releaseBuffer();
+			}
+		}
+		
+		private byte[] getBuffer() {
+			if (buffer == null) {
+				buffer = RPC_RESPONSE_BUFFERS.poll();
+				if (buffer == null || buffer.length < bufferSize) {
+					buffer = new byte[bufferSize];
+				}
+			}
+			return buffer;
+		}
+		
+		private OutputStream startStreaming() throws IOException {
+			if (out == null) {
+				commit(false);
+			}
+			return out;
+		}
+		
+		private void commit(final boolean complete) throws IOException {
+			if (encoding != null) {
+				response.setHeader("Vary", "Accept-Encoding");
+			}
+			servletOut = response.getOutputStream();
+			if (encoding != null && compressible && (!complete || count >= compressionThreshold)
+					&& !response.containsHeader(CONTENT_ENCODING)) {
+				response.setHeader(CONTENT_ENCODING, encoding);
+				out = getCompressingOutputStream(
+						new UnclosableOutputStream(servletOut), encoding, compressionLevel);
+			} else {
+				if (complete) {
+					response.setContentLength(count);
+				}
+				out = servletOut;
+			}
+			if (count > 0) {
+				out.write(buffer, 0, count);
+			}
+			releaseBuffer();
+		}
+		
+		private void releaseBuffer() {
+			if (buffer != null) {
+				// if the pool is full the buffer is left for the garbage collector
+				RPC_RESPONSE_BUFFERS.offer(buffer);
+				buffer = null;
+			}
+		}
+	}
+	
+	/* Closing the returned stream finishes the compressed data and frees the compressor. */
+	private static OutputStream getCompressingOutputStream(
+			final OutputStream out,
+			final String encoding,
+			final int level)
+			throws IOException {
+		if (encoding.equals(ENCODING_GZIP)) {
+			return new GZIPOutputStream(out, 8192) {
+				{
+					def.setLevel(level);
+				}
+			};
+		}
+		final Deflater deflater = new Deflater(level);
+		return new DeflaterOutputStream(out, deflater, 8192) {
+			
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					deflater.end();
+				}
+			}
+		};
+	}
+
 	public static interface ResponseStatusSetter {
 		public void setStatus(int status);
 	}
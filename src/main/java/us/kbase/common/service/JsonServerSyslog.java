@@ -540,6 +540,15 @@ public class JsonServerSyslog {
 			return this;
 		}
 		
+		RpcInfo copyFrom(final RpcInfo other) {
+			id = other.id;
+			module = other.module;
+			method = other.method;
+			user = other.user;
+			ip = other.ip;
+			return this;
+		}
+		
 		public String getId() {
 			return id;
 		}
@@ -1,10 +1,10 @@
 package us.kbase.common.service;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -18,13 +18,28 @@ import java.io.StringReader;
 import java.io.Writer;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.fasterxml.jackson.core.Base64Variant;
 import com.fasterxml.jackson.core.FormatSchema;
@@ -55,7 +70,7 @@ import com.fasterxml.jackson.databind.JsonNode;
  * standard UTF8StreamJsonParser or ReaderBasedJsonParser is that here we can deal with large text
  * values since they are processed as whole tokens in standard jackson approach. Here we substitute
  * these large text values by special keywords storing mapping from these keywords to position of real
- * text in character stream. This mapping is stored in largeStringPos. For that we wrap input reader
+ * text in character stream. The positions are stored in largeStringPos. For that we wrap input reader
  * before parsing it into tokens by wrapper searching these large texts (see getWrapperForLargeStrings
  * method for Reader for details). And during writing operation we wrap output writer by wrapper 
  * substituting these keywords back into large strings (see getWrapperForLargeStrings for Writer).
@@ -68,12 +83,19 @@ import com.fasterxml.jackson.databind.JsonNode;
  * @author rsutormin
  */
 public class JsonTokenStream extends JsonParser {
-	// string data source, only one of sdata/bdata/fdata could be not null
+	// string data source, only one of sdata/bdata/fdata/bbdata could be not null
 	private String sdata = null;
-	// byte array data source, only one of sdata/bdata/fdata could be not null
+	// byte array data source, only one of sdata/bdata/fdata/bbdata could be not null
 	private byte[] bdata = null;
-	// file data source, only one of sdata/bdata/fdata could be not null
+	// file data source, only one of sdata/bdata/fdata/bbdata could be not null
 	private File fdata = null;
+	// byte buffer data source (e.g. direct or memory mapped), only one of sdata/bdata/fdata/bbdata
+	// could be not null
+	private ByteBuffer bbdata = null;
+	// memory mapped view of the file data source, null unless enabled with setMemoryMapped
+	private MappedFile mdata = null;
+	// the size of each mapped segment of the file data source
+	private int mappedSegmentSize = DEFAULT_MAPPED_SEGMENT_SIZE;
 	// standard jackson parser created for chosen data source
 	private JsonParser inner;
 	// current path following to processed token
@@ -82,9 +104,9 @@ public class JsonTokenStream extends JsonParser {
 	private int fixedLevels = 0;
 	// currentTokenIsNull could be true only at the beginning of process after root point definition
 	private boolean currentTokenIsNull = false;
-	// main mapping for large strings found in data source, value is two-element array {start, length}
-	private Map<String, long[]> largeStringPos = new LinkedHashMap<String, long[]>(); 
-	// in case large string has length > this size it's processed with substitution by keyword (def=1000000)
+	// positions of the large strings found in data source, keywords encode start and length
+	private final LargeStringSpans largeStringPos = new LargeStringSpans();
+	// in case large string has length >= this size it's processed with substitution by keyword
 	private final int stringBufferSize;
 	// reader for large string extraction, it should be positioned by calling getLargeStringReader
 	private final LargeStringSearchingReader largeStringReader = new LargeStringSearchingReader();
@@ -93,12 +115,38 @@ public class JsonTokenStream extends JsonParser {
 	private boolean goodWholeJSON = false;
 	//the encoding of the bytes or file, if any.
 	private final Charset encoding;
+	// set when the owner of the data source has reused it, shared with copies of this stream
+	private AtomicBoolean released = new AtomicBoolean();
 	
 	private static final boolean debug = false;  //true;
 	private static final Charset utf8 = Charset.forName("UTF-8");
 	private static final String largeStringSubstPrefix = "^*->#";
+	
+	/** The default large string threshold used when large string substitution is enabled. */
+	public static final int DEFAULT_LARGE_STRING_THRESHOLD = 1000000;
+	// the smallest chunk of data scanned by a thread when building the index
+	private static final int MIN_SCAN_CHUNK_SIZE = 1 << 20;
+	/** The minimum large string threshold. */
+	public static final int MIN_LARGE_STRING_THRESHOLD = 100;
 	private static DebugOpenCloseListener debugOpenCloseListener = null;
+	// shared so parsers reuse recycled buffers and canonicalized field names
+	private static final JsonFactory FACTORY = new JsonFactory();
+	private static final AtomicLong innerParsersCreated = new AtomicLong();
+	private static final AtomicLong byteParsersCreated = new AtomicLong();
+	
+	/** The default size of the segments a memory mapped file is split into. */
+	public static final int DEFAULT_MAPPED_SEGMENT_SIZE = 1 << 30;
 	private int copyBufferSize = 100000;
+	// containers at paths up to this depth are indexed by byte offset, 0 disables the index
+	private int indexDepth = 0;
+	// path -> byte offsets of containers found so far, shared with copies of this stream
+	private Map<List<String>, IndexEntry> index = new ConcurrentHashMap<List<String>, IndexEntry>();
+	// index entries for the containers the current token is inside, null if not indexed
+	private List<IndexEntry> openContainers = new ArrayList<IndexEntry>();
+	// byte range of the data source the inner parser reads, sliceEnd is -1 for the whole source
+	private long sliceStart = 0;
+	private long sliceEnd = -1;
+	private final AtomicLong indexHits = new AtomicLong();
 	
 	private static final Map<JsonEncoding, Charset> ENCODING_TO_CHARSET =
 			new HashMap<JsonEncoding, Charset>(5);
@@ -119,7 +167,11 @@ public class JsonTokenStream extends JsonParser {
 	//TODO CODE add a method like InputStream getInputStream() that otherwise behaves like writeJson()
 	
 	/**
-	 * Create token stream for data source of one of the following types: File, String, byte[], JsonNode.
+	 * Create token stream for data source of one of the following types: File, String, byte[],
+	 * ByteBuffer, JsonNode.
+	 * For a ByteBuffer, the data between the buffer's position and limit is used. The buffer's
+	 * position, limit and mark are not altered, but the contents must not be changed while the
+	 * token stream is in use.
 	 * @param data
 	 * @throws JsonParseException
 	 * @throws IOException
@@ -136,18 +188,30 @@ public class JsonTokenStream extends JsonParser {
 	 * @throws IOException
 	 */
 	private JsonTokenStream(Object data, boolean optimizeLargeStrings) throws JsonParseException, IOException {
-		this(data, optimizeLargeStrings ? 1000000 : 0);
+		this(data, optimizeLargeStrings ? DEFAULT_LARGE_STRING_THRESHOLD : 0);
 	}
 	
 	/**
-	 * Create token stream for data source of one of the following types: File, String, byte[], JsonNode.
+	 * Create token stream for data source of one of the following types: File, String, byte[],
+	 * ByteBuffer, JsonNode.
+	 * String values at least as long as the large string threshold are not read into memory.
+	 * Instead the parser returns a keyword in place of the string (see
+	 * {@link #isLargeString(String)}), the string can be read with
+	 * {@link #getLargeStringReader(String)}, and writing the stream with
+	 * {@link #writeJson(Writer)} writes the original string.
 	 * @param data data source
-	 * @param largeStringbufferSize size of buffer used for large string substitutions, 0 - for switching it off
+	 * @param largeStringThreshold the length in characters, including escapes, at which strings
+	 * are substituted, and the size of the buffer used for the substitution. 0 switches large
+	 * string substitution off.
 	 * @throws JsonParseException
 	 * @throws IOException
 	 */
-	private JsonTokenStream(Object data, int largeStringbufferSize)
+	public JsonTokenStream(Object data, int largeStringThreshold)
 			throws JsonParseException, IOException {
+		if (largeStringThreshold != 0 && largeStringThreshold < MIN_LARGE_STRING_THRESHOLD) {
+			throw new IllegalArgumentException("Large string threshold must be 0 or at least " +
+					MIN_LARGE_STRING_THRESHOLD);
+		}
 		final long len;
 		if (data instanceof String) {
 			sdata = (String)data;
@@ -171,16 +235,20 @@ public class JsonTokenStream extends JsonParser {
 			bdata = (byte[])data;
 			len = bdata.length;
 			encoding = detectEncoding(new ByteArrayInputStream(bdata));
+		} else if (data instanceof ByteBuffer) {
+			bbdata = ((ByteBuffer)data).slice().asReadOnlyBuffer();
+			len = bbdata.remaining();
+			encoding = detectEncoding(new ByteBufferInputStream(bbdata));
 		} else {
 			throw new IllegalArgumentException(
-					"Only String, File, JsonNode, and byte[]s are allowed as input");
+					"Only String, File, JsonNode, ByteBuffers, and byte[]s are allowed as input");
 			//why not turn objects into bytes?
 		}
 		if (len < 1) {
 			throw new IllegalArgumentException(
 					"Data must be at least 1 byte / char");
 		}
-		stringBufferSize = largeStringbufferSize;
+		stringBufferSize = largeStringThreshold;
 		init(null);
 	}
 	
@@ -200,6 +268,13 @@ public class JsonTokenStream extends JsonParser {
 	public Charset getEncoding() {
 		return encoding;
 	}
+	
+	/** Get the length at which strings are substituted by keywords.
+	 * @return the large string threshold, or 0 if large string substitution is off.
+	 */
+	public int getLargeStringThreshold() {
+		return stringBufferSize;
+	}
 
 	/** Specify that this JTS wraps data that is known good JSON. Cannot be
 	 * set as true if the root is not at /, and will be set to false if the
@@ -250,6 +325,49 @@ public class JsonTokenStream extends JsonParser {
 	public int getCopyBufferSize() {
 		return copyBufferSize;
 	}
+	
+	/** Create a new token stream over the same data source with the same settings, positioned
+	 * at the start of the data. Since token streams are not thread safe, this allows different
+	 * threads to read the same data.
+	 * @return the new token stream.
+	 * @throws IOException if the data source could not be opened.
+	 */
+	JsonTokenStream copy() throws IOException {
+		final Object data;
+		if (sdata != null) {
+			data = sdata;
+		} else if (bdata != null) {
+			data = bdata;
+		} else if (fdata != null) {
+			data = fdata;
+		} else {
+			data = bbdata;
+		}
+		final JsonTokenStream copy = new JsonTokenStream(data, stringBufferSize);
+		copy.goodWholeJSON = goodWholeJSON;
+		copy.copyBufferSize = copyBufferSize;
+		copy.indexDepth = indexDepth;
+		copy.index = index;
+		copy.mappedSegmentSize = mappedSegmentSize;
+		copy.mdata = mdata;
+		copy.released = released;
+		return copy;
+	}
+	
+	/* Marks the data source of this stream and its copies as released by its owner, e.g. when
+	 * a pooled buffer is returned to the pool. The stream and its copies can no longer be
+	 * read, since the data source may now contain other data. The stream is closed.
+	 */
+	void releaseDataSource() throws IOException {
+		released.set(true);
+		close();
+	}
+	
+	private void checkNotReleased() throws IOException {
+		if (released.get()) {
+			throw new IOException("The data source of this token stream has been released");
+		}
+	}
 
 	/**
 	 * Define root point in data source from which token stream should start.
@@ -294,15 +412,28 @@ public class JsonTokenStream extends JsonParser {
 	}
 	
 	private void init(List<String> root) throws JsonParseException, IOException {
+		checkNotReleased();
 		path = new ArrayList<Object>();
 		fixedLevels = 0;
 		currentTokenIsNull = false;
+		openContainers = new ArrayList<IndexEntry>();
+		sliceStart = 0;
+		sliceEnd = -1;
 		if (inner != null) {
 			if (!inner.isClosed())
 				throw new IOException("Inner parser wasn't closed previously");
 			inner = null;
 		}
-		if (root != null && root.size() > 0) {
+		final IndexEntry indexed = root == null || !isIndexable() ? null : index.get(root);
+		if (indexed != null) {
+			// parse only the root's bytes, starting as if the path to the root had been read
+			indexHits.incrementAndGet();
+			path = new ArrayList<Object>(Arrays.asList(indexed.path));
+			sliceStart = indexed.start;
+			sliceEnd = indexed.end;
+			fixedLevels = root.size();
+			currentTokenIsNull = true;
+		} else if (root != null && root.size() > 0) {
 			int pos = -1;
 			while (true) {
 				if (nextToken() == null)
@@ -334,12 +465,9 @@ public class JsonTokenStream extends JsonParser {
 	protected JsonParser getInner() {
 		if (inner == null) {
 			try {
-				Reader r = createDataReader();
+				inner = createInnerParser();
 				if (debugOpenCloseListener != null)
 					debugOpenCloseListener.onStreamOpen(this);
-				if (stringBufferSize > 0)
-					r = getWrapperForLargeStrings(r);
-				inner = new JsonFactory().createParser(r);
 				if (inner.getCodec() == null)
 					inner.setCodec(UObject.getMapper());
 			} catch (IOException ex) {
@@ -348,6 +476,405 @@ public class JsonTokenStream extends JsonParser {
 		}
 		return inner;
 	}
+	
+	/* UTF-8 byte sources are parsed directly from bytes, which avoids decoding the data to
+	 * characters first. Other sources, and sources with large string substitution, are parsed
+	 * from a reader. Note that the byte parser rejects malformed UTF-8, while the reader
+	 * decodes it to U+FFFD.
+	 */
+	private JsonParser createInnerParser() throws IOException {
+		innerParsersCreated.incrementAndGet();
+		if (isIndexable()) {
+			final JsonParser p;
+			if (sliceEnd >= 0) {
+				p = createSliceParser();
+			} else if (bdata != null) {
+				p = FACTORY.createParser(bdata);
+			} else if (mdata != null) {
+				p = FACTORY.createParser(mdata.openStream(0, mdata.length));
+			} else if (fdata != null) {
+				p = FACTORY.createParser(fdata);
+			} else {
+				p = FACTORY.createParser(new ByteBufferInputStream(bbdata));
+			}
+			byteParsersCreated.incrementAndGet();
+			return p;
+		}
+		Reader r = createDataReader();
+		if (stringBufferSize > 0)
+			r = getWrapperForLargeStrings(r);
+		return FACTORY.createParser(r);
+	}
+	
+	private JsonParser createSliceParser() throws IOException {
+		final long len = sliceEnd - sliceStart;
+		if (bdata != null) {
+			return FACTORY.createParser(bdata, (int) sliceStart, (int) len);
+		}
+		return FACTORY.createParser(openBytes(sliceStart, sliceEnd));
+	}
+	
+	// opens a stream over a byte range of a byte array, file or ByteBuffer data source
+	private InputStream openBytes(final long start, final long end) throws IOException {
+		checkNotReleased();
+		if (bdata != null) {
+			return new ByteArrayInputStream(bdata, (int) start, (int) (end - start));
+		} else if (mdata != null) {
+			return mdata.openStream(start, end);
+		} else if (fdata != null) {
+			final FileInputStream fis = new FileInputStream(fdata);
+			try {
+				fis.getChannel().position(start);
+			} catch (IOException e) {
+				fis.close();
+				throw e;
+			}
+			return new LimitedInputStream(fis, end - start);
+		} else {
+			final ByteBuffer slice = bbdata.duplicate();
+			slice.position((int) start);
+			slice.limit((int) end);
+			return new ByteBufferInputStream(slice);
+		}
+	}
+	
+	/* True if the inner parser parses bytes, and so can report byte offsets for the index. */
+	private boolean isIndexable() {
+		return stringBufferSize == 0 && utf8.equals(encoding);
+	}
+	
+	/**
+	 * Set the maximum depth of the paths that are indexed. When this is greater than 0,
+	 * the byte offsets of arrays and objects at paths of up to this many elements are recorded
+	 * as they are read, and subsequent calls to {@link #setRoot(List)} with a recorded path
+	 * start parsing at the root rather than scanning from the start of the data. The index is
+	 * shared with copies of this stream.
+	 * 
+	 * The index is only used for UTF-8 byte array, file, and ByteBuffer data sources.
+	 * @param depth the maximum path depth to index, or 0 to disable indexing.
+	 * @return this JTS
+	 */
+	public JsonTokenStream setIndexDepth(final int depth) {
+		if (depth < 0) {
+			throw new IllegalArgumentException("Index depth must be at least 0");
+		}
+		indexDepth = depth;
+		return this;
+	}
+	
+	/**
+	 * Get the maximum depth of the paths that are indexed.
+	 * @return the maximum path depth, or 0 if indexing is disabled.
+	 */
+	public int getIndexDepth() {
+		return indexDepth;
+	}
+	
+	/**
+	 * Get the number of paths in the index.
+	 * @return the number of indexed paths.
+	 */
+	public int getIndexSize() {
+		return index.size();
+	}
+	
+	/**
+	 * Get the number of times {@link #setRoot(List)} found the root in the index.
+	 * @return the number of index hits.
+	 */
+	public long getIndexHits() {
+		return indexHits.get();
+	}
+	
+	/**
+	 * Fill the index by scanning the data in parallel, rather than as the data is read. The
+	 * data is split into chunks, and each chunk is scanned for brackets, commas and keys both as
+	 * if it started inside a string and as if it did not. The scans are then stitched together
+	 * in order to find the containers up to the index depth.
+	 * 
+	 * The data must be valid JSON, since the scan only checks that containers are balanced.
+	 * Files are scanned through a memory mapping, whether or not
+	 * {@link #setMemoryMapped(boolean)} is set.
+	 * @param threads the number of threads to scan with.
+	 * @return this JTS
+	 * @throws IOException if the data could not be read or the containers are unbalanced.
+	 */
+	public JsonTokenStream buildIndex(final int threads) throws IOException {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be at least 1");
+		}
+		if (indexDepth < 1) {
+			throw new IllegalStateException("The index depth must be set to build the index");
+		}
+		if (!isIndexable()) {
+			throw new IllegalStateException(
+					"Only UTF-8 byte array, file and ByteBuffer data sources can be indexed");
+		}
+		checkNotReleased();
+		final ByteBuffer[] segments;
+		final long segmentSize;
+		if (bdata != null) {
+			segments = new ByteBuffer[] {ByteBuffer.wrap(bdata)};
+			segmentSize = Integer.MAX_VALUE;
+		} else if (bbdata != null) {
+			segments = new ByteBuffer[] {bbdata};
+			segmentSize = Integer.MAX_VALUE;
+		} else {
+			final MappedFile mf = mdata != null ? mdata : new MappedFile(fdata, mappedSegmentSize);
+			segments = mf.segments;
+			segmentSize = mf.segmentSize;
+		}
+		final List<StructureScan> chunks = new ArrayList<StructureScan>();
+		for (int i = 0; i < segments.length; i++) {
+			final int len = segments[i].remaining();
+			final int chunkSize = Math.max(MIN_SCAN_CHUNK_SIZE, len / (threads * 4) + 1);
+			for (int from = 0; from < len; from += chunkSize) {
+				chunks.add(new StructureScan(segments, segmentSize, i,
+						from, (int) Math.min(len, (long) from + chunkSize), indexDepth));
+			}
+		}
+		final ExecutorService exec = Executors.newFixedThreadPool(threads);
+		try {
+			final List<Future<?>> scans = new ArrayList<Future<?>>();
+			for (final StructureScan c: chunks) {
+				scans.add(exec.submit(c.scan(false)));
+				scans.add(exec.submit(c.scan(true)));
+			}
+			for (final Future<?> f: scans) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while scanning", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} finally {
+			exec.shutdownNow();
+		}
+		stitch(chunks, segments, segmentSize);
+		return this;
+	}
+	
+	/* Replays the structure found by the chunk scans, in order, to add the containers to the
+	 * index. Containers deeper than the index depth were not recorded by the scans.
+	 */
+	private void stitch(
+			final List<StructureScan> chunks,
+			final ByteBuffer[] segments,
+			final long segmentSize)
+			throws IOException {
+		// the open containers' start offsets and array indexes (-1 for objects), keys and paths
+		final List<long[]> frames = new ArrayList<long[]>();
+		final List<Object> keys = new ArrayList<Object>();
+		final List<Object[]> paths = new ArrayList<Object[]>();
+		boolean inString = false;
+		long openString = -1;
+		int level = 0;
+		for (final StructureScan chunk: chunks) {
+			final StructureScan.Result r = chunk.getResult(inString);
+			for (int i = 0; i < r.count; i++) {
+				final int l = level + (r.events[i] >> 3);
+				if (l > indexDepth) {
+					continue;
+				}
+				final long offset = r.offsets[i];
+				switch (r.events[i] & 7) {
+					case StructureScan.OPEN:
+						if (l < 0 || frames.size() != l) {
+							throw new IOException("Unbalanced JSON at byte offset " + offset);
+						}
+						final Object[] path = new Object[l];
+						for (int k = 0; k < l; k++) {
+							path[k] = frames.get(k)[1] < 0 ? keys.get(k) : (int) frames.get(k)[1];
+						}
+						final boolean array = byteAt(segments, segmentSize, offset) == '[';
+						frames.add(new long[] {offset, array ? 0 : -1});
+						keys.add("{");
+						paths.add(path);
+						break;
+					case StructureScan.CLOSE:
+						if (l < 0 || frames.size() != l + 1 || (frames.get(l)[1] >= 0) !=
+								(byteAt(segments, segmentSize, offset) == ']')) {
+							throw new IOException("Unbalanced JSON at byte offset " + offset);
+						}
+						final long start = frames.remove(l)[0];
+						keys.remove(l);
+						final Object[] p = paths.remove(l);
+						if (l > 0) {
+							final List<String> key = new ArrayList<String>(p.length);
+							for (final Object item: p) {
+								key.add(String.valueOf(item));
+							}
+							index.put(key, new IndexEntry(start, offset + 1, p));
+						}
+						break;
+					case StructureScan.COMMA:
+						if (l > 0 && frames.size() == l && frames.get(l - 1)[1] >= 0) {
+							frames.get(l - 1)[1]++;
+						}
+						break;
+					default: // KEY
+						if (l > 0 && frames.size() == l) {
+							keys.set(l - 1, readKey(segments, segmentSize,
+									offset < 0 ? openString : offset));
+						}
+				}
+			}
+			inString = r.endInString;
+			if (r.openStringStart >= 0) {
+				openString = r.openStringStart;
+			}
+			level += r.endLevel;
+		}
+	}
+	
+	private static byte byteAt(final ByteBuffer[] segments, final long segmentSize,
+			final long pos) {
+		return segments[(int) (pos / segmentSize)].get((int) (pos % segmentSize));
+	}
+	
+	// decodes the string starting with the quote at the offset
+	private static String readKey(final ByteBuffer[] segments, final long segmentSize,
+			final long offset) throws IOException {
+		final ByteArrayOutputStream key = new ByteArrayOutputStream();
+		long pos = offset;
+		key.write(byteAt(segments, segmentSize, pos++));
+		while (true) {
+			final byte b = byteAt(segments, segmentSize, pos++);
+			key.write(b);
+			if (b == '\\') {
+				key.write(byteAt(segments, segmentSize, pos++));
+			} else if (b == '"') {
+				break;
+			}
+		}
+		try (final JsonParser p = FACTORY.createParser(key.toByteArray())) {
+			p.nextToken();
+			return p.getText();
+		}
+	}
+	
+	/**
+	 * Read a file data source through a read only memory mapping of the file rather than by
+	 * opening the file each time the data is parsed or copied. Files larger than the mapped
+	 * segment size are mapped in several segments, so files over 2GB may be mapped. The mapping
+	 * is shared with copies of this stream.
+	 * 
+	 * The file must not be changed while it is mapped.
+	 * @param map true to map the file, false to read the file with streams.
+	 * @return this JTS
+	 * @throws IOException if the file could not be mapped.
+	 */
+	public JsonTokenStream setMemoryMapped(final boolean map) throws IOException {
+		if (!map) {
+			mdata = null;
+		} else if (fdata == null) {
+			throw new IllegalArgumentException("Only file data sources can be memory mapped");
+		} else if (mdata == null) {
+			mdata = new MappedFile(fdata, mappedSegmentSize);
+		}
+		return this;
+	}
+	
+	/**
+	 * Returns true if the file data source is read through a memory mapping.
+	 * @return true if the data source is memory mapped.
+	 */
+	public boolean isMemoryMapped() {
+		return mdata != null;
+	}
+	
+	/**
+	 * Set the size of the segments a memory mapped file is split into. If the file is already
+	 * mapped, it is mapped again with the new segment size.
+	 * @param size the segment size in bytes.
+	 * @return this JTS
+	 * @throws IOException if the file could not be mapped.
+	 */
+	public JsonTokenStream setMappedSegmentSize(final int size) throws IOException {
+		if (size < 1) {
+			throw new IllegalArgumentException("Mapped segment size must be at least 1");
+		}
+		mappedSegmentSize = size;
+		if (mdata != null && mdata.segmentSize != size) {
+			mdata = new MappedFile(fdata, size);
+		}
+		return this;
+	}
+	
+	/**
+	 * Get the size of the segments a memory mapped file is split into.
+	 * @return the segment size in bytes.
+	 */
+	public int getMappedSegmentSize() {
+		return mappedSegmentSize;
+	}
+	
+	private static class IndexEntry {
+		private final long start;
+		private final long end;
+		private final Object[] path;
+		
+		private IndexEntry(final long start, final long end, final Object[] path) {
+			this.start = start;
+			this.end = end;
+			this.path = path;
+		}
+	}
+	
+	/* Records the start of an array or object. Called before the container is added to
+	 * the path.
+	 */
+	private void startContainer() {
+		if (indexDepth < 1 || !isIndexable()) {
+			return;
+		}
+		if (path.isEmpty() || path.size() > indexDepth) {
+			openContainers.add(null);
+		} else {
+			openContainers.add(new IndexEntry(
+					sliceStart + inner.getTokenLocation().getByteOffset(), -1, path.toArray()));
+		}
+	}
+	
+	/* Records the end of an array or object. Called after the container is removed from
+	 * the path.
+	 */
+	private void endContainer() {
+		if (openContainers.isEmpty()) {
+			return;
+		}
+		final IndexEntry open = openContainers.remove(openContainers.size() - 1);
+		if (open != null) {
+			final List<String> key = new ArrayList<String>(open.path.length);
+			for (final Object item: open.path) {
+				key.add(String.valueOf(item));
+			}
+			index.put(key, new IndexEntry(open.start,
+					sliceStart + inner.getCurrentLocation().getByteOffset(), open.path));
+		}
+	}
+	
+	/**
+	 * Get the number of inner parsers created by all token streams. A token stream creates a
+	 * new inner parser each time its root is set. All inner parsers are created by a shared
+	 * factory, so they share recycled buffers and symbol tables.
+	 * @return the number of inner parsers created.
+	 */
+	public static long getInnerParsersCreated() {
+		return innerParsersCreated.get();
+	}
+	
+	/**
+	 * Get the number of inner parsers created by all token streams that parse bytes
+	 * directly rather than characters.
+	 * @return the number of byte based inner parsers created.
+	 */
+	public static long getByteInnerParsersCreated() {
+		return byteParsersCreated.get();
+	}
 
 	/**
 	 * Create reader for data source.
@@ -355,14 +882,19 @@ public class JsonTokenStream extends JsonParser {
 	 * @throws IOException
 	 */
 	public Reader createDataReader() throws IOException {
+		checkNotReleased();
 		Reader r;
 		if (sdata != null) {
 			r = new StringReader(sdata);
 		} else if (bdata != null) {
 			r = new InputStreamReader(
 					new ByteArrayInputStream(bdata), encoding);
+		} else if (mdata != null) {
+			r = new InputStreamReader(mdata.openStream(0, mdata.length), encoding);
 		} else if (fdata != null) {
 			r = new InputStreamReader(new BufferedInputStream(new FileInputStream(fdata)), encoding);
+		} else if (bbdata != null) {
+			r = new InputStreamReader(new ByteBufferInputStream(bbdata), encoding);
 		} else {
 			throw new IOException("Data source was not set");
 		}
@@ -372,6 +904,8 @@ public class JsonTokenStream extends JsonParser {
 	private Reader getWrapperForLargeStrings(final Reader r) {
 		return new Reader() {
 			long bufSizeGlobalPos = 0;	// reflects global position of bufSize place in input data source before substitution (array/String/file)
+			final boolean countBytes = utf8.equals(encoding);  // large strings can be read as bytes
+			long bufSizeGlobalBytePos = 0;	// the same position in bytes for UTF-8 byte sources
 			boolean inQ = false;
 			boolean wasBS = false;
 			char[] buffer = new char[stringBufferSize];
@@ -391,22 +925,41 @@ public class JsonTokenStream extends JsonParser {
 						if (bufPos == bufSize)
 							break;
 					}
-					char ch = buffer[bufPos];
-					retbuf[off + ret] = ch;
-					ret++;
-					//pos++;
-					bufPos++;
+					// scan up to the next quote that opens or closes a string, then copy the run
+					final int end = Math.min(bufSize, bufPos + len - ret);
+					int i = bufPos;
+					boolean opened = false;
 					if (inQ) {
 						if (wasBS) {
 							wasBS = false;
-						} else if (ch == '\\') {
-							wasBS = true;
-						} else if (ch == '\"') {  // Close string value
-							inQ = false;
+							i++;
 						}
-					} else if (ch == '\"') {  // Open string value
-						inQ = true;
-						wasBS = false;
+						while (i < end) {
+							final char ch = buffer[i++];
+							if (ch == '\\') {
+								if (i < end) {
+									i++;
+								} else {
+									wasBS = true;
+								}
+							} else if (ch == '\"') {  // Close string value
+								inQ = false;
+								break;
+							}
+						}
+					} else {
+						while (i < end) {
+							if (buffer[i++] == '\"') {  // Open string value
+								inQ = true;
+								opened = true;
+								break;
+							}
+						}
+					}
+					System.arraycopy(buffer, bufPos, retbuf, off + ret, i - bufPos);
+					ret += i - bufPos;
+					bufPos = i;
+					if (opened) {
 						lookup();
 					}
 				}
@@ -417,7 +970,9 @@ public class JsonTokenStream extends JsonParser {
 			private void lookup() throws IOException {  // Open string value
 				int internalPos = bufPos;
 				boolean wasBS = false;
+				boolean escaped = false;
 				long largeStringStart = -1;
+				long largeStringByteStart = -1;
 				while (true) {
 					if (internalPos == bufSize) {
 						if (largeStringStart < 0) {
@@ -426,6 +981,8 @@ public class JsonTokenStream extends JsonParser {
 									internalPos = repos(internalPos);
 								} else {  // Here we are, all the string prefix is in our buffer and this string is going to be longer
 									largeStringStart = bufSizeGlobalPos - bufSize;
+									if (countBytes)
+										largeStringByteStart = bufSizeGlobalBytePos - utf8Length(buffer, 0, bufSize);
 									//pos += bufSize;
 									bufSize = maxLargeStringPosKey;
 									bufPos = bufSize;
@@ -433,6 +990,8 @@ public class JsonTokenStream extends JsonParser {
 								}
 							}
 							fillBuffer();
+							if (internalPos == bufSize)  // unterminated string, left to the parser
+								break;
 						} else {
 							if (bufSize == buffer.length) {
 								if (bufPos != maxLargeStringPosKey)
@@ -446,15 +1005,32 @@ public class JsonTokenStream extends JsonParser {
 								break;
 						}
 					}
-					char ch = buffer[internalPos];
-					if (wasBS) {
+					// scan the buffered characters for the closing quote
+					if (wasBS && internalPos < bufSize) {
 						wasBS = false;
-					} else if (ch == '\\') {
-						wasBS = true;
-					} else if (ch == '\"') {  // Close string value
+						internalPos++;
+					}
+					final int end = bufSize;
+					boolean closed = false;
+					while (internalPos < end) {
+						final char ch = buffer[internalPos];
+						if (ch == '\"') {  // Close string value
+							closed = true;
+							break;
+						}
+						internalPos++;
+						if (ch == '\\') {
+							escaped = true;
+							if (internalPos < end) {
+								internalPos++;
+							} else {
+								wasBS = true;
+							}
+						}
+					}
+					if (closed) {
 						break;
 					}
-					internalPos++;
 				}
 				if (largeStringStart >= 0) {
 					long pos = bufSizeGlobalPos - (bufSize - internalPos);
@@ -463,7 +1039,12 @@ public class JsonTokenStream extends JsonParser {
 					int keyLen = key.length();
 					if (keyLen > maxLargeStringPosKey)
 						throw new IllegalStateException("Key is too large: " + keyLen);
-					largeStringPos.put(key, new long[] {largeStringStart, largeStringLen});
+					long largeStringByteLen = -1;
+					if (countBytes)
+						largeStringByteLen = bufSizeGlobalBytePos - utf8Length(buffer, internalPos, bufSize) -
+								largeStringByteStart;
+					largeStringPos.add(largeStringStart, largeStringLen, largeStringByteStart,
+							largeStringByteLen, escaped);
 					System.arraycopy(key.toCharArray(), 0, buffer, 0, keyLen);
 					for (int i = 0; i < bufSize - internalPos; i++)
 						buffer[keyLen + i] = buffer[internalPos + i];
@@ -489,6 +1070,8 @@ public class JsonTokenStream extends JsonParser {
 						int count = r.read(buffer, bufSize, buffer.length - bufSize);
 						if (count < 0)
 							break;
+						if (countBytes)
+							bufSizeGlobalBytePos += utf8Length(buffer, bufSize, bufSize + count);
 						bufSize += count;
 						bufSizeGlobalPos += count;
 						if (bufSize == buffer.length)
@@ -714,9 +1297,11 @@ public class JsonTokenStream extends JsonParser {
 		JsonToken ret = getInner().nextToken();
 		int lastPos = path.size() - 1;
 		if (ret == JsonToken.START_ARRAY) {
+			startContainer();
 			path.add(0);
 		} else if (ret == JsonToken.END_ARRAY) {
 			path.remove(lastPos);
+			endContainer();
 			lastPos--;
 			if (fixedLevels > 0 && path.size() == fixedLevels) {
 				close();
@@ -726,9 +1311,11 @@ public class JsonTokenStream extends JsonParser {
 					path.set(lastPos, (Integer)obj + 1);
 			}
 		} else if (ret == JsonToken.START_OBJECT) {
+			startContainer();
 			path.add("{");
 		} else if (ret == JsonToken.END_OBJECT) {
 			path.remove(lastPos);
+			endContainer();
 			lastPos--;
 			if (fixedLevels > 0 && path.size() == fixedLevels) {
 				close();
@@ -1109,6 +1696,12 @@ public class JsonTokenStream extends JsonParser {
 	//write the object, less enclosing {} or [], to jgen. Only works for arrays and objects.
 	private void writeObjectContents(JsonGenerator jgen) throws IOException {
 		final Object os = jgen.getOutputTarget();
+		if (os instanceof OutputStream && jgen instanceof UTF8JsonGenerator &&
+				utf8.equals(encoding) && sdata == null) {
+			jgen.flush();
+			writeBytes((OutputStream) os);
+			return;
+		}
 		final Writer w;
 		if (os instanceof BufferedWriter) {
 			w = (Writer) os;
@@ -1126,11 +1719,7 @@ public class JsonTokenStream extends JsonParser {
 						"UTF8JsonGenerator and wraps an OutputStream. " +
 						"No way to determine encoding to use."); 
 			}
-			/* could be faster bypassing the writer if the OS is available,
-			 * but tricky may need to convert encodings, change BOM, etc.
-			 * Esp if in future more encodings are available for writing
-			 * directly to output streams.
-			 */
+			// not UTF-8, so the data has to be converted
 			w = new BufferedWriter(
 					new OutputStreamWriter((OutputStream) os, utf8));
 		} else {
@@ -1162,15 +1751,81 @@ public class JsonTokenStream extends JsonParser {
 		w.flush();
 	}
 
+	/* Copies the UTF-8 data, less the enclosing {} or [], to the output stream without
+	 * decoding it. Files are copied with FileChannel.transferTo.
+	 */
+	private void writeBytes(final OutputStream os) throws IOException {
+		if (bdata != null) {
+			os.write(bdata, 1, bdata.length - 2);
+		} else if (fdata != null && mdata == null) {
+			try (final FileChannel fc = FileChannel.open(fdata.toPath(),
+					StandardOpenOption.READ)) {
+				final WritableByteChannel target = os instanceof FileOutputStream ?
+						((FileOutputStream) os).getChannel() : Channels.newChannel(os);
+				final long end = fc.size() - 1;
+				long pos = 1;
+				while (pos < end) {
+					pos += fc.transferTo(pos, end - pos, target);
+				}
+			}
+		} else {
+			final InputStream is;
+			if (mdata != null) {
+				is = mdata.openStream(1, mdata.length - 1);
+			} else {
+				final ByteBuffer contents = bbdata.duplicate();
+				contents.position(1);
+				contents.limit(bbdata.limit() - 1);
+				is = new ByteBufferInputStream(contents);
+			}
+			final byte[] buf = new byte[copyBufferSize];
+			int read;
+			while ((read = is.read(buf)) > 0) {
+				os.write(buf, 0, read);
+			}
+		}
+		os.flush();
+	}
+
+	/* Opens a stream over the whole of the data if writeJson(OutputStream) copies it as bytes,
+	 * i.e. if it is trusted UTF-8 JSON in a byte array, file or ByteBuffer with an array or
+	 * object at the root. Otherwise returns null.
+	 */
+	InputStream openTrustedBytes() throws IOException {
+		if (!goodWholeJSON || !utf8.equals(encoding) || sdata != null) {
+			return null;
+		}
+		final long len;
+		if (bdata != null) {
+			len = bdata.length;
+		} else if (mdata != null) {
+			len = mdata.length;
+		} else if (fdata != null) {
+			len = fdata.length();
+		} else {
+			len = bbdata.limit();
+		}
+		final InputStream is = new BufferedInputStream(openBytes(0, len), copyBufferSize);
+		is.mark(1);
+		final int first = is.read();
+		if (first != '{' && first != '[') {
+			is.close();
+			return null;
+		}
+		is.reset();
+		return is;
+	}
+
 	/**
 	 * Write all selected (probably through setRoot) tokens into output file.
 	 * @param f
 	 * @throws IOException
 	 */
 	public void writeJson(File f) throws IOException {
-		OutputStream os = new BufferedOutputStream(new FileOutputStream(f));
-		writeJson(os);
-		os.close();
+		// the generator buffers its output, and trusted data can be transferred file to file
+		try (final OutputStream os = new FileOutputStream(f)) {
+			writeJson(os);
+		}
 	}
 
 	/**
@@ -1179,8 +1834,14 @@ public class JsonTokenStream extends JsonParser {
 	 * @throws IOException
 	 */
 	public void writeJson(OutputStream os) throws IOException {
-		//could be faster writing directly to the output stream when goodWholeJSON = true;
-		writeJson(new OutputStreamWriter(os, utf8));
+		if (stringBufferSize > 0) {
+			writeJson(new OutputStreamWriter(os, utf8));
+			return;
+		}
+		// writing to the stream allows trusted UTF-8 data to be copied without decoding
+		JsonGenerator jgen = FACTORY.createGenerator(os, JsonEncoding.UTF8);
+		writeTokens(jgen);
+		jgen.flush();
 	}
 	
 	/**
@@ -1191,8 +1852,7 @@ public class JsonTokenStream extends JsonParser {
 	public void writeJson(Writer w) throws IOException {
 		if (stringBufferSize > 0)
 			w = getWrapperForLargeStrings(w);
-		JsonFactory jf = new JsonFactory();
-		JsonGenerator jgen = jf.createGenerator(w);
+		JsonGenerator jgen = FACTORY.createGenerator(w);
 		writeTokens(jgen);
 		jgen.flush();
 	}
@@ -1203,20 +1863,127 @@ public class JsonTokenStream extends JsonParser {
 	 * @return was this string substituted as large string or not
 	 */
 	public boolean isLargeString(String text) {
-		return largeStringPos.containsKey(text);
+		return largeStringPos.indexOf(text) >= 0;
 	}
 	
 	/**
-	 * Search large string position and allow to read this large string as reader.
+	 * Search large string position and allow to read this large string as reader. The reader
+	 * returns the string as it appears in the JSON, with any escapes.
 	 * @param text
 	 * @return reader substituting large strings
 	 * @throws IOException
 	 */
 	public Reader getLargeStringReader(String text) throws IOException {
-		long[] borders = largeStringPos.get(text);
-		if (borders == null)
+		final int i = getLargeStringIndex(text);
+		return getLargeStringReader(largeStringPos.starts[i], largeStringPos.lengths[i]);
+	}
+	
+	/**
+	 * Get the value of a large string as UTF-8 bytes, with any JSON escapes decoded. For UTF-8
+	 * byte array, file and ByteBuffer data sources, the stream reads the bytes of the string
+	 * directly from the data source. Otherwise the string is read with
+	 * {@link #getLargeStringReader(String)} and encoded.
+	 * @param text the keyword substituted for the large string.
+	 * @return the string's UTF-8 bytes.
+	 * @throws IOException if the data source could not be read.
+	 */
+	public InputStream getLargeStringInputStream(String text) throws IOException {
+		final int i = getLargeStringIndex(text);
+		final InputStream raw;
+		if (largeStringPos.byteStarts[i] >= 0) {
+			raw = openBytes(largeStringPos.byteStarts[i],
+					largeStringPos.byteStarts[i] + largeStringPos.byteLengths[i]);
+		} else {
+			raw = new EncodingInputStream(getLargeStringReader(
+					largeStringPos.starts[i], largeStringPos.lengths[i]));
+		}
+		return largeStringPos.escaped[i] ? new UnescapingInputStream(raw) : raw;
+	}
+	
+	/**
+	 * Get the value of a large string as UTF-8 bytes, with any JSON escapes decoded. For UTF-8
+	 * byte array, ByteBuffer and memory mapped file data sources, strings without escapes are
+	 * returned as a read only view of the data source without copying. Otherwise the string is
+	 * read into a new buffer.
+	 * @param text the keyword substituted for the large string.
+	 * @return the string's UTF-8 bytes.
+	 * @throws IOException if the data source could not be read.
+	 */
+	public ByteBuffer getLargeStringBytes(String text) throws IOException {
+		final int i = getLargeStringIndex(text);
+		final long start = largeStringPos.byteStarts[i];
+		if (start >= 0 && !largeStringPos.escaped[i]) {
+			final long end = start + largeStringPos.byteLengths[i];
+			if (bdata != null) {
+				return ByteBuffer.wrap(bdata, (int) start, (int) (end - start)).slice()
+						.asReadOnlyBuffer();
+			} else if (bbdata != null) {
+				final ByteBuffer slice = bbdata.duplicate();
+				slice.position((int) start);
+				slice.limit((int) end);
+				return slice.slice();
+			} else if (mdata != null && mdata.slice(start, end) != null) {
+				return mdata.slice(start, end);
+			}
+		}
+		final long len = getLargeStringByteLength(text);
+		if (len > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Large string is too long for a ByteBuffer: " + len);
+		}
+		final byte[] ret = new byte[(int) len];
+		try (final InputStream is = getLargeStringInputStream(text)) {
+			int pos = 0;
+			while (pos < ret.length) {
+				final int read = is.read(ret, pos, ret.length - pos);
+				if (read < 0) {
+					throw new IllegalStateException("Unexpected end of large string");
+				}
+				pos += read;
+			}
+		}
+		return ByteBuffer.wrap(ret).asReadOnlyBuffer();
+	}
+	
+	/**
+	 * Get the length of the UTF-8 bytes of a large string's value, with any JSON escapes
+	 * decoded. For UTF-8 byte array, file and ByteBuffer data sources the length of strings
+	 * without escapes is known without reading the string. Otherwise the string is read once
+	 * to find its length.
+	 * @param text the keyword substituted for the large string.
+	 * @return the string's length in bytes.
+	 * @throws IOException if the data source could not be read.
+	 */
+	public long getLargeStringByteLength(String text) throws IOException {
+		final int i = getLargeStringIndex(text);
+		if (largeStringPos.valueLengths[i] < 0) {
+			long len = 0;
+			try (final InputStream is = getLargeStringInputStream(text)) {
+				final byte[] buf = new byte[copyBufferSize];
+				int read;
+				while ((read = is.read(buf)) > 0) {
+					len += read;
+				}
+			}
+			largeStringPos.valueLengths[i] = len;
+		}
+		return largeStringPos.valueLengths[i];
+	}
+	
+	private int getLargeStringIndex(final String text) {
+		final int i = largeStringPos.indexOf(text);
+		if (i < 0)
 			throw new IllegalArgumentException("It's not large string");
-		return getLargeStringReader(borders[0], borders[1]);
+		return i;
+	}
+	
+	// the number of bytes the characters take in UTF-8
+	private static long utf8Length(final char[] buf, final int from, final int to) {
+		long len = 0;
+		for (int i = from; i < to; i++) {
+			final char c = buf[i];
+			len += c < 0x80 ? 1 : (c < 0x800 || Character.isSurrogate(c) ? 2 : 3);
+		}
+		return len;
 	}
 	
 	private Reader getLargeStringReader(long pos, final long commonLength) throws IOException {
@@ -1259,17 +2026,18 @@ public class JsonTokenStream extends JsonParser {
 										prefixIsGood = false;  // It's not large string, treat it normally.
 										break;
 									}
-								long[] borders = null;
+								int borders = -1;
 								if (prefixIsGood) {
 									String key = new String(buffer, afterOpenQuotPos, bufSize - 1 - afterOpenQuotPos);
-									borders = largeStringPos.get(key);
+									borders = largeStringPos.indexOf(key);
 								}
-								if (borders != null) {  // It's our large string 
+								if (borders >= 0) {  // It's our large string 
 									pos -= (bufSize - afterOpenQuotPos);
 									//System.out.println("Large string: pos+len=" + borders[0] + "+" + borders[1] + ", afterquotpos=" + pos);
 									bufSize = afterOpenQuotPos;
 									afterOpenQuotPos = -1;
-									Reader lsr = getLargeStringReader(borders[0], borders[1]);
+									Reader lsr = getLargeStringReader(largeStringPos.starts[borders],
+											largeStringPos.lengths[borders]);
 									while (true) {
 										if (bufSize == buffer.length)
 											forwardBuffer();
@@ -1407,11 +2175,13 @@ public class JsonTokenStream extends JsonParser {
 		private boolean isClosed = false;
 		
 		public LargeStringSearchingReader place(long start, long len) throws IOException {
-			if (r == null || isClosed) {
+			if (r == null || isClosed || pos > start) {
+				// reopening a memory mapped or in memory source is cheap
+				if (r != null) {
+					r.close();
+				}
 				r = createDataReader();
-				pos = 0;
-			} else if (pos > start) {
-				r.reset();
+				isClosed = false;
 				pos = 0;
 			}
 			if (pos < start) {
@@ -1447,6 +2217,567 @@ public class JsonTokenStream extends JsonParser {
 		}
 	}
 	
+	/* The start positions and lengths of the large strings found in the data source, sorted by
+	 * start position. The keyword substituted for a large string encodes its position, so
+	 * keywords are parsed rather than stored.
+	 * Byte positions are only known for UTF-8 byte sources and are -1 otherwise.
+	 */
+	private static class LargeStringSpans {
+		private long[] starts = new long[16];
+		private long[] lengths = new long[16];
+		private long[] byteStarts = new long[16];
+		private long[] byteLengths = new long[16];
+		// UTF-8 length of the unescaped string, -1 until known
+		private long[] valueLengths = new long[16];
+		private boolean[] escaped = new boolean[16];
+		private int size = 0;
+		
+		public void add(
+				final long start,
+				final long length,
+				final long byteStart,
+				final long byteLength,
+				final boolean hasEscapes) {
+			// strings are found in order, other than when the data is parsed again
+			int i = size;
+			if (size > 0 && starts[size - 1] >= start) {
+				i = Arrays.binarySearch(starts, 0, size, start);
+				if (i >= 0) {
+					return;
+				}
+				i = -i - 1;
+			}
+			if (size == starts.length) {
+				starts = Arrays.copyOf(starts, size * 2);
+				lengths = Arrays.copyOf(lengths, size * 2);
+				byteStarts = Arrays.copyOf(byteStarts, size * 2);
+				byteLengths = Arrays.copyOf(byteLengths, size * 2);
+				valueLengths = Arrays.copyOf(valueLengths, size * 2);
+				escaped = Arrays.copyOf(escaped, size * 2);
+			}
+			System.arraycopy(starts, i, starts, i + 1, size - i);
+			System.arraycopy(lengths, i, lengths, i + 1, size - i);
+			System.arraycopy(byteStarts, i, byteStarts, i + 1, size - i);
+			System.arraycopy(byteLengths, i, byteLengths, i + 1, size - i);
+			System.arraycopy(valueLengths, i, valueLengths, i + 1, size - i);
+			System.arraycopy(escaped, i, escaped, i + 1, size - i);
+			starts[i] = start;
+			lengths[i] = length;
+			byteStarts[i] = byteStart;
+			byteLengths[i] = byteLength;
+			valueLengths[i] = hasEscapes || byteStart < 0 ? -1 : byteLength;
+			escaped[i] = hasEscapes;
+			size++;
+		}
+		
+		// returns the index of the large string if the keyword is for one, otherwise -1
+		public int indexOf(final String keyword) {
+			if (keyword == null || !keyword.startsWith(largeStringSubstPrefix)) {
+				return -1;
+			}
+			final int comma = keyword.indexOf(',', largeStringSubstPrefix.length());
+			if (comma < 0) {
+				return -1;
+			}
+			final long start;
+			final long length;
+			try {
+				start = Long.parseLong(keyword.substring(largeStringSubstPrefix.length(), comma));
+				length = Long.parseLong(keyword.substring(comma + 1));
+			} catch (NumberFormatException e) {
+				return -1;
+			}
+			final int i = Arrays.binarySearch(starts, 0, size, start);
+			if (i < 0 || lengths[i] != length) {
+				return -1;
+			}
+			return i;
+		}
+	}
+	
+	/* Scans a chunk of UTF-8 JSON for the brackets, commas and keys outside of strings. Since
+	 * whether the chunk starts inside a string isn't known until the preceding chunks are
+	 * scanned, the chunk is scanned for both cases.
+	 * Events are recorded with the number of containers open in the chunk when they occur,
+	 * which is negative for containers opened before the chunk, and events deeper than the
+	 * maximum level are skipped.
+	 */
+	private static class StructureScan {
+		private static final int OPEN = 0;
+		private static final int CLOSE = 1;
+		private static final int COMMA = 2;
+		private static final int KEY = 3;
+		
+		private final ByteBuffer[] segments;
+		private final long segmentSize;
+		private final int segment;
+		private final int from;
+		private final int to;
+		private final int maxLevel;
+		private final Result[] results = new Result[2];
+		private static final int SCAN_BLOCK_SIZE = 1 << 16;
+		// the bytes that end a run of bytes inside and outside strings
+		private static final boolean[] STRING_SPECIAL = new boolean[256];
+		private static final boolean[] STRUCTURAL = new boolean[256];
+		static {
+			STRING_SPECIAL['"'] = true;
+			STRING_SPECIAL['\\'] = true;
+			for (final char c: "\"{}[],".toCharArray()) {
+				STRUCTURAL[c] = true;
+			}
+		}
+		
+		private static class Result {
+			private long[] offsets = new long[64];
+			// the event type in the low 3 bits, the level above them
+			private int[] events = new int[64];
+			private int count = 0;
+			private boolean endInString;
+			// the start of the string the chunk ends in, -1 if it started in an earlier chunk
+			private long openStringStart;
+			private int endLevel;
+			
+			private void add(final long offset, final int type, final int level) {
+				if (count == offsets.length) {
+					offsets = Arrays.copyOf(offsets, count * 2);
+					events = Arrays.copyOf(events, count * 2);
+				}
+				offsets[count] = offset;
+				events[count++] = level << 3 | type;
+			}
+		}
+		
+		private StructureScan(
+				final ByteBuffer[] segments,
+				final long segmentSize,
+				final int segment,
+				final int from,
+				final int to,
+				final int maxLevel) {
+			this.segments = segments;
+			this.segmentSize = segmentSize;
+			this.segment = segment;
+			this.from = from;
+			this.to = to;
+			this.maxLevel = maxLevel;
+		}
+		
+		private Runnable scan(final boolean startInString) {
+			return new Runnable() {
+				
+				@Override
+				public void run() {
+					results[startInString ? 1 : 0] = scanChunk(startInString, from);
+				}
+			};
+		}
+		
+		private Result getResult(final boolean startInString) {
+			final Result r = results[startInString ? 1 : 0];
+			if (!startInString) {
+				return r;
+			}
+			// an escape may start in the preceding chunk
+			final long start = segment * segmentSize + from;
+			long escapes = 0;
+			while (start - escapes > 0 && byteAt(segments, segmentSize,
+					start - escapes - 1) == '\\') {
+				escapes++;
+			}
+			return escapes % 2 == 0 ? r : scanChunk(true, from + 1);
+		}
+		
+		private Result scanChunk(boolean inString, final int start) {
+			final Result r = new Result();
+			final ByteBuffer buf = segments[segment].duplicate();
+			final long base = segment * segmentSize;
+			final byte[] block = new byte[SCAN_BLOCK_SIZE];
+			int blockStart = start;
+			int blockEnd = start;
+			int level = 0;
+			int stringStart = -1;
+			int i = start;
+			while (i < to) {
+				if (i >= blockEnd) {
+					blockStart = i;
+					blockEnd = Math.min(to, i + SCAN_BLOCK_SIZE);
+					buf.position(i);
+					buf.get(block, 0, blockEnd - i);
+				}
+				final int n = blockEnd - blockStart;
+				int j = i - blockStart;
+				// skip to the next byte that matters in the current state
+				final boolean[] special = inString ? STRING_SPECIAL : STRUCTURAL;
+				while (j < n && !special[block[j] & 0xFF]) {
+					j++;
+				}
+				i = blockStart + j;
+				if (j == n) {
+					continue;
+				}
+				final byte b = block[j];
+				if (inString) {
+					if (b == '\\') {
+						i++;
+					} else {  // closing quote
+						inString = false;
+						if (level <= maxLevel && isKey(base + i + 1)) {
+							// -1 if the key started in an earlier chunk
+							r.add(stringStart < 0 ? -1 : base + stringStart, KEY, level);
+						}
+					}
+				} else if (b == '"') {
+					inString = true;
+					stringStart = i;
+				} else if (b == '{' || b == '[') {
+					if (level <= maxLevel) {
+						r.add(base + i, OPEN, level);
+					}
+					level++;
+				} else if (b == '}' || b == ']') {
+					level--;
+					if (level <= maxLevel) {
+						r.add(base + i, CLOSE, level);
+					}
+				} else if (level <= maxLevel) {  // comma
+					r.add(base + i, COMMA, level);
+				}
+				i++;
+			}
+			r.endInString = inString;
+			r.openStringStart = inString && stringStart >= 0 ? base + stringStart : -1;
+			r.endLevel = level;
+			return r;
+		}
+		
+		// true if the string that ended before the position is followed by a colon
+		private boolean isKey(long pos) {
+			final long end = (segments.length - 1) * segmentSize +
+					segments[segments.length - 1].limit();
+			while (pos < end) {
+				final byte b = byteAt(segments, segmentSize, pos++);
+				if (b == ':') {
+					return true;
+				}
+				if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+					return false;
+				}
+			}
+			return false;
+		}
+	}
+	
+	// a read only memory mapping of a file, split into segments so files over 2GB can be mapped
+	private static class MappedFile {
+		private final ByteBuffer[] segments;
+		private final int segmentSize;
+		private final long length;
+		
+		public MappedFile(final File file, final int segmentSize) throws IOException {
+			this.segmentSize = segmentSize;
+			try (final FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				length = fc.size();
+				segments = new ByteBuffer[(int) ((length + segmentSize - 1) / segmentSize)];
+				for (int i = 0; i < segments.length; i++) {
+					final long start = (long) i * segmentSize;
+					segments[i] = fc.map(FileChannel.MapMode.READ_ONLY, start,
+							Math.min(segmentSize, length - start));
+				}
+			}
+		}
+		
+		// returns a view of the bytes from start up to end, or null if they span segments
+		public ByteBuffer slice(final long start, final long end) {
+			final int seg = (int) (start / segmentSize);
+			if (end - start > segmentSize - start % segmentSize) {
+				return null;
+			}
+			final ByteBuffer slice = segments[seg].duplicate();
+			slice.position((int) (start % segmentSize));
+			slice.limit((int) (start % segmentSize + end - start));
+			return slice.slice().asReadOnlyBuffer();
+		}
+		
+		// reads the bytes from start up to but not including end
+		public InputStream openStream(final long start, final long end) {
+			return new InputStream() {
+				private long pos = start;
+				private ByteBuffer seg = null;
+				
+				@Override
+				public int read() throws IOException {
+					final byte[] b = new byte[1];
+					return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+				}
+				
+				@Override
+				public int read(final byte[] b, final int off, final int len)
+						throws IOException {
+					if (len == 0) {
+						return 0;
+					}
+					if (pos >= end) {
+						return -1;
+					}
+					if (seg == null || !seg.hasRemaining()) {
+						seg = segments[(int) (pos / segmentSize)].duplicate();
+						seg.position((int) (pos % segmentSize));
+					}
+					final int count = (int) Math.min(Math.min(len, seg.remaining()), end - pos);
+					seg.get(b, off, count);
+					pos += count;
+					return count;
+				}
+				
+				@Override
+				public long skip(final long n) throws IOException {
+					final long count = Math.max(0, Math.min(n, end - pos));
+					pos += count;
+					seg = null;
+					return count;
+				}
+				
+				@Override
+				public int available() throws IOException {
+					return (int) Math.min(Integer.MAX_VALUE, end - pos);
+				}
+			};
+		}
+	}
+	
+	// encodes the characters from a reader as UTF-8
+	private static class EncodingInputStream extends InputStream {
+		private final Reader in;
+		private final CharsetEncoder encoder = utf8.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		private final CharBuffer chars = CharBuffer.allocate(8192);
+		private final ByteBuffer bytes = ByteBuffer.allocate(8192 * 3);
+		private boolean endOfInput = false;
+		
+		public EncodingInputStream(final Reader in) {
+			this.in = in;
+			chars.flip();
+			bytes.flip();
+		}
+		
+		@Override
+		public int read() throws IOException {
+			final byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+		}
+		
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			while (!bytes.hasRemaining()) {
+				if (endOfInput && !chars.hasRemaining()) {
+					return -1;
+				}
+				chars.compact();
+				final int read = endOfInput ? -1 : in.read(chars);
+				chars.flip();
+				if (read < 0) {
+					endOfInput = true;
+				}
+				bytes.clear();
+				encoder.encode(chars, bytes, endOfInput);
+				if (endOfInput) {
+					encoder.flush(bytes);
+				}
+				bytes.flip();
+				if (endOfInput && chars.hasRemaining() && !bytes.hasRemaining()) {
+					// a lone high surrogate at the end of the input
+					chars.position(chars.limit());
+				}
+			}
+			final int count = Math.min(len, bytes.remaining());
+			bytes.get(b, off, count);
+			return count;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+	
+	// decodes the escapes in the UTF-8 bytes of a JSON string
+	private static class UnescapingInputStream extends InputStream {
+		private final InputStream in;
+		private final byte[] pending = new byte[4];
+		private int pendingPos = 0;
+		private int pendingLen = 0;
+		
+		public UnescapingInputStream(final InputStream in) {
+			this.in = new BufferedInputStream(in);
+		}
+		
+		@Override
+		public int read() throws IOException {
+			if (pendingPos < pendingLen) {
+				return pending[pendingPos++] & 0xFF;
+			}
+			final int b = in.read();
+			if (b != '\\') {
+				return b;
+			}
+			final int e = in.read();
+			switch (e) {
+				case '"': return '"';
+				case '\\': return '\\';
+				case '/': return '/';
+				case 'b': return '\b';
+				case 'f': return '\f';
+				case 'n': return '\n';
+				case 'r': return '\r';
+				case 't': return '\t';
+				case 'u': break;
+				default: throw new IOException("Illegal escape in large string: " +
+						(e < 0 ? "end of string" : (char) e));
+			}
+			int cp = readHex();
+			if (Character.isHighSurrogate((char) cp)) {
+				in.mark(6);
+				if (in.read() == '\\' && in.read() == 'u') {
+					final int low = readHex();
+					if (Character.isLowSurrogate((char) low)) {
+						cp = Character.toCodePoint((char) cp, (char) low);
+					} else {
+						in.reset();
+					}
+				} else {
+					in.reset();
+				}
+			}
+			if (Character.isSurrogate((char) cp)) {
+				cp = '?';  // unpaired, encoded as String.getBytes() does
+			}
+			final byte[] enc = new String(Character.toChars(cp)).getBytes(utf8);
+			System.arraycopy(enc, 0, pending, 0, enc.length);
+			pendingPos = 1;
+			pendingLen = enc.length;
+			return pending[0] & 0xFF;
+		}
+		
+		private int readHex() throws IOException {
+			int cp = 0;
+			for (int i = 0; i < 4; i++) {
+				final int d = Character.digit(in.read(), 16);
+				if (d < 0) {
+					throw new IOException("Illegal unicode escape in large string");
+				}
+				cp = cp * 16 + d;
+			}
+			return cp;
+		}
+		
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			int count = 0;
+			while (count < len) {
+				final int c = read();
+				if (c < 0) {
+					break;
+				}
+				b[off + count++] = (byte) c;
+			}
+			return count == 0 ? -1 : count;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+	
+	// reads at most a given number of bytes from another stream
+	private static class LimitedInputStream extends InputStream {
+		private final InputStream in;
+		private long remaining;
+		
+		public LimitedInputStream(final InputStream in, final long limit) {
+			this.in = in;
+			this.remaining = limit;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			if (remaining < 1) {
+				return -1;
+			}
+			final int b = in.read();
+			if (b >= 0) {
+				remaining--;
+			}
+			return b;
+		}
+		
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (remaining < 1) {
+				return -1;
+			}
+			final int count = in.read(b, off, (int) Math.min(len, remaining));
+			if (count > 0) {
+				remaining -= count;
+			}
+			return count;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+	
+	// reads a duplicate of the buffer so the buffer's state is never altered
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buf;
+		
+		public ByteBufferInputStream(final ByteBuffer buf) {
+			this.buf = buf.duplicate();
+		}
+		
+		@Override
+		public int read() throws IOException {
+			return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+		}
+		
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!buf.hasRemaining()) {
+				return -1;
+			}
+			final int count = Math.min(len, buf.remaining());
+			buf.get(b, off, count);
+			return count;
+		}
+		
+		@Override
+		public long skip(final long n) throws IOException {
+			final int count = (int) Math.max(0, Math.min(n, buf.remaining()));
+			buf.position(buf.position() + count);
+			return count;
+		}
+		
+		@Override
+		public int available() throws IOException {
+			return buf.remaining();
+		}
+	}
+	
 	/**
 	 * Useful for listening data stream open/close events for debug purposes.
 	 * @author rsutormin
@@ -0,0 +1,124 @@
+package us.kbase.common.service;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/** An {@link HttpConnectionProvider} that keeps connections alive between calls and
+ * optionally limits the number of concurrent connections per host.
+ *
+ * Connections are pooled by the JVM's HTTP keep-alive cache, which is shared by all
+ * {@link HttpURLConnection}s in the JVM. The number of idle connections kept per host and
+ * how long they are kept are set by the http.keepAlive and http.maxConnections system
+ * properties and the server's Keep-Alive header.
+ *
+ * Calls to a host that is at its connection limit wait for another call to the host to finish,
+ * up to the acquire timeout, and then fail with a {@link ConnectionLimitException}.
+ */
+public class KeepAliveConnectionProvider implements HttpConnectionProvider {
+
+	private final int maxConnectionsPerHost;
+	private final long acquireTimeoutMS;
+	private final Map<String, Semaphore> hosts = new ConcurrentHashMap<>();
+	private final Map<HttpURLConnection, Semaphore> open = new ConcurrentHashMap<>();
+
+	/** Create the provider.
+	 * @param maxConnectionsPerHost the maximum number of concurrent connections to each host,
+	 * or 0 for no limit.
+	 * @param acquireTimeoutMS the maximum time in milliseconds to wait for a connection when a
+	 * host is at its connection limit.
+	 */
+	public KeepAliveConnectionProvider(
+			final int maxConnectionsPerHost,
+			final long acquireTimeoutMS) {
+		if (maxConnectionsPerHost < 0) {
+			throw new IllegalArgumentException("maxConnectionsPerHost must be at least 0");
+		}
+		if (acquireTimeoutMS < 0) {
+			throw new IllegalArgumentException("acquireTimeoutMS must be at least 0");
+		}
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+		this.acquireTimeoutMS = acquireTimeoutMS;
+	}
+
+	@Override
+	public HttpURLConnection openConnection(final URL url) throws IOException {
+		final Semaphore permits = getPermits(url);
+		if (permits != null) {
+			try {
+				if (!permits.tryAcquire(acquireTimeoutMS, TimeUnit.MILLISECONDS)) {
+					throw new ConnectionLimitException(
+							"Timed out waiting for a connection to " +
+							getHostKey(url));
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for a connection to " +
+						getHostKey(url), e);
+			}
+		}
+		final HttpURLConnection conn;
+		try {
+			conn = (HttpURLConnection) url.openConnection();
+		} catch (IOException | RuntimeException e) {
+			if (permits != null) {
+				permits.release();
+			}
+			throw e;
+		}
+		if (permits != null) {
+			open.put(conn, permits);
+		}
+		return conn;
+	}
+
+	@Override
+	public void releaseConnection(final HttpURLConnection conn) {
+		final Semaphore permits = open.remove(conn);
+		if (permits != null) {
+			permits.release();
+		}
+	}
+
+	private Semaphore getPermits(final URL url) {
+		if (maxConnectionsPerHost < 1) {
+			return null;
+		}
+		final String key = getHostKey(url);
+		Semaphore permits = hosts.get(key);
+		if (permits == null) {
+			final Semaphore newPermits = new Semaphore(maxConnectionsPerHost, true);
+			permits = hosts.putIfAbsent(key, newPermits);
+			if (permits == null) {
+				permits = newPermits;
+			}
+		}
+		return permits;
+	}
+
+	private static String getHostKey(final URL url) {
+		final int port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+		return url.getProtocol() + "://" + url.getHost() + ":" + port;
+	}
+
+	/** Get the maximum number of concurrent connections to each host.
+	 * @return the limit, or 0 if there is no limit.
+	 */
+	public int getMaxConnectionsPerHost() {
+		return maxConnectionsPerHost;
+	}
+
+	/** Get the number of connections to a host that are currently in use by calls.
+	 * Connections are only tracked if there is a connection limit.
+	 * @param url a URL on the host.
+	 * @return the number of connections in use.
+	 */
+	public int getActiveConnections(final URL url) {
+		final Semaphore permits = hosts.get(getHostKey(url));
+		return permits == null ? 0 : maxConnectionsPerHost - permits.availablePermits();
+	}
+}
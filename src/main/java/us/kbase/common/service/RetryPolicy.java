@@ -0,0 +1,106 @@
+package us.kbase.common.service;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Determines which calls {@link JsonClientCaller} retries and how long it waits between
+ * attempts.
+ *
+ * Only idempotent methods are retried, since a failed call may still have run on the server.
+ * Calls are retried if they fail with an {@link IOException}, other than a
+ * {@link CircuitOpenException} or {@link ConnectionLimitException}, or if the server reports that
+ * it is too busy to run the call.
+ *
+ * The wait before each retry is chosen at random between 0 and an exponentially increasing
+ * limit, starting at the initial backoff and capped at the maximum backoff, so that clients
+ * that failed at the same time don't retry at the same time.
+ */
+public class RetryPolicy {
+
+	/* the error code JsonServerServlet returns when it is too busy to run a call */
+	private static final int SERVER_BUSY = -32000;
+
+	private final Set<String> idempotentMethods;
+	private final int maxAttempts;
+	private final long initialBackoffMS;
+	private final long maxBackoffMS;
+	private final AtomicLong retries = new AtomicLong();
+
+	/** Create the policy.
+	 * @param idempotentMethods the full names of the methods that may be retried, e.g.
+	 * MyService.get_thing.
+	 * @param maxAttempts the maximum number of attempts for each call, including the first.
+	 * @param initialBackoffMS the limit in milliseconds on the wait before the first retry.
+	 * @param maxBackoffMS the limit in milliseconds on the wait before any retry.
+	 */
+	public RetryPolicy(
+			final Collection<String> idempotentMethods,
+			final int maxAttempts,
+			final long initialBackoffMS,
+			final long maxBackoffMS) {
+		if (idempotentMethods == null) {
+			throw new NullPointerException("idempotentMethods");
+		}
+		if (maxAttempts < 1) {
+			throw new IllegalArgumentException("maxAttempts must be at least 1");
+		}
+		if (initialBackoffMS < 0) {
+			throw new IllegalArgumentException("initialBackoffMS must be at least 0");
+		}
+		if (maxBackoffMS < initialBackoffMS) {
+			throw new IllegalArgumentException("maxBackoffMS must be at least initialBackoffMS");
+		}
+		this.idempotentMethods = Collections.unmodifiableSet(new HashSet<>(idempotentMethods));
+		this.maxAttempts = maxAttempts;
+		this.initialBackoffMS = initialBackoffMS;
+		this.maxBackoffMS = maxBackoffMS;
+	}
+
+	/** Check whether a method is idempotent and may therefore be retried or hedged.
+	 * @param method the full method name.
+	 * @return true if the method is idempotent.
+	 */
+	public boolean isIdempotent(final String method) {
+		return idempotentMethods.contains(method);
+	}
+
+	/** Get the maximum number of attempts for each call, including the first.
+	 * @return the maximum number of attempts.
+	 */
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/** Get the number of retries made under this policy.
+	 * @return the number of retries.
+	 */
+	public long getRetryCount() {
+		return retries.get();
+	}
+
+	/* Returns true if a call that failed with the error should be retried. */
+	boolean isRetryable(final Throwable error) {
+		if (error instanceof CircuitOpenException || error instanceof ConnectionLimitException) {
+			return false;
+		}
+		if (error instanceof ServerException) {
+			return ((ServerException) error).getCode() == SERVER_BUSY;
+		}
+		return error instanceof IOException;
+	}
+
+	/* Returns the time to wait before a retry and counts the retry.
+	 * retry is 1 for the first retry.
+	 */
+	long getBackoffMS(final int retry) {
+		retries.incrementAndGet();
+		final long limit = Math.min(maxBackoffMS,
+				initialBackoffMS << Math.min(retry - 1, 30));
+		return limit < 0 ? maxBackoffMS : ThreadLocalRandom.current().nextLong(limit + 1);
+	}
+}
@@ -0,0 +1,194 @@
+package us.kbase.common.service;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Limits the number of RPC calls {@link JsonServerServlet} runs concurrently, both in total
+ * and per method.
+ *
+ * A call that can't run immediately waits for a running call to finish, up to the queue
+ * timeout. If the wait queue is full, or the timeout expires, the call is rejected.
+ */
+public class RpcAdmissionController {
+
+	/** The configuration key for the global concurrency limit. */
+	public static final String CONFIG_MAX_CONCURRENT = "rpc-max-concurrent";
+	/** The prefix of the configuration keys for per method concurrency limits. The full key
+	 * is the prefix followed by the full RPC method name, e.g.
+	 * rpc-max-concurrent.MyService.my_method.
+	 */
+	public static final String CONFIG_MAX_CONCURRENT_METHOD_PREFIX = CONFIG_MAX_CONCURRENT + ".";
+	/** The configuration key for the maximum number of calls that may wait to run. */
+	public static final String CONFIG_MAX_QUEUED = "rpc-max-queued";
+	/** The configuration key for the maximum time in milliseconds a call may wait to run. */
+	public static final String CONFIG_QUEUE_TIMEOUT_MS = "rpc-queue-timeout-ms";
+
+	private final Semaphore global;
+	private final Map<String, Semaphore> perMethod;
+	private final int maxQueued;
+	private final long queueTimeoutMS;
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicInteger running = new AtomicInteger();
+	private final AtomicLong rejected = new AtomicLong();
+
+	/** Create the controller.
+	 * @param globalLimit the maximum number of calls that may run at once, or 0 for no limit.
+	 * @param perMethodLimits the maximum number of calls that may run at once for specific
+	 * methods, keyed by the full RPC method name (e.g. MyService.my_method).
+	 * @param maxQueued the maximum number of calls that may wait for other calls to finish. 0
+	 * means calls that can't run immediately are rejected.
+	 * @param queueTimeoutMS the maximum time in milliseconds a call may wait to run.
+	 */
+	public RpcAdmissionController(
+			final int globalLimit,
+			final Map<String, Integer> perMethodLimits,
+			final int maxQueued,
+			final long queueTimeoutMS) {
+		if (globalLimit < 0) {
+			throw new IllegalArgumentException("globalLimit must be at least 0");
+		}
+		if (perMethodLimits == null) {
+			throw new NullPointerException("perMethodLimits");
+		}
+		if (maxQueued < 0) {
+			throw new IllegalArgumentException("maxQueued must be at least 0");
+		}
+		if (queueTimeoutMS < 0) {
+			throw new IllegalArgumentException("queueTimeoutMS must be at least 0");
+		}
+		global = globalLimit > 0 ? new Semaphore(globalLimit, true) : null;
+		final Map<String, Semaphore> pm = new HashMap<>();
+		for (final String method: perMethodLimits.keySet()) {
+			final Integer limit = perMethodLimits.get(method);
+			if (limit == null || limit < 1) {
+				throw new IllegalArgumentException(
+						"The limit for method " + method + " must be at least 1");
+			}
+			pm.put(method, new Semaphore(limit, true));
+		}
+		perMethod = Collections.unmodifiableMap(pm);
+		this.maxQueued = maxQueued;
+		this.queueTimeoutMS = queueTimeoutMS;
+	}
+
+	/** Create a controller from a server configuration. See the CONFIG_* keys in this class.
+	 * @param config the server configuration.
+	 * @return the controller, or null if the configuration specifies no limits.
+	 * @throws IllegalArgumentException if a value in the configuration is not a valid integer.
+	 */
+	public static RpcAdmissionController fromConfig(final Map<String, String> config) {
+		final int globalLimit = getInt(config, CONFIG_MAX_CONCURRENT, 0);
+		final Map<String, Integer> perMethodLimits = new HashMap<>();
+		for (final String key: config.keySet()) {
+			if (key.startsWith(CONFIG_MAX_CONCURRENT_METHOD_PREFIX)) {
+				perMethodLimits.put(key.substring(CONFIG_MAX_CONCURRENT_METHOD_PREFIX.length()),
+						getInt(config, key, 0));
+			}
+		}
+		if (globalLimit == 0 && perMethodLimits.isEmpty()) {
+			return null;
+		}
+		return new RpcAdmissionController(globalLimit, perMethodLimits,
+				getInt(config, CONFIG_MAX_QUEUED, 0), getInt(config, CONFIG_QUEUE_TIMEOUT_MS, 0));
+	}
+
+	private static int getInt(final Map<String, String> config, final String key, final int def) {
+		final String value = config.get(key);
+		if (value == null || value.trim().isEmpty()) {
+			return def;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(String.format(
+					"Configuration key %s must be an integer, got %s", key, value));
+		}
+	}
+
+	/** Admit a call, waiting if necessary. If the call is admitted, {@link #release(String)}
+	 * must be called when the call is complete.
+	 * @param rpcName the full RPC method name.
+	 * @return true if the call was admitted, false if it was rejected.
+	 * @throws InterruptedException if the thread was interrupted while waiting.
+	 */
+	public boolean acquire(final String rpcName) throws InterruptedException {
+		final Semaphore method = perMethod.get(rpcName);
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(queueTimeoutMS);
+		if (!acquire(method, deadline)) {
+			rejected.incrementAndGet();
+			return false;
+		}
+		try {
+			if (!acquire(global, deadline)) {
+				rejected.incrementAndGet();
+				if (method != null) {
+					method.release();
+				}
+				return false;
+			}
+		} catch (InterruptedException | RuntimeException e) {
+			if (method != null) {
+				method.release();
+			}
+			throw e;
+		}
+		running.incrementAndGet();
+		return true;
+	}
+
+	private boolean acquire(final Semaphore sem, final long deadline)
+			throws InterruptedException {
+		if (sem == null || sem.tryAcquire()) {
+			return true;
+		}
+		if (queued.incrementAndGet() > maxQueued) {
+			queued.decrementAndGet();
+			return false;
+		}
+		try {
+			return sem.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		} finally {
+			queued.decrementAndGet();
+		}
+	}
+
+	/** Release a call admitted by {@link #acquire(String)}.
+	 * @param rpcName the full RPC method name.
+	 */
+	public void release(final String rpcName) {
+		running.decrementAndGet();
+		if (global != null) {
+			global.release();
+		}
+		final Semaphore method = perMethod.get(rpcName);
+		if (method != null) {
+			method.release();
+		}
+	}
+
+	/** Get the number of calls that are currently running.
+	 * @return the number of running calls.
+	 */
+	public int getRunningCount() {
+		return running.get();
+	}
+
+	/** Get the number of calls that are currently waiting to run.
+	 * @return the number of waiting calls.
+	 */
+	public int getQueuedCount() {
+		return queued.get();
+	}
+
+	/** Get the number of calls that have been rejected since the controller was created.
+	 * @return the number of rejected calls.
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+}
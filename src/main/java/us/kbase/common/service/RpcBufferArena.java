@@ -0,0 +1,126 @@
+package us.kbase.common.service;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/** A bounded pool of direct (off heap) buffers used by {@link JsonServerServlet} to cache
+ * RPC request bodies in memory.
+ *
+ * The arena never holds more than the total budget in buffers. Each request may use at most one
+ * buffer of the per request size, and requests that arrive when all the buffers are in use wait
+ * for a buffer to be released, up to the acquisition timeout.
+ *
+ * Buffers are allocated lazily and are reused once released.
+ */
+public class RpcBufferArena {
+
+	private final int bufferSize;
+	private final int maxBuffers;
+	private final long acquireTimeoutMS;
+	private final Semaphore available;
+	private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+	// ByteBuffer equality depends on the contents, so the buffers in use are tracked by identity
+	private final Set<ByteBuffer> inUse = Collections.synchronizedSet(
+			Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>()));
+
+	/** Create the arena.
+	 * @param totalBudget the maximum number of bytes, in total, that the arena will allocate.
+	 * @param perRequestCap the size of each buffer, and therefore the maximum number of bytes a
+	 * single request may cache in memory.
+	 * @param acquireTimeoutMS the maximum amount of time in milliseconds to wait for a buffer
+	 * when all the buffers are in use.
+	 */
+	public RpcBufferArena(
+			final long totalBudget,
+			final int perRequestCap,
+			final long acquireTimeoutMS) {
+		if (perRequestCap < 1) {
+			throw new IllegalArgumentException("perRequestCap must be at least 1");
+		}
+		if (totalBudget < perRequestCap) {
+			throw new IllegalArgumentException("totalBudget must be at least perRequestCap");
+		}
+		if (acquireTimeoutMS < 0) {
+			throw new IllegalArgumentException("acquireTimeoutMS must be at least 0");
+		}
+		this.bufferSize = perRequestCap;
+		this.maxBuffers = (int) Math.min(Integer.MAX_VALUE, totalBudget / perRequestCap);
+		this.acquireTimeoutMS = acquireTimeoutMS;
+		this.available = new Semaphore(maxBuffers, true);
+	}
+
+	/** Get the size of each buffer in the arena.
+	 * @return the buffer size.
+	 */
+	public int getPerRequestCap() {
+		return bufferSize;
+	}
+
+	/** Get the maximum number of buffers the arena will allocate.
+	 * @return the maximum number of buffers.
+	 */
+	public int getMaxBuffers() {
+		return maxBuffers;
+	}
+
+	/** Get the number of buffers that are not currently in use, whether allocated or not.
+	 * @return the number of available buffers.
+	 */
+	public int getAvailableBuffers() {
+		return available.availablePermits();
+	}
+
+	/** Get the maximum time to wait for a buffer.
+	 * @return the timeout in milliseconds.
+	 */
+	public long getAcquireTimeoutMS() {
+		return acquireTimeoutMS;
+	}
+
+	/** Get a cleared buffer from the arena, waiting up to the acquisition timeout if none are
+	 * available. The buffer must be returned to the arena via {@link #release(ByteBuffer)} when
+	 * it's no longer needed.
+	 * @return the buffer, or null if no buffer became available within the timeout.
+	 * @throws InterruptedException if the thread was interrupted while waiting.
+	 */
+	public ByteBuffer acquire() throws InterruptedException {
+		if (!available.tryAcquire(acquireTimeoutMS, TimeUnit.MILLISECONDS)) {
+			return null;
+		}
+		ByteBuffer buf = free.poll();
+		if (buf == null) {
+			try {
+				buf = ByteBuffer.allocateDirect(bufferSize);
+			} catch (OutOfMemoryError e) {
+				available.release();
+				throw e;
+			}
+		}
+		buf.clear();
+		inUse.add(buf);
+		return buf;
+	}
+
+	/** Return a buffer to the arena. The buffer must not be used after this call.
+	 * @param buffer a buffer retrieved from {@link #acquire()}.
+	 * @throws IllegalArgumentException if the buffer was not retrieved from this arena or has
+	 * already been released.
+	 */
+	public void release(final ByteBuffer buffer) {
+		if (buffer == null) {
+			throw new NullPointerException("buffer");
+		}
+		if (!inUse.remove(buffer)) {
+			throw new IllegalArgumentException(
+					"buffer was not acquired from this arena or was already released");
+		}
+		buffer.clear();
+		free.offer(buffer);
+		available.release();
+	}
+}
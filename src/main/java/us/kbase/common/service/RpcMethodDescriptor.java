@@ -0,0 +1,203 @@
+package us.kbase.common.service;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+
+import us.kbase.auth.AuthToken;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+/** Everything {@link JsonServerServlet} needs to call a {@link JsonServerMethod}, resolved once
+ * when the servlet is constructed rather than on every call.
+ *
+ * The method's parameters are, in order, the JSON RPC parameters, an optional {@link AuthToken},
+ * and an optional {@link RpcContext} or array of {@link RpcContext}.
+ */
+final class RpcMethodDescriptor {
+
+	private final JsonServerServlet servlet;
+	private final Method method;
+	private final MethodHandle invoker;
+	private final int argCount;
+	private final int paramCount;
+	private final int authSlot;
+	private final int contextSlot;
+	private final boolean contextArray;
+	private final boolean authOptional;
+	private final boolean tuple;
+	private final boolean isVoid;
+	private final boolean compressResponse;
+	private final JavaType[] paramTypes;
+	private final ObjectReader[] paramReaders;
+
+	/** Create the descriptor.
+	 * @param servlet the servlet on which the method will be called.
+	 * @param method the method. Must be annotated with {@link JsonServerMethod}.
+	 * @param mapper the mapper used to deserialize the method's parameters.
+	 */
+	RpcMethodDescriptor(
+			final JsonServerServlet servlet,
+			final Method method,
+			final ObjectMapper mapper) {
+		this.servlet = servlet;
+		this.method = method;
+		final JsonServerMethod ann = method.getAnnotation(JsonServerMethod.class);
+		authOptional = ann.authOptional();
+		tuple = ann.tuple();
+		isVoid = method.getReturnType().equals(Void.TYPE);
+		compressResponse = ann.compressResponse();
+		final Class<?>[] classes = method.getParameterTypes();
+		final Type[] types = method.getGenericParameterTypes();
+		argCount = classes.length;
+		int count = argCount;
+		if (count > 0 && classes[count - 1].equals(RpcContext.class)) {
+			count--;
+			contextSlot = count;
+			contextArray = false;
+		} else if (count > 0 && classes[count - 1].isArray() &&
+				classes[count - 1].getComponentType().equals(RpcContext.class)) {
+			count--;
+			contextSlot = count;
+			contextArray = true;
+		} else {
+			contextSlot = -1;
+			contextArray = false;
+		}
+		if (count > 0 && classes[count - 1].equals(AuthToken.class)) {
+			count--;
+			authSlot = count;
+		} else {
+			authSlot = -1;
+		}
+		paramCount = count;
+		paramTypes = new JavaType[paramCount];
+		paramReaders = new ObjectReader[paramCount];
+		for (int i = 0; i < paramCount; i++) {
+			if (!types[i].equals(UObject.class)) {
+				paramTypes[i] = mapper.getTypeFactory().constructType(types[i]);
+				paramReaders[i] = mapper.readerFor(paramTypes[i]);
+			}
+		}
+		invoker = getInvoker(servlet, method, argCount);
+	}
+
+	// returns null if the method can't be accessed via a handle, in which case reflection is used
+	private static MethodHandle getInvoker(
+			final JsonServerServlet servlet,
+			final Method method,
+			final int argCount) {
+		try {
+			return MethodHandles.publicLookup().unreflect(method)
+					.bindTo(servlet)
+					.asSpreader(Object[].class, argCount)
+					.asType(MethodType.methodType(Object.class, Object[].class));
+		} catch (IllegalAccessException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/** Get the method.
+	 * @return the method.
+	 */
+	Method getMethod() {
+		return method;
+	}
+
+	/** Get the total number of arguments of the method, including the token and context.
+	 * @return the number of arguments.
+	 */
+	int getArgCount() {
+		return argCount;
+	}
+
+	/** Get the number of JSON RPC parameters the method expects.
+	 * @return the number of parameters.
+	 */
+	int getParamCount() {
+		return paramCount;
+	}
+
+	/** Get the position of the {@link AuthToken} argument.
+	 * @return the position, or -1 if the method does not take a token.
+	 */
+	int getAuthSlot() {
+		return authSlot;
+	}
+
+	/** Get the position of the {@link RpcContext} argument.
+	 * @return the position, or -1 if the method does not take a context.
+	 */
+	int getContextSlot() {
+		return contextSlot;
+	}
+
+	/** Check whether the context argument is an array of {@link RpcContext}.
+	 * @return true if the context argument is an array.
+	 */
+	boolean isContextArray() {
+		return contextArray;
+	}
+
+	/** Check whether authentication is optional for the method.
+	 * @return true if authentication is optional.
+	 */
+	boolean isAuthOptional() {
+		return authOptional;
+	}
+
+	/** Check whether the method returns a tuple of results rather than a single result.
+	 * @return true if the results are a tuple.
+	 */
+	boolean isTuple() {
+		return tuple;
+	}
+
+	/** Check whether the method returns void.
+	 * @return true if the method returns void.
+	 */
+	boolean isVoid() {
+		return isVoid;
+	}
+
+	/** Check whether the method's responses may be compressed.
+	 * @return true if the responses may be compressed.
+	 */
+	boolean isCompressResponse() {
+		return compressResponse;
+	}
+	
+	/** Get the type of a JSON RPC parameter.
+	 * @param pos the position of the parameter.
+	 * @return the type, or null if the parameter is passed as a {@link UObject} as is.
+	 */
+	JavaType getParamType(final int pos) {
+		return paramTypes[pos];
+	}
+
+	/** Get a reader for a JSON RPC parameter.
+	 * @param pos the position of the parameter.
+	 * @return the reader, or null if the parameter is passed as a {@link UObject} as is.
+	 */
+	ObjectReader getParamReader(final int pos) {
+		return paramReaders[pos];
+	}
+
+	/** Call the method.
+	 * @param args the method arguments.
+	 * @return the result of the method, or null for void methods.
+	 * @throws Throwable any exception thrown by the method. When the method cannot be called via
+	 * a method handle, exceptions thrown by the method are wrapped in an
+	 * {@link java.lang.reflect.InvocationTargetException}.
+	 */
+	Object invoke(final Object[] args) throws Throwable {
+		if (invoker != null) {
+			return (Object) invoker.invokeExact(args);
+		}
+		return method.invoke(servlet, args);
+	}
+}
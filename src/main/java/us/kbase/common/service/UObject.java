@@ -1,18 +1,30 @@
 package us.kbase.common.service;
 
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonParser.NumberType;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import com.fasterxml.jackson.core.util.JsonGeneratorDelegate;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -149,26 +161,101 @@ public class UObject {
 		} catch (IOException ignore) {}
 	}
 	
+	/* Reads the first token of the value in the token stream, which determines its type. */
+	private JsonToken peekToken() {
+		try {
+			return getPlacedStream().nextToken();
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex);
+		} finally {
+			close();
+		}
+	}
+	
+	/* Returns the type of the number in the token stream, or null if the value isn't a number. */
+	private NumberType peekNumberType() {
+		try {
+			final JsonTokenStream jts = getPlacedStream();
+			final JsonToken t = jts.nextToken();
+			if (t != JsonToken.VALUE_NUMBER_INT && t != JsonToken.VALUE_NUMBER_FLOAT)
+				return null;
+			return jts.getNumberType();
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex);
+		} finally {
+			close();
+		}
+	}
+	
+	/* Reads the keys or the number of items of the container in the token stream and calls
+	 * the consumer with the relative path to each member. The members are skipped rather than
+	 * read, and containers in the members are added to the token stream's index so that the
+	 * members can be found without reading the data from the start. The index depth is only
+	 * raised while the container is read, so only containers inside it are indexed, and is then
+	 * restored.
+	 */
+	private void readMembers(final JsonToken container, final Consumer<String> member) {
+		final JsonTokenStream jts = (JsonTokenStream)userObj;
+		final int depth = (tokenStreamRootPath == null ? 0 : tokenStreamRootPath.size()) + 1;
+		final int prevDepth = jts.getIndexDepth();
+		try {
+			final JsonTokenStream placed = getPlacedStream();
+			if (prevDepth < depth)
+				jts.setIndexDepth(depth);
+			final JsonToken t = placed.nextToken();
+			if (t != container)
+				throw new IllegalStateException("Expected " + container + " but found " + t);
+			final boolean isMap = container == JsonToken.START_OBJECT;
+			for (int i = 0; ; i++) {
+				final JsonToken next = placed.nextToken();
+				if (next == null || next == JsonToken.END_ARRAY || next == JsonToken.END_OBJECT)
+					break;
+				if (isMap) {
+					member.accept(placed.getText());
+					placed.nextToken();
+				} else {
+					member.accept(String.valueOf(i));
+				}
+				placed.skipChildren();
+			}
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex);
+		} finally {
+			jts.setIndexDepth(prevDepth);
+			close();
+		}
+	}
+	
 	Object getUserObject() {
 		return userObj;
 	}
 	
 	/**
 	 * @return true in case this object is list of something,
-	 * for JsonTokenStream it will always be false
+	 * for JsonTokenStream only the first token of the data is read
 	 */
 	public boolean isList() {
 		if (isJsonNode())
 			return asJsonNode().isArray();
+		if (isTokenStream())
+			return peekToken() == JsonToken.START_ARRAY;
 		return userObj instanceof List;
 	}
 
 	/**
-	 * @return list representation of this object
+	 * @return list representation of this object, for JsonTokenStream
+	 * the items are UObjects over the same stream that are read when used
 	 */
 	public List<UObject> asList() {
-		List<UObject> ret = new ArrayList<UObject>();
-		if (isJsonNode()) {
+		final List<UObject> ret = new ArrayList<UObject>();
+		if (isTokenStream()) {
+			readMembers(JsonToken.START_ARRAY, new Consumer<String>() {
+				@Override
+				public void accept(final String index) {
+					ret.add(new UObject(UObject.this, index));
+				}
+			});
+		} else if (isJsonNode()) {
 			JsonNode root = asJsonNode();
 			for (int i = 0; i < root.size(); i++)
 				ret.add(new UObject(root.get(i)));
@@ -183,21 +270,31 @@ public class UObject {
 	
 	/**
 	 * @return true in case this object is mapping of something,
-	 * for JsonTokenStream it will always be false
+	 * for JsonTokenStream only the first token of the data is read
 	 */
 	public boolean isMap() {
 		if (isJsonNode()) {
 			return asJsonNode().isObject();
 		}
+		if (isTokenStream())
+			return peekToken() == JsonToken.START_OBJECT;
 		return userObj instanceof Map;
 	}
 	
 	/**
-	 * @return map representation of this object
+	 * @return map representation of this object, for JsonTokenStream
+	 * the values are UObjects over the same stream that are read when used
 	 */
 	public Map<String, UObject> asMap() {
-		Map<String, UObject> ret = new LinkedHashMap<String, UObject>();
-		if (isJsonNode()) {
+		final Map<String, UObject> ret = new LinkedHashMap<String, UObject>();
+		if (isTokenStream()) {
+			readMembers(JsonToken.START_OBJECT, new Consumer<String>() {
+				@Override
+				public void accept(final String key) {
+					ret.put(key, new UObject(UObject.this, key));
+				}
+			});
+		} else if (isJsonNode()) {
 			JsonNode root = asJsonNode();
 			for (Iterator<String> propIt = root.fieldNames(); propIt.hasNext(); ) {
 				String prop = propIt.next();
@@ -214,61 +311,75 @@ public class UObject {
 	
 	/**
 	 * @return true in case this object is integer,
-	 * for JsonTokenStream it will always be false
+	 * for JsonTokenStream only the first token of the data is read
 	 */
 	public boolean isInteger() {
 		if (isJsonNode())
 			return asJsonNode().isInt();
+		if (isTokenStream())
+			return peekNumberType() == NumberType.INT;
 		return userObj instanceof Integer;
 	}
 
 	/**
 	 * @return true in case this object is long,
-	 * for JsonTokenStream it will always be false
+	 * for JsonTokenStream only the first token of the data is read
 	 */
 	public boolean isLong() {
 		if (isJsonNode())
 			return asJsonNode().isLong();
+		if (isTokenStream())
+			return peekNumberType() == NumberType.LONG;
 		return userObj instanceof Long;
 	}
 
 	/**
 	 * @return true in case this object is text,
-	 * for JsonTokenStream it will always be false
+	 * for JsonTokenStream only the first token of the data is read
 	 */
 	public boolean isString() {
 		if (isJsonNode())
 			return asJsonNode().isTextual();
+		if (isTokenStream())
+			return peekToken() == JsonToken.VALUE_STRING;
 		return userObj instanceof String;
 	}
 
 	/**
 	 * @return true in case this object is floating,
-	 * for JsonTokenStream it will always be false
+	 * for JsonTokenStream only the first token of the data is read
 	 */
 	public boolean isDouble() {
 		if (isJsonNode())
 			return asJsonNode().isDouble();
+		if (isTokenStream())
+			return peekNumberType() == NumberType.DOUBLE;
 		return userObj instanceof Double;
 	}
 
 	/**
 	 * @return true in case this object is boolean,
-	 * for JsonTokenStream it will always be false
+	 * for JsonTokenStream only the first token of the data is read
 	 */
 	public boolean isBoolean() {
 		if (isJsonNode())
 			return asJsonNode().isBoolean();
+		if (isTokenStream()) {
+			final JsonToken t = peekToken();
+			return t == JsonToken.VALUE_TRUE || t == JsonToken.VALUE_FALSE;
+		}
 		return userObj instanceof Boolean;
 	}
 
 	/**
 	 * @return true in case this object is null,
-	 * for JsonTokenStream it will always be false
+	 * for JsonTokenStream only the first token of the data is read
 	 */
 	public boolean isNull() {
 		if (isJsonNode())
 			return asJsonNode().isNull();
+		if (isTokenStream())
+			return peekToken() == JsonToken.VALUE_NULL;
 		return userObj == null;
 	}
 	
@@ -293,6 +404,12 @@ public class UObject {
 			}
 			return (T)ret;
 		}
+		if (isTokenStream()) {
+			final JsonToken t = peekToken();
+			if (t == JsonToken.START_OBJECT || t == JsonToken.START_ARRAY)
+				throw new IllegalStateException("Expected a scalar but found " + t);
+			return (T)asClassInstance(Object.class);
+		}
 		return (T)userObj;
 	}
 
@@ -421,6 +538,324 @@ public class UObject {
 		return size[0];
 	}
 	
+	/**
+	 * Measure the JSON representation of this object in one pass: its size in bytes, its MD5 and
+	 * any other digests, the maximum depth of nested arrays and objects and the number of keys.
+	 * The size and digests are those of the data written by {@link #write(OutputStream)}.
+	 * For JsonTokenStream with trusted JSON (see
+	 * {@link JsonTokenStream#setTrustedWholeJson(boolean)}) in a byte array, file or ByteBuffer
+	 * the data is measured as it's read rather than serialized again, and other trusted JSON is
+	 * parsed as it's written. The exception is a JsonTokenStream with large string substitution
+	 * (see {@link JsonTokenStream#getLargeStringThreshold()}), which is written and then read a
+	 * second time to count its structure, so that its large strings are never held in memory.
+	 * Method closes inner JsonTokenStream if it's used.
+	 * @param digestAlgorithms names of digest algorithms to calculate in addition to MD5,
+	 * e.g. SHA-256.
+	 * @return the measurement.
+	 * @throws IOException
+	 */
+	public UObjectMeasurement measure(final String... digestAlgorithms) throws IOException {
+		final Map<String, MessageDigest> digests = new LinkedHashMap<String, MessageDigest>();
+		final List<String> algorithms = new ArrayList<String>();
+		algorithms.add("MD5");
+		algorithms.addAll(Arrays.asList(digestAlgorithms));
+		for (final String alg: algorithms) {
+			try {
+				digests.put(alg, MessageDigest.getInstance(alg));
+			} catch (NoSuchAlgorithmException ex) {
+				throw new IllegalArgumentException("Unsupported digest algorithm: " + alg, ex);
+			}
+		}
+		final MeasuringOutputStream os = new MeasuringOutputStream(digests.values());
+		final StructureCounter counter = new StructureCounter();
+		if (isTokenStream()) {
+			try {
+				final JsonTokenStream jts = (JsonTokenStream)userObj;
+				final InputStream trusted = getPlacedStream().openTrustedBytes();
+				close();
+				if (trusted != null) {
+					// parse the raw data as it is digested
+					try (final InputStream is = new MeasuringInputStream(trusted, os);
+							final JsonParser p = mapper.getFactory().createParser(is)) {
+						counter.count(p);
+						final byte[] buf = new byte[jts.getCopyBufferSize()];
+						while (is.read(buf) > 0) {}
+					}
+				} else if (jts.getLargeStringThreshold() > 0) {
+					// the tokens don't reproduce the written data, and parsing the written data
+					// would buffer the large strings, so read the tokens separately
+					write(os);
+					close();
+					counter.count(getPlacedStream());
+				} else if (jts.hasTrustedWholeJson()) {
+					// the data is copied rather than written as tokens, so parse the copy
+					try (final ParsingOutputStream pos = new ParsingOutputStream(os, counter)) {
+						write(pos);
+					}
+				} else {
+					writeMeasured(os, counter);
+				}
+			} finally {
+				close();
+			}
+		} else {
+			writeMeasured(os, counter);
+		}
+		final Map<String, byte[]> ret = new LinkedHashMap<String, byte[]>();
+		for (final Map.Entry<String, MessageDigest> e: digests.entrySet()) {
+			ret.put(e.getKey(), e.getValue().digest());
+		}
+		return new UObjectMeasurement(os.size, ret, counter.maxDepth, counter.keyCount,
+				counter.maxKeyCount);
+	}
+	
+	private void writeMeasured(final OutputStream os, final StructureCounter counter)
+			throws IOException {
+		final JsonGenerator jgen = new MeasuringGenerator(
+				mapper.getFactory().createGenerator(os), counter);
+		write(jgen);
+		jgen.flush();
+	}
+	
+	/* Counts the depth and keys of JSON as it is written or read. */
+	private static class StructureCounter {
+		
+		private long[] keys = new long[16]; // the key counts of the open arrays and objects
+		private int depth = 0;
+		private int maxDepth = 0;
+		private long keyCount = 0;
+		private long maxKeyCount = 0;
+		
+		private void start() {
+			if (depth == keys.length) {
+				keys = Arrays.copyOf(keys, depth * 2);
+			}
+			keys[depth++] = 0;
+			maxDepth = Math.max(maxDepth, depth);
+		}
+		
+		private void end() {
+			depth--;
+		}
+		
+		private void key() {
+			keyCount++;
+			if (depth > 0) {
+				maxKeyCount = Math.max(maxKeyCount, ++keys[depth - 1]);
+			}
+		}
+		
+		private void token(final JsonToken t) {
+			if (t == JsonToken.START_ARRAY || t == JsonToken.START_OBJECT) {
+				start();
+			} else if (t == JsonToken.END_ARRAY || t == JsonToken.END_OBJECT) {
+				end();
+			} else if (t == JsonToken.FIELD_NAME) {
+				key();
+			}
+		}
+		
+		// reads a single value from the parser
+		private void count(final JsonParser p) throws IOException {
+			do {
+				final JsonToken t = p.nextToken();
+				if (t == null) {
+					break;
+				}
+				token(t);
+			} while (depth > 0);
+		}
+	}
+	
+	/* Counts the depth and keys of the JSON written to it with a non-blocking parser, and
+	 * passes the bytes on to another output stream. Closing the stream does not close the
+	 * other stream.
+	 */
+	private static class ParsingOutputStream extends OutputStream {
+		
+		private final OutputStream out;
+		private final StructureCounter counter;
+		private final JsonParser parser;
+		private final ByteArrayFeeder feeder;
+		
+		private ParsingOutputStream(final OutputStream out, final StructureCounter counter)
+				throws IOException {
+			this.out = out;
+			this.counter = counter;
+			parser = mapper.getFactory().createNonBlockingByteArrayParser();
+			feeder = (ByteArrayFeeder) parser.getNonBlockingInputFeeder();
+		}
+		
+		@Override
+		public void write(final int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+		
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			out.write(b, off, len);
+			if (len > 0) {
+				// the parser reads the bytes before the caller can reuse the array
+				feeder.feedInput(b, off, off + len);
+				readTokens();
+			}
+		}
+		
+		private void readTokens() throws IOException {
+			JsonToken t;
+			while ((t = parser.nextToken()) != null && t != JsonToken.NOT_AVAILABLE) {
+				counter.token(t);
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			feeder.endOfInput();
+			readTokens();
+			parser.close();
+		}
+	}
+	
+	/* Counts the depth and keys of the JSON written to the generator. The output target is
+	 * hidden so that token streams write their tokens rather than copying their data.
+	 */
+	private static class MeasuringGenerator extends JsonGeneratorDelegate {
+		
+		private final StructureCounter counter;
+		
+		private MeasuringGenerator(final JsonGenerator jgen, final StructureCounter counter) {
+			super(jgen, false);
+			this.counter = counter;
+		}
+		
+		@Override
+		public Object getOutputTarget() {
+			return null;
+		}
+		
+		@Override
+		public void writeStartArray() throws IOException {
+			counter.start();
+			super.writeStartArray();
+		}
+		
+		@Override
+		public void writeStartArray(final int size) throws IOException {
+			counter.start();
+			super.writeStartArray(size);
+		}
+		
+		@Override
+		public void writeStartObject() throws IOException {
+			counter.start();
+			super.writeStartObject();
+		}
+		
+		@Override
+		public void writeStartObject(final Object forValue) throws IOException {
+			counter.start();
+			super.writeStartObject(forValue);
+		}
+		
+		@Override
+		public void writeEndArray() throws IOException {
+			counter.end();
+			super.writeEndArray();
+		}
+		
+		@Override
+		public void writeEndObject() throws IOException {
+			counter.end();
+			super.writeEndObject();
+		}
+		
+		@Override
+		public void writeFieldName(final String name) throws IOException {
+			counter.key();
+			super.writeFieldName(name);
+		}
+		
+		@Override
+		public void writeFieldName(final SerializableString name) throws IOException {
+			counter.key();
+			super.writeFieldName(name);
+		}
+		
+		@Override
+		public void writeFieldId(final long id) throws IOException {
+			counter.key();
+			super.writeFieldId(id);
+		}
+	}
+	
+	/* Counts and digests the bytes written to it. */
+	private static class MeasuringOutputStream extends OutputStream {
+		
+		private final Collection<MessageDigest> digests;
+		private long size = 0;
+		
+		private MeasuringOutputStream(final Collection<MessageDigest> digests) {
+			this.digests = digests;
+		}
+		
+		@Override
+		public void write(final int b) throws IOException {
+			for (final MessageDigest d: digests) {
+				d.update((byte) b);
+			}
+			size++;
+		}
+		
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			for (final MessageDigest d: digests) {
+				d.update(b, off, len);
+			}
+			size += len;
+		}
+	}
+	
+	/* Writes the bytes read from the stream to the output stream. */
+	private static class MeasuringInputStream extends FilterInputStream {
+		
+		private final OutputStream os;
+		
+		private MeasuringInputStream(final InputStream in, final OutputStream os) {
+			super(in);
+			this.os = os;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			final int b = super.read();
+			if (b >= 0) {
+				os.write(b);
+			}
+			return b;
+		}
+		
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			final int read = super.read(b, off, len);
+			if (read > 0) {
+				os.write(b, off, read);
+			}
+			return read;
+		}
+		
+		@Override
+		public long skip(final long n) throws IOException {
+			final byte[] buf = new byte[(int) Math.min(n, 8192)];
+			final int read = read(buf, 0, buf.length);
+			return Math.max(read, 0);
+		}
+		
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+	
 	/**
 	 * Helper method for transformation POJO into POJO of another type.
 	 */
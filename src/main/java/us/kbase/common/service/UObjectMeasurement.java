@@ -0,0 +1,94 @@
+package us.kbase.common.service;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import us.kbase.common.utils.MD5;
+
+/** The size, digests, and structure of the JSON serialization of a {@link UObject}, as measured
+ * by {@link UObject#measure(String...)}.
+ */
+public class UObjectMeasurement {
+
+	private final long size;
+	private final Map<String, byte[]> digests;
+	private final int maxDepth;
+	private final long keyCount;
+	private final long maxKeyCount;
+
+	UObjectMeasurement(
+			final long size,
+			final Map<String, byte[]> digests,
+			final int maxDepth,
+			final long keyCount,
+			final long maxKeyCount) {
+		this.size = size;
+		this.digests = Collections.unmodifiableMap(digests);
+		this.maxDepth = maxDepth;
+		this.keyCount = keyCount;
+		this.maxKeyCount = maxKeyCount;
+	}
+
+	/** Get the size of the serialized object. This is the same as
+	 * {@link UObject#getSizeInBytes()}.
+	 * @return the size in bytes.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/** Get the MD5 of the serialized object.
+	 * @return the MD5.
+	 */
+	public MD5 getMD5() {
+		final StringBuilder sb = new StringBuilder();
+		for (final byte b : digests.get("MD5")) {
+			sb.append(String.format("%02x", b));
+		}
+		return new MD5(sb);
+	}
+
+	/** Get the names of the digest algorithms that were calculated, which always include MD5.
+	 * @return the algorithm names.
+	 */
+	public Set<String> getDigestAlgorithms() {
+		return digests.keySet();
+	}
+
+	/** Get a digest of the serialized object.
+	 * @param algorithm the name of the digest algorithm, as provided to
+	 * {@link UObject#measure(String...)}.
+	 * @return the digest.
+	 */
+	public byte[] getDigest(final String algorithm) {
+		if (!digests.containsKey(algorithm)) {
+			throw new IllegalArgumentException("No digest was calculated with algorithm " +
+					algorithm);
+		}
+		return Arrays.copyOf(digests.get(algorithm), digests.get(algorithm).length);
+	}
+
+	/** Get the maximum depth of nested arrays and objects in the object. A scalar value has a
+	 * depth of 0, and an array of scalars a depth of 1.
+	 * @return the maximum depth.
+	 */
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	/** Get the total number of keys in all the objects in the object.
+	 * @return the number of keys.
+	 */
+	public long getKeyCount() {
+		return keyCount;
+	}
+
+	/** Get the number of keys in the object with the most keys.
+	 * @return the maximum number of keys.
+	 */
+	public long getMaxKeyCount() {
+		return maxKeyCount;
+	}
+}
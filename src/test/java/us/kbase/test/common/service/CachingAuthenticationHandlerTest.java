@@ -0,0 +1,237 @@
+package us.kbase.test.common.service;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.common.collect.ImmutableMap;
+
+import us.kbase.auth.AuthException;
+import us.kbase.auth.AuthToken;
+import us.kbase.common.service.CachingAuthenticationHandler;
+import us.kbase.common.service.JsonServerServlet.AuthenticationHandler;
+import us.kbase.testutils.TestCommon;
+
+public class CachingAuthenticationHandlerTest {
+
+	@Test
+	public void cacheHitAndExpiry() throws Exception {
+		final AuthenticationHandler ah = mock(AuthenticationHandler.class);
+		final Clock clock = mock(Clock.class);
+		final CachingAuthenticationHandler c = new CachingAuthenticationHandler(
+				ah, 10, 1000, 100, clock);
+		final AuthToken t = new AuthToken("tok", "user");
+		when(ah.validateToken("tok")).thenReturn(t);
+
+		when(clock.millis()).thenReturn(10000L, 10999L, 11000L, 11001L);
+		assertThat("incorrect token", c.validateToken("tok"), is(t));
+		assertThat("incorrect token", c.validateToken("tok"), is(t));
+		verify(ah, times(1)).validateToken("tok");
+		assertThat("incorrect size", c.getSize(), is(1));
+		// expired
+		assertThat("incorrect token", c.validateToken("tok"), is(t));
+		verify(ah, times(2)).validateToken("tok");
+		assertThat("incorrect hits", c.getHitCount(), is(1L));
+		assertThat("incorrect misses", c.getMissCount(), is(2L));
+	}
+
+	@Test
+	public void negativeCache() throws Exception {
+		final AuthenticationHandler ah = mock(AuthenticationHandler.class);
+		final Clock clock = mock(Clock.class);
+		final CachingAuthenticationHandler c = new CachingAuthenticationHandler(
+				ah, 10, 1000, 100, clock);
+		when(ah.validateToken("bad")).thenThrow(new AuthException("bad token"));
+
+		when(clock.millis()).thenReturn(10000L, 10099L, 10100L, 10101L);
+		failValidate(c, "bad", new AuthException("bad token"));
+		failValidate(c, "bad", new AuthException("bad token"));
+		verify(ah, times(1)).validateToken("bad");
+		// expired
+		failValidate(c, "bad", new AuthException("bad token"));
+		verify(ah, times(2)).validateToken("bad");
+	}
+
+	@Test
+	public void noNegativeCache() throws Exception {
+		final AuthenticationHandler ah = mock(AuthenticationHandler.class);
+		final CachingAuthenticationHandler c = new CachingAuthenticationHandler(ah, 10, 1000, 0);
+		when(ah.validateToken("bad")).thenThrow(new AuthException("bad token"));
+
+		failValidate(c, "bad", new AuthException("bad token"));
+		failValidate(c, "bad", new AuthException("bad token"));
+		verify(ah, times(2)).validateToken("bad");
+		assertThat("incorrect size", c.getSize(), is(0));
+	}
+
+	@Test
+	public void ioExceptionNotCached() throws Exception {
+		final AuthenticationHandler ah = mock(AuthenticationHandler.class);
+		final CachingAuthenticationHandler c = new CachingAuthenticationHandler(
+				ah, 10, 1000, 1000);
+		final AuthToken t = new AuthToken("tok", "user");
+		when(ah.validateToken("tok")).thenThrow(new IOException("oops")).thenReturn(t);
+
+		failValidate(c, "tok", new IOException("oops"));
+		assertThat("incorrect token", c.validateToken("tok"), is(t));
+		assertThat("incorrect token", c.validateToken("tok"), is(t));
+		verify(ah, times(2)).validateToken("tok");
+	}
+
+	@Test
+	public void lruEviction() throws Exception {
+		final AuthenticationHandler ah = mock(AuthenticationHandler.class);
+		final CachingAuthenticationHandler c = new CachingAuthenticationHandler(
+				ah, 2, 100000, 0);
+		for (final String tok: new String[] {"a", "b", "c"}) {
+			when(ah.validateToken(tok)).thenReturn(new AuthToken(tok, "u" + tok));
+		}
+		c.validateToken("a");
+		c.validateToken("b");
+		c.validateToken("a"); // b is now least recently used
+		c.validateToken("c");
+		assertThat("incorrect size", c.getSize(), is(2));
+		c.validateToken("a");
+		c.validateToken("c");
+		verify(ah, times(1)).validateToken("a");
+		verify(ah, times(1)).validateToken("c");
+		c.validateToken("b");
+		verify(ah, times(2)).validateToken("b");
+
+		c.clear();
+		assertThat("incorrect size", c.getSize(), is(0));
+	}
+
+	@Test
+	public void nullAndEmptyTokensNotCached() throws Exception {
+		final AuthenticationHandler ah = mock(AuthenticationHandler.class);
+		final CachingAuthenticationHandler c = new CachingAuthenticationHandler(
+				ah, 2, 100000, 100000);
+		c.validateToken(null);
+		c.validateToken(null);
+		c.validateToken("");
+		verify(ah, times(2)).validateToken(null);
+		verify(ah, times(1)).validateToken("");
+		assertThat("incorrect size", c.getSize(), is(0));
+	}
+
+	@Test
+	public void coalesceConcurrentLookups() throws Exception {
+		final AuthenticationHandler ah = mock(AuthenticationHandler.class);
+		final CachingAuthenticationHandler c = new CachingAuthenticationHandler(
+				ah, 10, 100000, 0);
+		final AuthToken t = new AuthToken("tok", "user");
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch finish = new CountDownLatch(1);
+		when(ah.validateToken("tok")).thenAnswer(new Answer<AuthToken>() {
+
+			@Override
+			public AuthToken answer(final InvocationOnMock inv) throws Throwable {
+				started.countDown();
+				finish.await();
+				return t;
+			}
+		});
+		final ExecutorService exe = Executors.newFixedThreadPool(2);
+		try {
+			final Future<AuthToken> first = exe.submit(() -> c.validateToken("tok"));
+			started.await();
+			final Future<AuthToken> second = exe.submit(() -> c.validateToken("tok"));
+			while (c.getCoalescedCount() == 0) {
+				Thread.sleep(5);
+			}
+			finish.countDown();
+			assertThat("incorrect token", first.get(), is(t));
+			assertThat("incorrect token", second.get(), is(t));
+		} finally {
+			exe.shutdown();
+		}
+		verify(ah, times(1)).validateToken("tok");
+		assertThat("incorrect misses", c.getMissCount(), is(1L));
+		assertThat("incorrect coalesced", c.getCoalescedCount(), is(1L));
+	}
+
+	@Test
+	public void constructFail() throws Exception {
+		final AuthenticationHandler ah = mock(AuthenticationHandler.class);
+		final Clock clock = Clock.systemUTC();
+		failConstruct(null, 1, 1, 0, clock, new NullPointerException("handler"));
+		failConstruct(ah, 1, 1, 0, null, new NullPointerException("clock"));
+		failConstruct(ah, 0, 1, 0, clock,
+				new IllegalArgumentException("maxSize must be at least 1"));
+		failConstruct(ah, 1, 0, 0, clock,
+				new IllegalArgumentException("ttlMS must be at least 1"));
+		failConstruct(ah, 1, 1, -1, clock,
+				new IllegalArgumentException("negativeTTLMS must be at least 0"));
+	}
+
+	private void failConstruct(
+			final AuthenticationHandler ah,
+			final int maxSize,
+			final long ttl,
+			final long negTTL,
+			final Clock clock,
+			final Exception expected) {
+		try {
+			new CachingAuthenticationHandler(ah, maxSize, ttl, negTTL, clock);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+
+	@Test
+	public void fromConfig() throws Exception {
+		final AuthenticationHandler ah = mock(AuthenticationHandler.class);
+		assertThat("incorrect handler", CachingAuthenticationHandler.fromConfig(
+				ah, Collections.<String, String>emptyMap()), is(ah));
+		assertThat("incorrect handler", CachingAuthenticationHandler.fromConfig(
+				ah, ImmutableMap.of("auth-cache-max-size", "0")), is(ah));
+
+		final AuthenticationHandler c = CachingAuthenticationHandler.fromConfig(ah,
+				ImmutableMap.of("auth-cache-max-size", "5", "auth-cache-ttl-ms", "100000"));
+		assertThat("incorrect class", c instanceof CachingAuthenticationHandler, is(true));
+		final AuthToken t = new AuthToken("tok", "user");
+		when(ah.validateToken("tok")).thenReturn(t);
+		c.validateToken("tok");
+		c.validateToken("tok");
+		verify(ah, times(1)).validateToken("tok");
+
+		try {
+			CachingAuthenticationHandler.fromConfig(ah,
+					ImmutableMap.of("auth-cache-max-size", "5", "auth-cache-ttl-ms", "x"));
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(
+					"Configuration key auth-cache-ttl-ms must be an integer, got x"));
+		}
+	}
+
+	private void failValidate(
+			final AuthenticationHandler ah,
+			final String token,
+			final Exception expected) {
+		try {
+			ah.validateToken(token);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+}
@@ -0,0 +1,944 @@
+package us.kbase.test.common.service;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.google.common.collect.ImmutableMap;
+
+import us.kbase.common.service.CircuitBreaker;
+import us.kbase.common.service.CircuitBreaker.State;
+import us.kbase.common.service.CircuitOpenException;
+import us.kbase.common.service.ConnectionLimitException;
+import us.kbase.common.service.HedgingPolicy;
+import us.kbase.common.service.HttpConnectionProvider;
+import us.kbase.common.service.JsonClientBatch;
+import us.kbase.common.service.JsonClientCaller;
+import us.kbase.common.service.JsonClientCaller.StreamingMode;
+import us.kbase.common.service.JsonServerMethod;
+import us.kbase.common.service.JsonServerServlet;
+import us.kbase.common.service.JsonServerServlet.AuthenticationHandler;
+import us.kbase.common.service.JsonServerSyslog;
+import us.kbase.common.service.KeepAliveConnectionProvider;
+import us.kbase.common.service.RetryPolicy;
+import us.kbase.common.service.RpcBufferArena;
+import us.kbase.common.service.ServerException;
+import us.kbase.common.service.UObject;
+import us.kbase.common.service.UnauthorizedException;
+import us.kbase.testutils.TestCommon;
+
+public class JsonClientCallerTest {
+
+	@SuppressWarnings("serial")
+	public static class EchoServer extends JsonServerServlet {
+
+		public volatile String acceptEncoding;
+		public volatile String contentEncoding;
+		public volatile String transferEncoding;
+		public volatile int contentLength;
+		public final List<Integer> remotePorts = new CopyOnWriteArrayList<>();
+
+		public EchoServer(final JsonServerSyslog syslog) {
+			super(mock(AuthenticationHandler.class), false, syslog, mock(JsonServerSyslog.class));
+		}
+
+		@Override
+		protected void doPost(final HttpServletRequest request, final HttpServletResponse response)
+				throws ServletException, IOException {
+			acceptEncoding = request.getHeader("Accept-Encoding");
+			contentEncoding = request.getHeader("Content-Encoding");
+			transferEncoding = request.getHeader("Transfer-Encoding");
+			contentLength = request.getContentLength();
+			remotePorts.add(request.getRemotePort());
+			super.doPost(request, response);
+		}
+
+		@JsonServerMethod(rpc = "Echo.echo")
+		public UObject echo(final UObject input) throws Exception {
+			return input;
+		}
+
+		public volatile CountDownLatch block = new CountDownLatch(0);
+		public final AtomicInteger blocked = new AtomicInteger();
+		public final AtomicInteger maxBlocked = new AtomicInteger();
+
+		public final AtomicBoolean slowNext = new AtomicBoolean();
+
+		@JsonServerMethod(rpc = "Echo.slow_once")
+		public String slowOnce(final String input) throws Exception {
+			if (slowNext.getAndSet(false)) {
+				block.await(10, TimeUnit.SECONDS);
+			}
+			return input;
+		}
+
+		@JsonServerMethod(rpc = "Echo.block")
+		public String block(final String input) throws Exception {
+			final int count = blocked.incrementAndGet();
+			maxBlocked.accumulateAndGet(count, Math::max);
+			try {
+				block.await(10, TimeUnit.SECONDS);
+			} finally {
+				blocked.decrementAndGet();
+			}
+			return input;
+		}
+	}
+
+	private static EchoServer SERVER;
+	private static URL URL;
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		final JsonServerSyslog sysLog = mock(JsonServerSyslog.class);
+		when(sysLog.getServiceName()).thenReturn("Echo");
+		SERVER = new EchoServer(sysLog);
+		new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					SERVER.startupServer();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}).start();
+		for (int i = 0; i < 200 && SERVER.getServerPort() == null; i++) {
+			Thread.sleep(50);
+		}
+		URL = new URL("http://localhost:" + SERVER.getServerPort() + "/");
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception {
+		if (SERVER != null && SERVER.getServerPort() != null) {
+			SERVER.stopServer();
+		}
+	}
+
+	private static Map<String, Object> bigMap() {
+		final Map<String, Object> big = new HashMap<>();
+		for (int i = 0; i < 1000; i++) {
+			big.put("key" + i, "value" + i);
+		}
+		return big;
+	}
+
+	private static List<Map<String, Object>> echo(
+			final JsonClientCaller client,
+			final Map<String, Object> data)
+			throws Exception {
+		return client.jsonrpcCall("Echo.echo", Arrays.asList(data),
+				new TypeReference<List<Map<String, Object>>>() {}, true, false);
+	}
+
+	@Test
+	public void compressedResponse() throws Exception {
+		final JsonClientCaller client = new JsonClientCaller(URL);
+		assertThat("incorrect default", client.isCompressedResponseAccepted(), is(true));
+		final Map<String, Object> big = bigMap();
+		assertThat("incorrect response", echo(client, big), is(Arrays.asList(big)));
+		assertThat("incorrect accept encoding", SERVER.acceptEncoding, is("gzip, deflate"));
+		assertThat("incorrect content encoding", SERVER.contentEncoding, is(nullValue()));
+	}
+
+	@Test
+	public void uncompressedResponse() throws Exception {
+		final JsonClientCaller client = new JsonClientCaller(URL);
+		client.setCompressedResponseAccepted(false);
+		final Map<String, Object> big = bigMap();
+		assertThat("incorrect response", echo(client, big), is(Arrays.asList(big)));
+		assertThat("incorrect accept encoding", SERVER.acceptEncoding, is(nullValue()));
+	}
+
+	@Test
+	public void compressedRequest() throws Exception {
+		for (final boolean streaming: Arrays.asList(false, true)) {
+			final JsonClientCaller client = new JsonClientCaller(URL);
+			client.setRequestCompressed(true);
+			client.setStreamingModeOn(streaming);
+			final Map<String, Object> big = bigMap();
+			assertThat("incorrect response", echo(client, big), is(Arrays.asList(big)));
+			assertThat("incorrect content encoding", SERVER.contentEncoding, is("gzip"));
+		}
+	}
+
+	@Test
+	public void streamingModes() throws Exception {
+		final File tempDir = Files.createTempDirectory("JsonClientCallerTest").toFile();
+		try {
+			for (final boolean compress: Arrays.asList(false, true)) {
+				for (final StreamingMode mode: StreamingMode.values()) {
+					for (final int bufferSize: Arrays.asList(0, 10000000)) {
+						final JsonClientCaller client = new JsonClientCaller(URL);
+						assertThat("incorrect default", client.getStreamingMode(),
+								is(StreamingMode.COUNT_LENGTH));
+						client.setStreamingModeOn(true);
+						client.setRequestCompressed(compress);
+						client.setStreamingMode(mode);
+						client.setStreamingBufferSize(bufferSize);
+						client.setStreamingTempDir(tempDir);
+						final Map<String, Object> big = bigMap();
+						assertThat("incorrect response", echo(client, big),
+								is(Arrays.asList(big)));
+						final boolean chunked = mode == StreamingMode.CHUNKED ||
+								(mode == StreamingMode.COUNT_LENGTH && compress);
+						assertThat("incorrect transfer encoding", SERVER.transferEncoding,
+								is(chunked ? "chunked" : null));
+						assertThat("incorrect content length", SERVER.contentLength > 0,
+								is(!chunked));
+					}
+				}
+			}
+			assertThat("temp files not deleted", tempDir.list().length, is(0));
+		} finally {
+			tempDir.delete();
+		}
+	}
+
+	@Test
+	public void streamingModeFail() throws Exception {
+		final JsonClientCaller client = new JsonClientCaller(URL);
+		try {
+			client.setStreamingMode(null);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new NullPointerException("mode"));
+		}
+		try {
+			client.setStreamingBufferSize(-1);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(
+					"Streaming buffer size must be at least 0"));
+		}
+	}
+
+	@Test
+	public void fileResponse() throws Exception {
+		final File f = File.createTempFile("JsonClientCallerTest", ".json");
+		try {
+			final JsonClientCaller client = new JsonClientCaller(URL);
+			final Map<String, Object> big = bigMap();
+			client.setFileForNextRpcResponse(f);
+			final List<UObject> res = client.jsonrpcCall("Echo.echo", Arrays.asList(big),
+					new TypeReference<List<UObject>>() {}, true, false);
+			assertThat("incorrect response", res.get(0).asClassInstance(Map.class),
+					is((Object) big));
+			assertThat("incorrect file", UObject.getMapper().readValue(f, Map.class),
+					is((Object) ImmutableMap.of("version", "1.1",
+							"result", Arrays.asList(big))));
+
+			client.setFileForNextRpcResponse(f);
+			assertThat("incorrect response", client.jsonrpcCall("Echo.echo",
+					Arrays.asList("a"), new TypeReference<List<String>>() {}, true, false),
+					is(Arrays.asList("a")));
+
+			client.setFileForNextRpcResponse(f);
+			failCall(client, "Echo.nope", new ServerException("Can not find method " +
+					"[Echo.nope] in server class " + EchoServer.class.getName(), -32601,
+					"JSONRPCError"));
+		} finally {
+			f.delete();
+		}
+	}
+
+	@Test
+	public void connectionReused() throws Exception {
+		for (final boolean compressed: Arrays.asList(false, true)) {
+			final JsonClientCaller client = new JsonClientCaller(URL);
+			client.setCompressedResponseAccepted(compressed);
+			SERVER.remotePorts.clear();
+			for (int i = 0; i < 3; i++) {
+				echo(client, bigMap());
+			}
+			assertThat("connection not reused", SERVER.remotePorts.get(1),
+					is(SERVER.remotePorts.get(0)));
+			assertThat("connection not reused", SERVER.remotePorts.get(2),
+					is(SERVER.remotePorts.get(0)));
+		}
+	}
+
+	@Test
+	public void connectionProviderReleased() throws Exception {
+		final AtomicInteger opened = new AtomicInteger();
+		final AtomicInteger released = new AtomicInteger();
+		final JsonClientCaller client = new JsonClientCaller(URL);
+		client.setConnectionProvider(new HttpConnectionProvider() {
+
+			@Override
+			public HttpURLConnection openConnection(final URL url) throws IOException {
+				opened.incrementAndGet();
+				return (HttpURLConnection) url.openConnection();
+			}
+
+			@Override
+			public void releaseConnection(final HttpURLConnection conn) {
+				released.incrementAndGet();
+			}
+		});
+		echo(client, bigMap());
+		try {
+			client.jsonrpcCall("Echo.echo", Arrays.asList(1),
+					new TypeReference<List<Object>>() {}, true, true);
+			fail("expected exception");
+		} catch (UnauthorizedException e) {
+			// expected
+		}
+		assertThat("incorrect opened", opened.get(), is(2));
+		assertThat("incorrect released", released.get(), is(2));
+	}
+
+	@Test
+	public void connectionLimit() throws Exception {
+		final KeepAliveConnectionProvider provider = new KeepAliveConnectionProvider(1, 50);
+		final JsonClientCaller client = new JsonClientCaller(URL);
+		client.setConnectionProvider(provider);
+		final CircuitBreaker breaker = new CircuitBreaker(1, 10000);
+		client.setCircuitBreaker(breaker);
+		final RetryPolicy retry = new RetryPolicy(Arrays.asList("Echo.echo"), 3, 1, 10);
+		client.setRetryPolicy(retry);
+		echo(client, bigMap());
+		assertThat("incorrect active", provider.getActiveConnections(URL), is(0));
+
+		final HttpURLConnection held = provider.openConnection(URL);
+		assertThat("incorrect active", provider.getActiveConnections(URL), is(1));
+		for (int i = 0; i < 2; i++) {
+			try {
+				echo(client, bigMap());
+				fail("expected exception");
+			} catch (Exception got) {
+				TestCommon.assertExceptionCorrect(got, new ConnectionLimitException(
+						"Timed out waiting for a connection to http://localhost:" +
+						SERVER.getServerPort()));
+			}
+		}
+		// the service wasn't contacted, so it hasn't failed
+		assertThat("incorrect state", breaker.getState(URL), is(State.CLOSED));
+		assertThat("incorrect retries", retry.getRetryCount(), is(0L));
+		provider.releaseConnection(held);
+		echo(client, bigMap());
+		assertThat("incorrect active", provider.getActiveConnections(URL), is(0));
+	}
+
+	@Test
+	public void connectionProviderConstructFail() throws Exception {
+		failConstruct(-1, 0, new IllegalArgumentException(
+				"maxConnectionsPerHost must be at least 0"));
+		failConstruct(0, -1, new IllegalArgumentException(
+				"acquireTimeoutMS must be at least 0"));
+	}
+
+	@Test
+	public void stalledResponseNotDrained() throws Exception {
+		// a server that sends part of a response and then stalls
+		try (final ServerSocket ss = new ServerSocket(0)) {
+			final CountDownLatch done = new CountDownLatch(1);
+			final Thread t = new Thread(new Runnable() {
+				
+				@Override
+				public void run() {
+					try (final Socket s = ss.accept()) {
+						final OutputStream os = s.getOutputStream();
+						os.write(("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\n" +
+								"Content-Length: 1000\r\n\r\n{\"result\": [")
+								.getBytes(StandardCharsets.UTF_8));
+						os.flush();
+						done.await(10, TimeUnit.SECONDS);
+					} catch (Exception e) {
+						// test is over
+					}
+				}
+			});
+			t.setDaemon(true);
+			t.start();
+			final JsonClientCaller client = new JsonClientCaller(
+					new URL("http://localhost:" + ss.getLocalPort()));
+			client.setConnectionReadTimeOut(1000);
+			final long start = System.nanoTime();
+			try {
+				client.jsonrpcCall("Echo.echo", Arrays.asList(1),
+						new TypeReference<List<Object>>() {}, true, false);
+				fail("expected exception");
+			} catch (IOException e) {
+				// expected
+			} finally {
+				done.countDown();
+			}
+			final long elapsedMS = (System.nanoTime() - start) / 1000000;
+			// draining the response after the timeout would wait for a second timeout
+			assertThat("call took too long: " + elapsedMS, elapsedMS < 1800, is(true));
+		}
+	}
+
+	private void failConstruct(final int max, final long timeout, final Exception expected) {
+		try {
+			new KeepAliveConnectionProvider(max, timeout);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+
+	private static CompletableFuture<List<String>> block(
+			final JsonClientCaller client,
+			final String input,
+			final long timeoutMS) {
+		return client.jsonrpcCallAsync("Echo.block", Arrays.asList(input),
+				new TypeReference<List<String>>() {}, true, false, null, null, timeoutMS);
+	}
+
+	private static void waitForBlocked(final int count) throws Exception {
+		for (int i = 0; i < 200 && SERVER.blocked.get() < count; i++) {
+			Thread.sleep(20);
+		}
+		assertThat("incorrect blocked", SERVER.blocked.get(), is(count));
+	}
+
+	private static void waitForIdle(final JsonClientCaller client) throws Exception {
+		for (int i = 0; i < 200 && client.getAsyncCallsInProgress() > 0; i++) {
+			Thread.sleep(20);
+		}
+		assertThat("incorrect in progress", client.getAsyncCallsInProgress(), is(0));
+	}
+
+	@Test
+	public void asyncCall() throws Exception {
+		final JsonClientCaller client = new JsonClientCaller(URL);
+		final Map<String, Object> big = bigMap();
+		final CompletableFuture<List<Map<String, Object>>> f = client.jsonrpcCallAsync(
+				"Echo.echo", Arrays.asList(big),
+				new TypeReference<List<Map<String, Object>>>() {}, true, false);
+		assertThat("incorrect response", f.get(), is(Arrays.asList(big)));
+		waitForIdle(client);
+	}
+
+	@Test
+	public void asyncCallLimit() throws Exception {
+		SERVER.block = new CountDownLatch(1);
+		SERVER.maxBlocked.set(0);
+		final JsonClientCaller client = new JsonClientCaller(URL);
+		client.setMaxAsyncCalls(1);
+		assertThat("incorrect max", client.getMaxAsyncCalls(), is(1));
+		final CompletableFuture<List<String>> f1 = block(client, "a", 0);
+		final CompletableFuture<List<String>> f2 = block(client, "b", 0);
+		waitForBlocked(1);
+		assertThat("incorrect in progress", client.getAsyncCallsInProgress(), is(2));
+		SERVER.block.countDown();
+		assertThat("incorrect response", f1.get(), is(Arrays.asList("a")));
+		assertThat("incorrect response", f2.get(), is(Arrays.asList("b")));
+		assertThat("incorrect max blocked", SERVER.maxBlocked.get(), is(1));
+		waitForIdle(client);
+	}
+
+	@Test
+	public void asyncCallTimeout() throws Exception {
+		SERVER.block = new CountDownLatch(1);
+		final JsonClientCaller client = new JsonClientCaller(URL);
+		try {
+			final CompletableFuture<List<String>> f = block(client, "a", 200);
+			try {
+				f.get();
+				fail("expected exception");
+			} catch (ExecutionException got) {
+				TestCommon.assertExceptionCorrect(got.getCause(), new TimeoutException(
+						"Call to Echo.block timed out after 200 ms"));
+			}
+			waitForIdle(client);
+		} finally {
+			SERVER.block.countDown();
+		}
+	}
+
+	@Test
+	public void asyncCallCancel() throws Exception {
+		SERVER.block = new CountDownLatch(1);
+		final JsonClientCaller client = new JsonClientCaller(URL);
+		client.setMaxAsyncCalls(1);
+		try {
+			final CompletableFuture<List<String>> f1 = block(client, "a", 0);
+			final CompletableFuture<List<String>> f2 = block(client, "b", 0);
+			waitForBlocked(1);
+			// cancel both the running and the queued call
+			f2.cancel(true);
+			f1.cancel(true);
+			for (final CompletableFuture<List<String>> f: Arrays.asList(f1, f2)) {
+				try {
+					f.get();
+					fail("expected exception");
+				} catch (CancellationException e) {
+					// expected
+				}
+			}
+			// the running call's connection is closed, so the call finishes without waiting
+			// for the server
+			waitForIdle(client);
+		} finally {
+			SERVER.block.countDown();
+		}
+	}
+
+	@Test
+	public void asyncCallFail() throws Exception {
+		final JsonClientCaller client = new JsonClientCaller(URL);
+		try {
+			client.setMaxAsyncCalls(-1);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(
+					"maxAsyncCalls must be at least 0"));
+		}
+		try {
+			block(client, "a", -1);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(
+					"timeoutMS must be at least 0"));
+		}
+		final CompletableFuture<List<Object>> f = client.jsonrpcCallAsync("Echo.echo",
+				Arrays.asList(1), new TypeReference<List<Object>>() {}, true, true);
+		try {
+			f.get();
+			fail("expected exception");
+		} catch (ExecutionException got) {
+			assertThat("incorrect exception", got.getCause() instanceof UnauthorizedException,
+					is(true));
+		}
+		waitForIdle(client);
+	}
+
+	@Test
+	public void batchCall() throws Exception {
+		final JsonClientCaller client = new JsonClientCaller(URL);
+		final JsonClientBatch batch = client.newBatch();
+		final Map<String, Object> big = bigMap();
+		final CompletableFuture<List<Map<String, Object>>> f1 = batch.add("Echo.echo",
+				Arrays.asList(big), new TypeReference<List<Map<String, Object>>>() {},
+				true, false);
+		final CompletableFuture<List<String>> f2 = batch.add("Echo.nope", Arrays.asList("a"),
+				new TypeReference<List<String>>() {}, true, false);
+		final CompletableFuture<List<String>> f3 = batch.add("Echo.echo", Arrays.asList("b"),
+				new TypeReference<List<String>>() {}, true, false);
+		assertThat("incorrect size", batch.size(), is(3));
+		SERVER.remotePorts.clear();
+		batch.execute();
+		assertThat("incorrect request count", SERVER.remotePorts.size(), is(1));
+		assertThat("incorrect response", f1.get(), is(Arrays.asList(big)));
+		assertThat("incorrect response", f3.get(), is(Arrays.asList("b")));
+		try {
+			f2.get();
+			fail("expected exception");
+		} catch (ExecutionException got) {
+			final ServerException se = (ServerException) got.getCause();
+			assertThat("incorrect code", se.getCode(), is(-32601));
+			assertThat("incorrect message", se.getMessage(), is(
+					"Can not find method [Echo.nope] in server class " +
+					EchoServer.class.getName()));
+		}
+		try {
+			batch.execute();
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new IllegalStateException(
+					"The batch has already been executed"));
+		}
+	}
+
+	@Test
+	public void batchCallAsync() throws Exception {
+		final JsonClientCaller client = new JsonClientCaller(URL);
+		final JsonClientBatch batch = client.newBatch();
+		final CompletableFuture<List<String>> f1 = batch.add("Echo.echo", Arrays.asList("a"),
+				new TypeReference<List<String>>() {}, true, false);
+		final CompletableFuture<List<String>> f2 = batch.add("Echo.echo", Arrays.asList("b"),
+				new TypeReference<List<String>>() {}, true, false);
+		batch.executeAsync().get();
+		assertThat("incorrect response", f1.get(), is(Arrays.asList("a")));
+		assertThat("incorrect response", f2.get(), is(Arrays.asList("b")));
+		waitForIdle(client);
+	}
+
+	@Test
+	public void batchedCalls() throws Exception {
+		final JsonClientCaller client = new JsonClientCaller(URL);
+		assertThat("incorrect default", client.getBatchWindowMS(), is(5L));
+		assertThat("incorrect default", client.getMaxBatchSize(), is(100));
+		client.setBatchWindowMS(10000);
+		client.setMaxBatchSize(3);
+		SERVER.remotePorts.clear();
+		final List<CompletableFuture<List<String>>> futures = new ArrayList<>();
+		for (final String s: Arrays.asList("a", "b", "c", "d")) {
+			futures.add(client.jsonrpcCallBatched("Echo.echo", Arrays.asList(s),
+					new TypeReference<List<String>>() {}, true, false));
+		}
+		// the first three calls fill a batch, the last waits for the window
+		assertThat("incorrect response", futures.get(2).get(), is(Arrays.asList("c")));
+		assertThat("call sent early", futures.get(3).isDone(), is(false));
+		client.flushBatchedCalls();
+		assertThat("incorrect response", futures.get(3).get(), is(Arrays.asList("d")));
+		assertThat("incorrect response", futures.get(0).get(), is(Arrays.asList("a")));
+		assertThat("incorrect request count", SERVER.remotePorts.size(), is(2));
+
+		client.setBatchWindowMS(50);
+		client.setMaxBatchSize(100);
+		SERVER.remotePorts.clear();
+		final CompletableFuture<List<String>> f1 = client.jsonrpcCallBatched("Echo.echo",
+				Arrays.asList("e"), new TypeReference<List<String>>() {}, true, false);
+		final CompletableFuture<List<String>> f2 = client.jsonrpcCallBatched("Echo.echo",
+				Arrays.asList("f"), new TypeReference<List<String>>() {}, true, false);
+		assertThat("incorrect response", f1.get(), is(Arrays.asList("e")));
+		assertThat("incorrect response", f2.get(), is(Arrays.asList("f")));
+		assertThat("incorrect request count", SERVER.remotePorts.size(), is(1));
+		waitForIdle(client);
+	}
+
+	@Test
+	public void batchFail() throws Exception {
+		final JsonClientCaller client = new JsonClientCaller(URL);
+		try {
+			client.setBatchWindowMS(-1);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(
+					"batchWindowMS must be at least 0"));
+		}
+		try {
+			client.setMaxBatchSize(0);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(
+					"maxBatchSize must be at least 1"));
+		}
+		final JsonClientBatch batch = client.newBatch();
+		final CompletableFuture<List<Object>> f1 = batch.add("Echo.echo", Arrays.asList(1),
+				new TypeReference<List<Object>>() {}, true, true);
+		final CompletableFuture<List<Object>> f2 = batch.add("Echo.echo", Arrays.asList(2),
+				new TypeReference<List<Object>>() {}, true, false);
+		batch.execute();
+		for (final CompletableFuture<List<Object>> f: Arrays.asList(f1, f2)) {
+			try {
+				f.get();
+				fail("expected exception");
+			} catch (ExecutionException got) {
+				assertThat("incorrect exception",
+						got.getCause() instanceof UnauthorizedException, is(true));
+			}
+		}
+	}
+
+	@Test
+	public void batchRejected() throws Exception {
+		final JsonClientCaller client = new JsonClientCaller(URL);
+		// the server is too busy, so the calls fail rather than being sent one at a time
+		final RpcBufferArena busy = new RpcBufferArena(1000, 1000, 10);
+		final ByteBuffer held = busy.acquire();
+		SERVER.setRpcBufferArena(busy);
+		try {
+			final int requests = SERVER.remotePorts.size();
+			final List<CompletableFuture<List<String>>> futures = executeBatch(client, "a", "b");
+			for (final CompletableFuture<List<String>> f: futures) {
+				try {
+					f.get();
+					fail("expected exception");
+				} catch (ExecutionException got) {
+					assertThat("incorrect code", ((ServerException) got.getCause()).getCode(),
+							is(-32000));
+				}
+			}
+			assertThat("incorrect requests", SERVER.remotePorts.size() - requests, is(1));
+		} finally {
+			SERVER.setRpcBufferArena(null);
+			busy.release(held);
+		}
+		// the batch is too big but the calls are not, so they're sent one at a time, and
+		// batches are still sent to the server afterwards
+		SERVER.setRpcBufferArena(new RpcBufferArena(150, 150, 10));
+		try {
+			for (int i = 0; i < 2; i++) {
+				final int requests = SERVER.remotePorts.size();
+				final List<CompletableFuture<List<String>>> futures =
+						executeBatch(client, "a", "b");
+				assertThat("incorrect response", futures.get(0).get(), is(Arrays.asList("a")));
+				assertThat("incorrect response", futures.get(1).get(), is(Arrays.asList("b")));
+				assertThat("incorrect requests", SERVER.remotePorts.size() - requests, is(3));
+			}
+		} finally {
+			SERVER.setRpcBufferArena(null);
+		}
+	}
+	
+	@Test
+	public void batchPolicies() throws Exception {
+		final JsonClientCaller client = new JsonClientCaller(URL);
+		final RetryPolicy retry = new RetryPolicy(Arrays.asList("Echo.echo"), 3, 1, 10);
+		client.setRetryPolicy(retry);
+		final CircuitBreaker breaker = new CircuitBreaker(2, 10000);
+		client.setCircuitBreaker(breaker);
+		client.setConnectionProvider(new FailingConnectionProvider(1));
+		List<CompletableFuture<List<String>>> futures = executeBatch(client, "a", "b");
+		assertThat("incorrect response", futures.get(0).get(), is(Arrays.asList("a")));
+		assertThat("incorrect response", futures.get(1).get(), is(Arrays.asList("b")));
+		assertThat("incorrect retries", retry.getRetryCount(), is(1L));
+		assertThat("incorrect state", breaker.getState(URL), is(State.CLOSED));
+
+		// the second failure opens the circuit, so the last attempt is rejected
+		client.setConnectionProvider(new FailingConnectionProvider(-1));
+		futures = executeBatch(client, "a", "b");
+		for (final CompletableFuture<List<String>> f: futures) {
+			try {
+				f.get();
+				fail("expected exception");
+			} catch (ExecutionException got) {
+				TestCommon.assertExceptionCorrect(got.getCause(), new CircuitOpenException(
+						"The circuit breaker for " + URL + " is open"));
+			}
+		}
+		assertThat("incorrect retries", retry.getRetryCount(), is(3L));
+		assertThat("incorrect state", breaker.getState(URL), is(State.OPEN));
+	}
+	
+	private static List<CompletableFuture<List<String>>> executeBatch(
+			final JsonClientCaller client,
+			final String... inputs) {
+		final JsonClientBatch batch = client.newBatch();
+		final List<CompletableFuture<List<String>>> futures = new ArrayList<>();
+		for (final String input: inputs) {
+			futures.add(batch.add("Echo.echo", Arrays.asList(input),
+					new TypeReference<List<String>>() {}, true, false));
+		}
+		batch.execute();
+		return futures;
+	}
+
+	/* Fails to open the given number of connections, or all connections if negative. */
+	private static class FailingConnectionProvider implements HttpConnectionProvider {
+
+		private final AtomicInteger failures;
+
+		private FailingConnectionProvider(final int failures) {
+			this.failures = new AtomicInteger(failures);
+		}
+
+		@Override
+		public HttpURLConnection openConnection(final URL url) throws IOException {
+			if (failures.getAndUpdate(f -> f > 0 ? f - 1 : f) != 0) {
+				throw new IOException("nope");
+			}
+			return (HttpURLConnection) url.openConnection();
+		}
+	}
+
+	@Test
+	public void retry() throws Exception {
+		final JsonClientCaller client = new JsonClientCaller(URL);
+		final RetryPolicy policy = new RetryPolicy(Arrays.asList("Echo.echo"), 3, 1, 10);
+		client.setRetryPolicy(policy);
+		assertThat("incorrect policy", client.getRetryPolicy(), is(policy));
+		client.setConnectionProvider(new FailingConnectionProvider(2));
+		final Map<String, Object> big = bigMap();
+		assertThat("incorrect response", echo(client, big), is(Arrays.asList(big)));
+		assertThat("incorrect retries", policy.getRetryCount(), is(2L));
+
+		client.setConnectionProvider(new FailingConnectionProvider(3));
+		failCall(client, "Echo.echo", new IOException("nope"));
+		assertThat("incorrect retries", policy.getRetryCount(), is(4L));
+
+		// not idempotent
+		client.setConnectionProvider(new FailingConnectionProvider(1));
+		failCall(client, "Echo.slow_once", new IOException("nope"));
+		assertThat("incorrect retries", policy.getRetryCount(), is(4L));
+	}
+
+	private static void failCall(
+			final JsonClientCaller client,
+			final String method,
+			final Exception expected) {
+		try {
+			client.jsonrpcCall(method, Arrays.asList("a"), new TypeReference<List<Object>>() {},
+					true, false);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+
+	@Test
+	public void circuitBreaker() throws Exception {
+		final AtomicLong now = new AtomicLong(10000);
+		final Clock clock = mock(Clock.class);
+		when(clock.millis()).thenAnswer(new Answer<Long>() {
+
+			@Override
+			public Long answer(final InvocationOnMock inv) {
+				return now.get();
+			}
+		});
+		final CircuitBreaker breaker = new CircuitBreaker(2, 1000, clock);
+		final JsonClientCaller client = new JsonClientCaller(URL);
+		client.setCircuitBreaker(breaker);
+		assertThat("incorrect breaker", client.getCircuitBreaker(), is(breaker));
+		client.setConnectionProvider(new FailingConnectionProvider(-1));
+		failCall(client, "Echo.echo", new IOException("nope"));
+		assertThat("incorrect state", breaker.getState(URL), is(State.CLOSED));
+		failCall(client, "Echo.echo", new IOException("nope"));
+		assertThat("incorrect state", breaker.getState(URL), is(State.OPEN));
+		final CircuitOpenException open = new CircuitOpenException(
+				"The circuit breaker for " + URL + " is open");
+		failCall(client, "Echo.echo", open);
+		assertThat("incorrect rejected", breaker.getRejectedCount(), is(1L));
+
+		// failed probe
+		now.addAndGet(1000);
+		failCall(client, "Echo.echo", new IOException("nope"));
+		assertThat("incorrect state", breaker.getState(URL), is(State.OPEN));
+		failCall(client, "Echo.echo", open);
+		assertThat("incorrect opened", breaker.getOpenedCount(), is(2L));
+
+		// successful probe
+		now.addAndGet(1000);
+		client.setConnectionProvider(new FailingConnectionProvider(0));
+		final Map<String, Object> big = bigMap();
+		assertThat("incorrect response", echo(client, big), is(Arrays.asList(big)));
+		assertThat("incorrect state", breaker.getState(URL), is(State.CLOSED));
+
+		// a server error means the server is up
+		failCall(client, "Echo.nope", new ServerException("Can not find method [Echo.nope] " +
+				"in server class " + EchoServer.class.getName(), -32601, "JSONRPCError"));
+		failCall(client, "Echo.nope", new ServerException("Can not find method [Echo.nope] " +
+				"in server class " + EchoServer.class.getName(), -32601, "JSONRPCError"));
+		assertThat("incorrect state", breaker.getState(URL), is(State.CLOSED));
+	}
+
+	@Test
+	public void hedging() throws Exception {
+		final JsonClientCaller client = new JsonClientCaller(URL);
+		final HedgingPolicy hedging = new HedgingPolicy(50, 0, 100);
+		client.setRetryPolicy(new RetryPolicy(Arrays.asList("Echo.slow_once"), 1, 0, 0));
+		client.setHedgingPolicy(hedging);
+		assertThat("incorrect policy", client.getHedgingPolicy(), is(hedging));
+		final TypeReference<List<String>> type = new TypeReference<List<String>>() {};
+		for (int i = 0; i < HedgingPolicy.MIN_SAMPLES; i++) {
+			assertThat("incorrect delay", hedging.getHedgeDelayMS(), is(-1L));
+			client.jsonrpcCall("Echo.slow_once", Arrays.asList("a"), type, true, false);
+		}
+		assertThat("incorrect hedged", hedging.getHedgedCount(), is(0L));
+		assertThat("no delay", hedging.getHedgeDelayMS() >= 0, is(true));
+		SERVER.block = new CountDownLatch(1);
+		SERVER.slowNext.set(true);
+		try {
+			assertThat("incorrect response", client.jsonrpcCall("Echo.slow_once",
+					Arrays.asList("b"), type, true, false), is(Arrays.asList("b")));
+			assertThat("incorrect hedged", hedging.getHedgedCount(), is(1L));
+			assertThat("incorrect wins", hedging.getHedgeWinCount(), is(1L));
+		} finally {
+			SERVER.block.countDown();
+		}
+	}
+
+	@Test
+	public void policyConstructFail() throws Exception {
+		final List<String> m = Arrays.asList("Echo.echo");
+		failRetryPolicy(null, 1, 0, 0, new NullPointerException("idempotentMethods"));
+		failRetryPolicy(m, 0, 0, 0, new IllegalArgumentException(
+				"maxAttempts must be at least 1"));
+		failRetryPolicy(m, 1, -1, 0, new IllegalArgumentException(
+				"initialBackoffMS must be at least 0"));
+		failRetryPolicy(m, 1, 2, 1, new IllegalArgumentException(
+				"maxBackoffMS must be at least initialBackoffMS"));
+		failHedgingPolicy(0, 0, 1, new IllegalArgumentException(
+				"percentile must be greater than 0 and at most 100"));
+		failHedgingPolicy(100.1, 0, 1, new IllegalArgumentException(
+				"percentile must be greater than 0 and at most 100"));
+		failHedgingPolicy(99, -1, 1, new IllegalArgumentException(
+				"minDelayMS must be at least 0"));
+		failHedgingPolicy(99, 0, 0, new IllegalArgumentException(
+				"sampleSize must be at least 1"));
+		failCircuitBreaker(0, 0, Clock.systemUTC(), new IllegalArgumentException(
+				"failureThreshold must be at least 1"));
+		failCircuitBreaker(1, -1, Clock.systemUTC(), new IllegalArgumentException(
+				"openMS must be at least 0"));
+		failCircuitBreaker(1, 0, null, new NullPointerException("clock"));
+	}
+
+	private void failRetryPolicy(
+			final List<String> methods,
+			final int attempts,
+			final long initial,
+			final long max,
+			final Exception expected) {
+		try {
+			new RetryPolicy(methods, attempts, initial, max);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+
+	private void failHedgingPolicy(
+			final double percentile,
+			final long minDelay,
+			final int samples,
+			final Exception expected) {
+		try {
+			new HedgingPolicy(percentile, minDelay, samples);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+
+	private void failCircuitBreaker(
+			final int threshold,
+			final long openMS,
+			final Clock clock,
+			final Exception expected) {
+		try {
+			new CircuitBreaker(threshold, openMS, clock);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+}
@@ -1,9 +1,13 @@
 package us.kbase.test.common.service;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
@@ -13,14 +17,29 @@ import static org.mockito.Mockito.when;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.ServletInputStream;
@@ -28,7 +47,9 @@ import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.eclipse.jetty.continuation.Continuation;
 import org.junit.Test;
+import org.mockito.InOrder;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -39,7 +60,10 @@ import us.kbase.common.service.JsonServerMethod;
 import us.kbase.common.service.JsonServerServlet;
 import us.kbase.common.service.JsonServerServlet.AuthenticationHandler;
 import us.kbase.common.service.JsonServerSyslog;
+import us.kbase.common.service.RpcAdmissionController;
+import us.kbase.common.service.RpcBufferArena;
 import us.kbase.common.service.RpcContext;
+import us.kbase.common.service.UObject;
 import us.kbase.testutils.TestCommon;
 
 public class JsonServerServletTest {
@@ -51,6 +75,8 @@ public class JsonServerServletTest {
 		
 		public int onRpcMethodDoneCalls = 0;
 		public List<AuthToken> tokens = new ArrayList<>();
+		public List<UObject> uobjects = new ArrayList<>();
+		public List<RpcContext> contexts = new ArrayList<>();
 
 		public FakeServer(
 				final AuthenticationHandler auth,
@@ -79,6 +105,32 @@ public class JsonServerServletTest {
 			return input + 3;
 		}
 		
+		@JsonServerMethod(rpc = "FakeServer.do_the_thing4")
+		public void doTheThing4(UObject input, RpcContext[] jsonRpcContext) throws Exception {
+			uobjects.add(input);
+			contexts.add(jsonRpcContext[0]);
+		}
+		
+		@JsonServerMethod(rpc = "FakeServer.do_the_thing5", tuple = true)
+		public Tuple2<String, Long> doTheThing5(String input, long input2) throws Exception {
+			return new Tuple2<String, Long>().withE1(input + "x").withE2(input2 * 2);
+		}
+		
+		@JsonServerMethod(rpc = "FakeServer.do_the_thing6")
+		public String doTheThing6(String input) throws Exception {
+			throw new IllegalStateException("oh noes " + input);
+		}
+		
+		@JsonServerMethod(rpc = "FakeServer.do_the_thing7")
+		public UObject doTheThing7(UObject input) throws Exception {
+			return input;
+		}
+		
+		@JsonServerMethod(rpc = "FakeServer.do_the_thing8", compressResponse = false)
+		public UObject doTheThing8(UObject input) throws Exception {
+			return input;
+		}
+		
 		@Override
 		public void doPost(HttpServletRequest request, final HttpServletResponse response)
 				throws ServletException, IOException {
@@ -173,12 +225,754 @@ public class JsonServerServletTest {
 		post("FakeServer.do_the_thing3", 9, new AuthToken("token", "foo"), true);
 	}
 	
+	@Test
+	public void postWithContentLength() throws Exception {
+		post("FakeServer.do_the_thing1", 7, null, false, true, null);
+	}
+	
+	@Test
+	public void postWithOverstatedContentLength() throws Exception {
+		// memory is only allocated as the body arrives, not up front for the claimed length
+		final FakeServer fs = getFakeServer();
+		final byte[] body = "{\"method\": \"FakeServer.do_the_thing1\", \"id\": 1, \"params\": [1]}"
+				.getBytes(StandardCharsets.UTF_8);
+		final HttpServletRequest req = mock(HttpServletRequest.class);
+		final HttpServletResponse resp = mock(HttpServletResponse.class);
+		when(req.getContentLength()).thenReturn(Integer.MAX_VALUE - 10);
+		when(req.getInputStream()).thenReturn(
+				new ServletInputStreamWrapper(new ByteArrayInputStream(body)));
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		when(resp.getOutputStream()).thenReturn(new ServletOutputStreamWrapper(output));
+		
+		fs.doPost(req, resp);
+		
+		final Map<String, Object> response = new ObjectMapper().readValue(
+				output.toByteArray(), new TypeReference<Map<String, Object>>(){});
+		assertThat("incorrect response", response,
+				is(ImmutableMap.of("version", "1.1", "result", Arrays.asList(2))));
+	}
+	
+	@Test
+	public void postSpilledToDisk() throws Exception {
+		final Path tempDir = Files.createTempDirectory("JsonServerServletTest");
+		try {
+			// content length known, goes straight to disk
+			post("FakeServer.do_the_thing1", 7, null, false, true, tempDir.toFile());
+			// content length unknown, partially buffered in memory and then spilled
+			post("FakeServer.do_the_thing1", 7, null, false, false, tempDir.toFile());
+			assertThat("temp files not deleted", tempDir.toFile().list().length, is(0));
+		} finally {
+			Files.delete(tempDir);
+		}
+	}
+	
+	@Test
+	public void postVoidWithContextArray() throws Exception {
+		final FakeServer fs = getFakeServer();
+		final Map<String, Object> response = postForResponse(
+				fs, "FakeServer.do_the_thing4", Arrays.asList(ImmutableMap.of("foo", "bar")));
+		final Map<String, Object> expected = new HashMap<>();
+		expected.put("version", "1.1");
+		expected.put("result", null);
+		assertThat("incorrect response", response, is(expected));
+		assertThat("incorrect uobject", fs.uobjects.get(0).asClassInstance(Map.class),
+				is(ImmutableMap.of("foo", "bar")));
+		assertThat("incorrect context count", fs.contexts.size(), is(1));
+		assertThat("incorrect call stack",
+				fs.contexts.get(0).getCallStack().get(0).getMethod(),
+				is("FakeServer.do_the_thing4"));
+	}
+	
+	@Test
+	public void postTuple() throws Exception {
+		final Map<String, Object> response = postForResponse(
+				getFakeServer(), "FakeServer.do_the_thing5", Arrays.asList("foo", 4));
+		assertThat("incorrect response", response,
+				is(ImmutableMap.of("version", "1.1", "result", Arrays.asList("foox", 8))));
+	}
+	
+	@Test
+	public void postMethodException() throws Exception {
+		final FakeServer fs = getFakeServer();
+		final Map<String, Object> response = postForResponse(
+				fs, "FakeServer.do_the_thing6", Arrays.asList("bar"));
+		@SuppressWarnings("unchecked")
+		final Map<String, Object> error = (Map<String, Object>) response.get("error");
+		assertThat("incorrect code", error.get("code"), is(-32500));
+		assertThat("incorrect message", error.get("message"), is("oh noes bar"));
+		assertThat("incorrect on rpc done calls", fs.onRpcMethodDoneCalls, is(1));
+	}
+	
+	@Test
+	public void postWrongParameters() throws Exception {
+		final Map<String, Object> response = postForResponse(
+				getFakeServer(), "FakeServer.do_the_thing5", Arrays.asList("foo"));
+		@SuppressWarnings("unchecked")
+		final Map<String, Object> error = (Map<String, Object>) response.get("error");
+		assertThat("incorrect code", error.get("code"), is(-32602));
+		assertThat("incorrect message", error.get("message"),
+				is("Wrong parameter count for method FakeServer.do_the_thing5"));
+		
+		final Map<String, Object> response2 = postForResponse(
+				getFakeServer(), "FakeServer.do_the_thing5", Arrays.asList("foo", "bar"));
+		@SuppressWarnings("unchecked")
+		final Map<String, Object> error2 = (Map<String, Object>) response2.get("error");
+		assertThat("incorrect code", error2.get("code"), is(-32602));
+		assertThat("incorrect message",
+				((String) error2.get("message")).startsWith(
+						"Wrong type of parameter 1 for method FakeServer.do_the_thing5"),
+				is(true));
+	}
+	
+	@Test
+	public void postAsync() throws Exception {
+		final FakeServer fs = getFakeServer();
+		final RpcBufferArena arena = new RpcBufferArena(1000, 1000, 100);
+		fs.setRpcBufferArena(arena);
+		final ExecutorService exe = Executors.newSingleThreadExecutor();
+		fs.setRpcExecutor(exe);
+		assertThat("incorrect executor", fs.getRpcExecutor(), is((Executor) exe));
+		final Continuation cont = mock(Continuation.class);
+		final HttpServletResponse resp = mock(HttpServletResponse.class);
+		
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		postAsync(fs, "FakeServer.do_the_thing1", Arrays.asList(1), cont, resp, output);
+		exe.shutdown();
+		exe.awaitTermination(10, TimeUnit.SECONDS);
+		
+		assertThat("incorrect response", new String(output.toByteArray(), StandardCharsets.UTF_8),
+				is("{\"version\":\"1.1\",\"result\":[2]}"));
+		final InOrder inOrder = inOrder(cont);
+		inOrder.verify(cont).setTimeout(0);
+		inOrder.verify(cont).suspend(resp);
+		inOrder.verify(cont).complete();
+		assertThat("incorrect on rpc done calls", fs.onRpcMethodDoneCalls, is(1));
+		assertThat("buffers not released", arena.getAvailableBuffers(), is(1));
+	}
+	
+	@Test
+	public void postAsyncWithoutContinuation() throws Exception {
+		// falls back to synchronous calls
+		final FakeServer fs = getFakeServer();
+		final Executor exe = mock(Executor.class);
+		fs.setRpcExecutor(exe);
+		
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		postAsync(fs, "FakeServer.do_the_thing1", Arrays.asList(1), null,
+				mock(HttpServletResponse.class), output);
+		
+		assertThat("incorrect response", new String(output.toByteArray(), StandardCharsets.UTF_8),
+				is("{\"version\":\"1.1\",\"result\":[2]}"));
+		verifyZeroInteractions(exe);
+	}
+	
+	@Test
+	public void postAsyncRejected() throws Exception {
+		final FakeServer fs = getFakeServer();
+		final ExecutorService exe = Executors.newSingleThreadExecutor();
+		exe.shutdown();
+		fs.setRpcExecutor(exe);
+		final Continuation cont = mock(Continuation.class);
+		
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		postAsync(fs, "FakeServer.do_the_thing1", Arrays.asList(1), cont,
+				mock(HttpServletResponse.class), output);
+		
+		final Map<String, Object> response = new ObjectMapper().readValue(
+				output.toByteArray(), new TypeReference<Map<String, Object>>(){});
+		@SuppressWarnings("unchecked")
+		final Map<String, Object> error = (Map<String, Object>) response.get("error");
+		assertThat("incorrect code", error.get("code"), is(-32000));
+		assertThat("incorrect message", error.get("message"),
+				is("The server is too busy to process the request, please try again later"));
+		verify(cont).complete();
+		assertThat("incorrect on rpc done calls", fs.onRpcMethodDoneCalls, is(0));
+	}
+	
+	private void postAsync(
+			final FakeServer fs,
+			final String method,
+			final List<Object> params,
+			final Continuation continuation,
+			final HttpServletResponse resp,
+			final ByteArrayOutputStream output)
+			throws Exception {
+		final HttpServletRequest req = mock(HttpServletRequest.class);
+		final byte[] body = new ObjectMapper().writeValueAsBytes(ImmutableMap.of(
+				"method", method,
+				"version", "1.1",
+				"id", 56,
+				"params", params));
+		when(req.getContentLength()).thenReturn(body.length);
+		when(req.getInputStream()).thenReturn(
+				new ServletInputStreamWrapper(new ByteArrayInputStream(body)));
+		when(req.getAttribute(Continuation.ATTRIBUTE)).thenReturn(continuation);
+		when(resp.getOutputStream()).thenReturn(new ServletOutputStreamWrapper(output));
+		
+		fs.doPost(req, resp);
+	}
+	
+	@Test
+	public void postAdmissionControl() throws Exception {
+		final FakeServer fs = getFakeServer();
+		final RpcAdmissionController ac = new RpcAdmissionController(
+				0, ImmutableMap.of("FakeServer.do_the_thing1", 1), 0, 0);
+		fs.setRpcAdmissionController(ac);
+		assertThat("incorrect controller", fs.getRpcAdmissionController(), is(ac));
+		
+		assertThat("incorrect response", postForResponse(
+				fs, "FakeServer.do_the_thing1", Arrays.asList(1)),
+				is(ImmutableMap.of("version", "1.1", "result", Arrays.asList(2))));
+		assertThat("incorrect running", ac.getRunningCount(), is(0));
+		
+		ac.acquire("FakeServer.do_the_thing1");
+		final Map<String, Object> response = postForResponse(
+				fs, "FakeServer.do_the_thing1", Arrays.asList(1));
+		@SuppressWarnings("unchecked")
+		final Map<String, Object> error = (Map<String, Object>) response.get("error");
+		assertThat("incorrect code", error.get("code"), is(-32000));
+		assertThat("incorrect message", error.get("message"), is("The server is too busy to " +
+				"run method FakeServer.do_the_thing1, please try again later"));
+		assertThat("incorrect id", response.get("id"), is("56"));
+		assertThat("incorrect on rpc done calls", fs.onRpcMethodDoneCalls, is(1));
+		
+		// other methods are unaffected
+		assertThat("incorrect response", postForResponse(
+				fs, "FakeServer.do_the_thing2", Arrays.asList(1)),
+				is(ImmutableMap.of("version", "1.1", "result", Arrays.asList(3))));
+	}
+	
+	@Test
+	public void postBatch() throws Exception {
+		postBatch(null);
+	}
+	
+	@Test
+	public void postBatchParallel() throws Exception {
+		final ExecutorService exe = Executors.newFixedThreadPool(4);
+		try {
+			postBatch(exe);
+		} finally {
+			exe.shutdown();
+		}
+	}
+	
+	private void postBatch(final Executor exe) throws Exception {
+		final FakeServer fs = getFakeServer();
+		fs.setRpcBatchExecutor(exe);
+		assertThat("incorrect executor", fs.getRpcBatchExecutor(), is(exe));
+		final HttpServletResponse resp = mock(HttpServletResponse.class);
+		final String body = "[" +
+				"{\"method\": \"FakeServer.do_the_thing1\", \"id\": 1, \"params\": [1]}," +
+				"{\"method\": \"FakeServer.do_the_thing5\", \"id\": \"2\", \"params\": [\"a\", 3]}," +
+				"{\"method\": \"FakeServer.do_the_thing4\", \"id\": 3, " +
+						"\"params\": [{\"foo\": [\"bar\"]}]}," +
+				"{\"method\": \"FakeServer.do_the_thing6\", \"id\": 4, \"params\": [\"x\"]}," +
+				"{\"method\": \"FakeServer.nope\", \"id\": 5, \"params\": []}," +
+				"null," +
+				"{\"method\": \"FakeServer.do_the_thing1\", \"id\": 7, \"params\": [41]}" +
+				"]";
+		
+		final List<Map<String, Object>> res = new ObjectMapper().readValue(
+				postRaw(fs, body.getBytes(StandardCharsets.UTF_8), resp),
+				new TypeReference<List<Map<String, Object>>>() {});
+		
+		assertThat("incorrect response count", res.size(), is(7));
+		assertThat("incorrect response", res.get(0),
+				is(ImmutableMap.of("version", "1.1", "result", Arrays.asList(2))));
+		assertThat("incorrect response", res.get(1),
+				is(ImmutableMap.of("version", "1.1", "result", Arrays.asList("ax", 6))));
+		assertThat("incorrect response", res.get(2).get("result"), is(nullValue()));
+		assertThat("incorrect uobject", fs.uobjects.get(0).asClassInstance(Map.class),
+				is(ImmutableMap.of("foo", Arrays.asList("bar"))));
+		assertBatchError(res.get(3), "4", -32500, "oh noes x");
+		assertBatchError(res.get(4), "5", -32601,
+				"Can not find method [FakeServer.nope] in server class " +
+				FakeServer.class.getName());
+		assertBatchError(res.get(5), null, -32600, "JSON RPC call in batch is null");
+		assertThat("incorrect response", res.get(6),
+				is(ImmutableMap.of("version", "1.1", "result", Arrays.asList(42))));
+		assertThat("incorrect on rpc done calls", fs.onRpcMethodDoneCalls, is(5));
+		verify(resp, never()).setStatus(anyInt());
+	}
+	
+	private void assertBatchError(
+			final Map<String, Object> response,
+			final String id,
+			final int code,
+			final String message) {
+		assertThat("incorrect id", response.get("id"), is(id));
+		@SuppressWarnings("unchecked")
+		final Map<String, Object> error = (Map<String, Object>) response.get("error");
+		assertThat("incorrect code", error.get("code"), is(code));
+		assertThat("incorrect message", error.get("message"), is(message));
+	}
+	
+	@Test
+	public void postEmptyBatch() throws Exception {
+		final HttpServletResponse resp = mock(HttpServletResponse.class);
+		final Map<String, Object> response = new ObjectMapper().readValue(
+				postRaw(getFakeServer(), " [ ] ".getBytes(StandardCharsets.UTF_8), resp),
+				new TypeReference<Map<String, Object>>() {});
+		assertBatchError(response, null, -32600, "JSON RPC batch is empty");
+		verify(resp).setStatus(500);
+	}
+	
+	private byte[] postRaw(
+			final FakeServer fs,
+			final byte[] body,
+			final HttpServletResponse resp)
+			throws Exception {
+		final HttpServletRequest req = mock(HttpServletRequest.class);
+		when(req.getContentLength()).thenReturn(body.length);
+		when(req.getInputStream()).thenReturn(
+				new ServletInputStreamWrapper(new ByteArrayInputStream(body)));
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		when(resp.getOutputStream()).thenReturn(new ServletOutputStreamWrapper(output));
+		
+		fs.doPost(req, resp);
+		
+		return output.toByteArray();
+	}
+	
+	private FakeServer getFakeServer() {
+		final JsonServerSyslog sysLog = mock(JsonServerSyslog.class);
+		when(sysLog.getServiceName()).thenReturn("myserv");
+		return new FakeServer(mock(AuthenticationHandler.class), false, sysLog,
+				mock(JsonServerSyslog.class));
+	}
+	
+	@Test
+	public void postResponseFormat() throws Exception {
+		assertThat("incorrect response", new String(postForRawResponse(getFakeServer(),
+				"FakeServer.do_the_thing1", Arrays.asList(1)), StandardCharsets.UTF_8),
+				is("{\"version\":\"1.1\",\"result\":[2]}"));
+		assertThat("incorrect response", new String(postForRawResponse(getFakeServer(),
+				"FakeServer.do_the_thing5", Arrays.asList("a", 1)), StandardCharsets.UTF_8),
+				is("{\"version\":\"1.1\",\"result\":[\"ax\",2]}"));
+		assertThat("incorrect response", new String(postForRawResponse(getFakeServer(),
+				"FakeServer.do_the_thing4", Arrays.asList(1)), StandardCharsets.UTF_8),
+				is("{\"version\":\"1.1\",\"result\":null}"));
+	}
+	
+	@Test
+	public void postResponseBuffered() throws Exception {
+		final HttpServletResponse resp = mock(HttpServletResponse.class);
+		final byte[] expected = "{\"version\":\"1.1\",\"result\":[2]}"
+				.getBytes(StandardCharsets.UTF_8);
+		assertThat("incorrect response", postForRawResponse(getFakeServer(),
+				"FakeServer.do_the_thing1", Arrays.asList(1), resp), is(expected));
+		verify(resp).setContentLength(expected.length);
+		verify(resp, never()).setStatus(anyInt());
+	}
+	
+	@Test
+	public void postResponseStreamed() throws Exception {
+		final Map<String, Object> big = bigMap();
+		for (final int bufferSize: Arrays.asList(0, 100)) {
+			final FakeServer fs = getFakeServer();
+			fs.setRpcResponseBufferSize(bufferSize);
+			final HttpServletResponse resp = mock(HttpServletResponse.class);
+			final Map<String, Object> response = new ObjectMapper().readValue(
+					postForRawResponse(fs, "FakeServer.do_the_thing7", Arrays.asList(big), resp),
+					new TypeReference<Map<String, Object>>(){});
+			assertThat("incorrect response", response, is((Map<String, Object>) ImmutableMap.of(
+					"version", "1.1", "result", Arrays.asList(big))));
+			verify(resp, never()).setContentLength(anyInt());
+			verify(resp, never()).setStatus(anyInt());
+		}
+	}
+	
+	private static Map<String, Object> bigMap() {
+		final Map<String, Object> big = new HashMap<>();
+		for (int i = 0; i < 1000; i++) {
+			big.put("key" + i, "value" + i);
+		}
+		return big;
+	}
+	
+	@Test
+	public void postCompressedResponse() throws Exception {
+		final Map<String, Object> big = bigMap();
+		for (final int bufferSize: Arrays.asList(0, 100, 100000)) {
+			for (final Entry<String, String> accept: ImmutableMap.<String, String>builder()
+					.put("gzip", "gzip")
+					.put("deflate, gzip;q=0", "deflate")
+					.put("*", "gzip")
+					.put("gzip;q=0, *", "deflate")
+					.put("*, x-gzip;q=0", "deflate")
+					.put("deflate;q=0, *", "gzip")
+					.put("*;q=0, deflate", "deflate")
+					.build().entrySet()) {
+				final FakeServer fs = getFakeServer();
+				fs.setRpcResponseBufferSize(bufferSize);
+				final HttpServletResponse resp = mock(HttpServletResponse.class);
+				final byte[] response = postCompressed(fs, "FakeServer.do_the_thing7",
+						Arrays.asList(big), null, accept.getKey(), resp);
+				final String encoding = accept.getValue();
+				verify(resp).setHeader("Content-Encoding", encoding);
+				verify(resp, never()).setContentLength(anyInt());
+				final InputStream in = encoding.equals("gzip") ?
+						new GZIPInputStream(new ByteArrayInputStream(response)) :
+						new InflaterInputStream(new ByteArrayInputStream(response));
+				assertThat("incorrect response", new ObjectMapper().readValue(
+						in, new TypeReference<Map<String, Object>>(){}),
+						is((Map<String, Object>) ImmutableMap.of(
+								"version", "1.1", "result", Arrays.asList(big))));
+			}
+		}
+	}
+	
+	@Test
+	public void postUncompressedResponse() throws Exception {
+		final Map<String, Object> big = bigMap();
+		final byte[] small = "{\"version\":\"1.1\",\"result\":[2]}"
+				.getBytes(StandardCharsets.UTF_8);
+		// response below the threshold
+		HttpServletResponse resp = mock(HttpServletResponse.class);
+		assertThat("incorrect response", postCompressed(getFakeServer(),
+				"FakeServer.do_the_thing1", Arrays.asList(1), null, "gzip", resp), is(small));
+		verify(resp).setContentLength(small.length);
+		verify(resp, never()).setHeader("Content-Encoding", "gzip");
+		
+		// no acceptable encoding
+		for (final String accept: Arrays.asList(
+				"br, gzip;q=0", "*;q=0", "gzip;q=0, deflate;q=0, *", "*;q=0, gzip;q=0")) {
+			resp = mock(HttpServletResponse.class);
+			postCompressed(getFakeServer(), "FakeServer.do_the_thing7", Arrays.asList(big),
+					null, accept, resp);
+			verify(resp, never()).setHeader(eq("Content-Encoding"), anyString());
+		}
+		
+		// method excluded from compression
+		resp = mock(HttpServletResponse.class);
+		assertThat("incorrect response", new ObjectMapper().readValue(postCompressed(
+				getFakeServer(), "FakeServer.do_the_thing8", Arrays.asList(big),
+				null, "gzip", resp), Map.class).get("result"), is((Object) Arrays.asList(big)));
+		verify(resp, never()).setHeader("Content-Encoding", "gzip");
+		
+		// compression disabled
+		final FakeServer fs = getFakeServer();
+		fs.setRpcCompressionLevel(0);
+		resp = mock(HttpServletResponse.class);
+		postCompressed(fs, "FakeServer.do_the_thing7", Arrays.asList(big), null, "gzip", resp);
+		verify(resp, never()).setHeader("Content-Encoding", "gzip");
+	}
+	
+	@Test
+	public void postCompressedRequest() throws Exception {
+		for (final String encoding: Arrays.asList("gzip", "deflate")) {
+			final HttpServletResponse resp = mock(HttpServletResponse.class);
+			assertThat("incorrect response", new String(postCompressed(getFakeServer(),
+					"FakeServer.do_the_thing1", Arrays.asList(1), encoding, null, resp),
+					StandardCharsets.UTF_8), is("{\"version\":\"1.1\",\"result\":[2]}"));
+			verify(resp, never()).setStatus(anyInt());
+		}
+		final HttpServletResponse resp = mock(HttpServletResponse.class);
+		final Map<String, Object> response = new ObjectMapper().readValue(postCompressed(
+				getFakeServer(), "FakeServer.do_the_thing1", Arrays.asList(1), "br", null,
+				resp), new TypeReference<Map<String, Object>>(){});
+		@SuppressWarnings("unchecked")
+		final Map<String, Object> error = (Map<String, Object>) response.get("error");
+		assertThat("incorrect code", error.get("code"), is(-32700));
+		assertThat("incorrect message", error.get("message"),
+				is("Unsupported content encoding: br"));
+		verify(resp).setStatus(500);
+	}
+	
+	@Test
+	public void postCompressedRequestTooBig() throws Exception {
+		final StringBuilder big = new StringBuilder();
+		for (int i = 0; i < 2000; i++) {
+			big.append("a");
+		}
+		for (final RpcBufferArena arena: Arrays.asList(null, new RpcBufferArena(10000, 10000, 10))) {
+			final FakeServer fs = getFakeServer();
+			fs.setRpcBufferArena(arena);
+			assertThat("incorrect default", fs.getMaxRpcDecodedSize(), is(256L * 1024 * 1024));
+			fs.setMaxRpcDecodedSize(1000);
+			assertThat("incorrect max", fs.getMaxRpcDecodedSize(), is(1000L));
+			final HttpServletResponse resp = mock(HttpServletResponse.class);
+			final Map<String, Object> response = new ObjectMapper().readValue(postCompressed(
+					fs, "FakeServer.do_the_thing7", Arrays.asList(big.toString()), "gzip", null,
+					resp), new TypeReference<Map<String, Object>>(){});
+			@SuppressWarnings("unchecked")
+			final Map<String, Object> error = (Map<String, Object>) response.get("error");
+			assertThat("incorrect code", error.get("code"), is(-32700));
+			assertThat("incorrect message", error.get("message"),
+					is("Object is too big, decompressed length is more than 1000 bytes"));
+			verify(resp).setStatus(500);
+			if (arena != null) {
+				assertThat("buffers not released", arena.getAvailableBuffers(), is(1));
+			}
+		}
+		try {
+			getFakeServer().setMaxRpcDecodedSize(0);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(
+					"Max decoded size must be at least 1"));
+		}
+	}
+	
+	@Test
+	public void setRpcCompressionFail() throws Exception {
+		for (final int level: Arrays.asList(-2, 10)) {
+			try {
+				getFakeServer().setRpcCompressionLevel(level);
+				fail("expected exception");
+			} catch (Exception got) {
+				TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(
+						"Compression level must be between -1 and 9"));
+			}
+		}
+		try {
+			getFakeServer().setRpcCompressionThreshold(-1);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(
+					"Compression threshold must be at least 0"));
+		}
+	}
+	
+	/* Posts a call with the request body compressed with the given encoding, if any, and
+	 * the given Accept-Encoding header, if any. Returns the raw response.
+	 */
+	private byte[] postCompressed(
+			final FakeServer fs,
+			final String method,
+			final List<Object> params,
+			final String requestEncoding,
+			final String acceptEncoding,
+			final HttpServletResponse resp)
+			throws Exception {
+		final HttpServletRequest req = mock(HttpServletRequest.class);
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		final OutputStream bodyOut;
+		if ("gzip".equals(requestEncoding)) {
+			bodyOut = new GZIPOutputStream(body);
+		} else if ("deflate".equals(requestEncoding)) {
+			bodyOut = new DeflaterOutputStream(body);
+		} else {
+			bodyOut = body;
+		}
+		new ObjectMapper().writeValue(bodyOut, ImmutableMap.of(
+				"method", method,
+				"version", "1.1",
+				"id", 56,
+				"params", params));
+		when(req.getHeader("Content-Encoding")).thenReturn(requestEncoding);
+		when(req.getHeader("Accept-Encoding")).thenReturn(acceptEncoding);
+		when(req.getContentLength()).thenReturn(body.size());
+		when(req.getInputStream()).thenReturn(
+				new ServletInputStreamWrapper(new ByteArrayInputStream(body.toByteArray())));
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		when(resp.getOutputStream()).thenReturn(new ServletOutputStreamWrapper(output));
+		
+		fs.doPost(req, resp);
+		
+		return output.toByteArray();
+	}
+	
+	@Test
+	public void setRpcResponseBufferSizeFail() throws Exception {
+		try {
+			getFakeServer().setRpcResponseBufferSize(-1);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(
+					"rpcResponseBufferSize must be at least 0"));
+		}
+	}
+	
+	private Map<String, Object> postForResponse(
+			final FakeServer fs,
+			final String method,
+			final List<Object> params)
+			throws Exception {
+		return new ObjectMapper().readValue(postForRawResponse(fs, method, params),
+				new TypeReference<Map<String, Object>>(){});
+	}
+	
+	private byte[] postForRawResponse(
+			final FakeServer fs,
+			final String method,
+			final List<Object> params)
+			throws Exception {
+		return postForRawResponse(fs, method, params, mock(HttpServletResponse.class));
+	}
+	
+	private byte[] postForRawResponse(
+			final FakeServer fs,
+			final String method,
+			final List<Object> params,
+			final HttpServletResponse resp)
+			throws Exception {
+		final HttpServletRequest req = mock(HttpServletRequest.class);
+		final byte[] body = new ObjectMapper().writeValueAsBytes(ImmutableMap.of(
+				"method", method,
+				"version", "1.1",
+				"id", 56,
+				"params", params));
+		when(req.getContentLength()).thenReturn(body.length);
+		when(req.getInputStream()).thenReturn(
+				new ServletInputStreamWrapper(new ByteArrayInputStream(body)));
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		when(resp.getOutputStream()).thenReturn(new ServletOutputStreamWrapper(output));
+		
+		fs.doPost(req, resp);
+		
+		return output.toByteArray();
+	}
+	
+	@Test
+	public void postWithBufferArena() throws Exception {
+		final RpcBufferArena arena = new RpcBufferArena(2000, 1000, 100);
+		post("FakeServer.do_the_thing1", 7, null, false, true, null, arena);
+		post("FakeServer.do_the_thing1", 7, null, false, false, null, arena);
+		assertThat("buffers not released", arena.getAvailableBuffers(), is(2));
+	}
+	
+	@Test
+	public void postWithBufferArenaSpilledToDisk() throws Exception {
+		final Path tempDir = Files.createTempDirectory("JsonServerServletTest");
+		final RpcBufferArena arena = new RpcBufferArena(10, 10, 100);
+		try {
+			post("FakeServer.do_the_thing1", 7, null, false, true, tempDir.toFile(), arena);
+			post("FakeServer.do_the_thing1", 7, null, false, false, tempDir.toFile(), arena);
+			assertThat("temp files not deleted", tempDir.toFile().list().length, is(0));
+			assertThat("buffers not released", arena.getAvailableBuffers(), is(1));
+		} finally {
+			Files.delete(tempDir);
+		}
+	}
+	
+	@Test
+	public void postWithBufferArenaFail() throws Exception {
+		// too big for the buffer with no disk cache
+		final RpcBufferArena arena = new RpcBufferArena(10, 10, 100);
+		postFail(arena, -32700, "Object is too big, length is more than 10 bytes");
+		assertThat("buffers not released", arena.getAvailableBuffers(), is(1));
+		
+		// no buffers available
+		final RpcBufferArena arena2 = new RpcBufferArena(1000, 1000, 10);
+		final ByteBuffer b = arena2.acquire();
+		postFail(arena2, -32000,
+				"The server is too busy to process the request, please try again later");
+		arena2.release(b);
+	}
+	
+	@Test
+	public void postWithBufferArenaParamsReleased() throws Exception {
+		final RpcBufferArena arena = new RpcBufferArena(1000, 1000, 100);
+		final FakeServer fs = getFakeServer();
+		fs.setRpcBufferArena(arena);
+		final String body = "{\"method\": \"FakeServer.do_the_thing4\", \"id\": 1, " +
+				"\"params\": [{\"foo\": [\"bar\"]}]}";
+		postRaw(fs, body.getBytes(StandardCharsets.UTF_8), mock(HttpServletResponse.class));
+		assertThat("buffers not released", arena.getAvailableBuffers(), is(1));
+		
+		// the next request reuses the buffer, so the kept parameter must not read it
+		final ByteBuffer b = arena.acquire();
+		b.put("{\"baz\": 1}".getBytes(StandardCharsets.UTF_8));
+		try {
+			fs.uobjects.get(0).asClassInstance(Map.class);
+			fail("expected exception");
+		} catch (IllegalStateException got) {
+			TestCommon.assertExceptionCorrect(got.getCause(), new IOException(
+					"The data source of this token stream has been released"));
+		}
+		arena.release(b);
+	}
+	
+	@Test
+	public void postBatchParallelWithBufferArena() throws Exception {
+		final RpcBufferArena arena = new RpcBufferArena(1000, 1000, 100);
+		final ExecutorService exe = Executors.newFixedThreadPool(4);
+		try {
+			final FakeServer fs = getFakeServer();
+			fs.setRpcBufferArena(arena);
+			fs.setRpcBatchExecutor(exe);
+			final String body = "[" +
+					"{\"method\": \"FakeServer.do_the_thing1\", \"id\": 1, \"params\": [1]}," +
+					"{\"method\": \"FakeServer.do_the_thing1\", \"id\": 2, \"params\": [2]}" +
+					"]";
+			final List<Map<String, Object>> res = new ObjectMapper().readValue(
+					postRaw(fs, body.getBytes(StandardCharsets.UTF_8),
+							mock(HttpServletResponse.class)),
+					new TypeReference<List<Map<String, Object>>>() {});
+			assertThat("incorrect response", res.get(1),
+					is(ImmutableMap.of("version", "1.1", "result", Arrays.asList(3))));
+			assertThat("buffers not released", arena.getAvailableBuffers(), is(1));
+		} finally {
+			exe.shutdown();
+		}
+	}
+	
+	private void postFail(final RpcBufferArena arena, final int code, final String message)
+			throws Exception {
+		final AuthenticationHandler ah = mock(AuthenticationHandler.class);
+		final JsonServerSyslog sysLog = mock(JsonServerSyslog.class);
+		final JsonServerSyslog userLog = mock(JsonServerSyslog.class);
+		final HttpServletRequest req = mock(HttpServletRequest.class);
+		final HttpServletResponse resp = mock(HttpServletResponse.class);
+		when(sysLog.getServiceName()).thenReturn("myserv");
+		final FakeServer fs = new FakeServer(ah, false, sysLog, userLog);
+		fs.setRpcBufferArena(arena);
+		assertThat("incorrect arena", fs.getRpcBufferArena(), is(arena));
+		
+		final byte[] body = new ObjectMapper().writeValueAsBytes(ImmutableMap.of(
+				"method", "FakeServer.do_the_thing1",
+				"version", "1.1",
+				"id", 56,
+				"params", Arrays.asList(6)));
+		when(req.getContentLength()).thenReturn(-1);
+		when(req.getInputStream()).thenReturn(
+				new ServletInputStreamWrapper(new ByteArrayInputStream(body)));
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		when(resp.getOutputStream()).thenReturn(new ServletOutputStreamWrapper(output));
+		
+		fs.doPost(req, resp);
+		
+		final Map<String, Object> response = new ObjectMapper().readValue(
+				output.toByteArray(), new TypeReference<Map<String, Object>>(){});
+		@SuppressWarnings("unchecked")
+		final Map<String, Object> error = (Map<String, Object>) response.get("error");
+		assertThat("incorrect code", error.get("code"), is(code));
+		assertThat("incorrect message", error.get("message"), is(message));
+		verify(resp).setStatus(500);
+		assertThat("incorrect on rpc done calls", fs.onRpcMethodDoneCalls, is(0));
+	}
+	
 	private void post(
 			final String method,
 			final int result,
 			final AuthToken token,
 			final boolean expectToken)
 			throws Exception {
+		post(method, result, token, expectToken, false, null);
+	}
+	
+	private void post(
+			final String method,
+			final int result,
+			final AuthToken token,
+			final boolean expectToken,
+			final boolean setContentLength,
+			final File diskCacheDir)
+			throws Exception {
+		post(method, result, token, expectToken, setContentLength, diskCacheDir, null);
+	}
+	
+	private void post(
+			final String method,
+			final int result,
+			final AuthToken token,
+			final boolean expectToken,
+			final boolean setContentLength,
+			final File diskCacheDir,
+			final RpcBufferArena arena)
+			throws Exception {
 		final AuthenticationHandler ah = mock(AuthenticationHandler.class);
 		final JsonServerSyslog sysLog = mock(JsonServerSyslog.class);
 		final JsonServerSyslog userLog = mock(JsonServerSyslog.class);
@@ -189,6 +983,11 @@ public class JsonServerServletTest {
 		
 		// note the trust x ip headers arg is untested - only affects logging the ip address
 		final FakeServer fs = new FakeServer(ah, false, sysLog, userLog);
+		if (diskCacheDir != null) {
+			fs.setMaxRpcMemoryCacheSize(10);
+			fs.setRpcDiskCacheTempDir(diskCacheDir);
+		}
+		fs.setRpcBufferArena(arena);
 		
 		assertThat("incorrect service name", fs.getDefaultServiceName(), is("myserv"));
 		assertThat("incorrect config", fs.getConfig(), is(Collections.emptyMap()));
@@ -207,8 +1006,13 @@ public class JsonServerServletTest {
 				"id", 56,
 				"params", Arrays.asList(6));
 		
-		final InputStream input = new ByteArrayInputStream(
-				new ObjectMapper().writeValueAsBytes(packge));
+		final byte[] body = new ObjectMapper().writeValueAsBytes(packge);
+		final InputStream input = new ByteArrayInputStream(body);
+		if (setContentLength) {
+			when(req.getContentLength()).thenReturn(body.length);
+		} else {
+			when(req.getContentLength()).thenReturn(-1);
+		}
 		
 		final ByteArrayOutputStream output = new ByteArrayOutputStream();
 		
@@ -9,9 +9,14 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -27,8 +32,10 @@ import com.fasterxml.jackson.core.io.SerializedString;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 
 import us.kbase.common.service.JsonTokenStream;
+import us.kbase.testutils.TestCommon;
 
 public class JsonTokenStreamTest {
 	
@@ -412,11 +419,12 @@ public class JsonTokenStreamTest {
 		File f = File.createTempFile("TestJsonTokenStream-", ".tmp");
 		f.deleteOnExit();
 		failInitJTS(f, "Data must be at least 1 byte / char");
+		failInitJTS(ByteBuffer.allocate(0), "Data must be at least 1 byte / char");
 		//this doesn't work - mapped to ""
 //		JsonNode n = new ObjectMapper().valueToTree("");
 //		failInitJTS(n, "Data must be at least 1 byte / char");
 		failInitJTS(new HashMap<String, String>(),
-				"Only String, File, JsonNode, and byte[]s are allowed as input");
+				"Only String, File, JsonNode, ByteBuffers, and byte[]s are allowed as input");
 	}
 	
 	private void failInitJTS(Object data, String exception) throws Exception {
@@ -437,6 +445,11 @@ public class JsonTokenStreamTest {
 			for (Charset enc: encodings) {
 				byte[] bdata = sdata.getBytes(enc);
 				checkStreamingCorrectness(sdata, bdata);
+				checkStreamingCorrectness(sdata, ByteBuffer.wrap(bdata));
+				final ByteBuffer direct = ByteBuffer.allocateDirect(bdata.length + 4);
+				direct.put("junk".getBytes(utf8)).put(bdata).flip().position(4);
+				checkStreamingCorrectness(sdata, direct);
+				assertThat("buffer position altered", direct.position(), is(4));
 
 				File f = File.createTempFile("TestJsonTokenStream-", null);
 				f.deleteOnExit();
@@ -565,4 +578,429 @@ public class JsonTokenStreamTest {
 			}
 		}
 	}
+	
+	@Test
+	public void innerParsers() throws Exception {
+		final String data = "{\"a\":[\"b\",{\"c\":\"d\u00e9\"}]}";
+		for (Charset enc: encodings) {
+			final JsonTokenStream jts = new JsonTokenStream(data.getBytes(enc));
+			final long created = JsonTokenStream.getInnerParsersCreated();
+			final long bytes = JsonTokenStream.getByteInnerParsersCreated();
+			jts.setRoot(Arrays.asList("a", "1"));
+			assertThat("incorrect data", new ObjectMapper().readValue(jts, Object.class),
+					is((Object) ImmutableMap.of("c", "d\u00e9")));
+			jts.close();
+			jts.setRoot(Arrays.asList("a", "0"));
+			assertThat("incorrect data", jts.nextToken(), is(JsonToken.VALUE_STRING));
+			assertThat("incorrect data", jts.getText(), is("b"));
+			jts.close();
+			assertThat("incorrect parser count", JsonTokenStream.getInnerParsersCreated(),
+					is(created + 2));
+			assertThat("incorrect byte parser count",
+					JsonTokenStream.getByteInnerParsersCreated(),
+					is(bytes + (enc.equals(utf8) ? 2 : 0)));
+		}
+	}
+	
+	@Test
+	public void index() throws Exception {
+		final String data = "{\"a\":[\"b\",{\"c\":[1,2]},{\"d\":{\"e\":\"f\u00e9\"}}]," +
+				"\"g\":{\"h\":true}}";
+		final File f = File.createTempFile("JsonTokenStreamTest", ".json");
+		try {
+			final FileOutputStream fos = new FileOutputStream(f);
+			fos.write(data.getBytes(utf8));
+			fos.close();
+			final List<Object> sources = Arrays.asList(data.getBytes(utf8), f,
+					ByteBuffer.wrap(("  " + data).getBytes(utf8), 2, data.length() + 1));
+			for (final Object source: sources) {
+				final JsonTokenStream jts = new JsonTokenStream(source).setIndexDepth(3);
+				assertThat("incorrect depth", jts.getIndexDepth(), is(3));
+				// scans from the start and indexes the containers it passes
+				checkRoot(jts, Arrays.asList("g"), ImmutableMap.of("h", true));
+				assertThat("incorrect hits", jts.getIndexHits(), is(0L));
+				assertThat("incorrect index size", jts.getIndexSize(), is(6));
+				checkRoot(jts, Arrays.asList("a", "2", "d"), ImmutableMap.of("e", "f\u00e9"));
+				checkRoot(jts, Arrays.asList("a", "1"),
+						ImmutableMap.of("c", Arrays.asList(1, 2)));
+				checkRoot(jts, Arrays.asList("a"), Arrays.asList("b",
+						ImmutableMap.of("c", Arrays.asList(1, 2)),
+						ImmutableMap.of("d", ImmutableMap.of("e", "f\u00e9"))));
+				assertThat("incorrect hits", jts.getIndexHits(), is(3L));
+				assertThat("incorrect path", jts.setRoot(Arrays.asList("a", "2"))
+						.getCurrentPath(), is(Arrays.asList("a", "2")));
+				jts.close();
+				// not a container, so not indexed
+				checkRoot(jts, Arrays.asList("a", "2", "d", "e"), "f\u00e9");
+				assertThat("incorrect hits", jts.getIndexHits(), is(4L));
+			}
+		} finally {
+			f.delete();
+		}
+		// only UTF-8 byte sources are indexed
+		final JsonTokenStream jts = new JsonTokenStream(data).setIndexDepth(3);
+		checkRoot(jts, Arrays.asList("g"), ImmutableMap.of("h", true));
+		checkRoot(jts, Arrays.asList("a", "1"), ImmutableMap.of("c", Arrays.asList(1, 2)));
+		assertThat("incorrect index size", jts.getIndexSize(), is(0));
+		assertThat("incorrect hits", jts.getIndexHits(), is(0L));
+		try {
+			new JsonTokenStream("{}").setIndexDepth(-1);
+			fail("expected exception");
+		} catch (IllegalArgumentException e) {
+			assertThat("incorrect exception", e.getMessage(),
+					is("Index depth must be at least 0"));
+		}
+	}
+	
+	private void checkRoot(final JsonTokenStream jts, final List<String> root,
+			final Object expected) throws Exception {
+		jts.setRoot(root);
+		assertThat("incorrect data", new ObjectMapper().readValue(jts, Object.class),
+				is(expected));
+		jts.close();
+	}
+	
+	@Test
+	public void memoryMapped() throws Exception {
+		final String data = "{\"a\":[\"b\",{\"c\":[1,2]},{\"d\":{\"e\":\"f\u00e9\u4e2d\"}}]," +
+				"\"g\":{\"h\":true}}";
+		final File f = File.createTempFile("JsonTokenStreamTest", ".json");
+		try {
+			final FileOutputStream fos = new FileOutputStream(f);
+			fos.write(data.getBytes(utf8));
+			fos.close();
+			final Object expected = new ObjectMapper().readValue(data, Object.class);
+			// segments smaller than a multibyte character
+			for (final int segmentSize: Arrays.asList(1, 2, 7, 1000)) {
+				final JsonTokenStream jts = new JsonTokenStream(f)
+						.setMappedSegmentSize(segmentSize).setMemoryMapped(true).setIndexDepth(3);
+				assertThat("incorrect mapped", jts.isMemoryMapped(), is(true));
+				assertThat("incorrect segment size", jts.getMappedSegmentSize(),
+						is(segmentSize));
+				checkRoot(jts, null, expected);
+				checkRoot(jts, Arrays.asList("a", "2", "d"),
+						ImmutableMap.of("e", "f\u00e9\u4e2d"));
+				checkRoot(jts, Arrays.asList("g"), ImmutableMap.of("h", true));
+				assertThat("incorrect hits", jts.getIndexHits(), is(2L));
+				
+				final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+				jts.setRoot(null).setTrustedWholeJson(true).writeJson(baos);
+				assertThat("incorrect json", new String(baos.toByteArray(), utf8), is(data));
+				
+				final JsonTokenStream copy = new JsonTokenStream(f).setMemoryMapped(true);
+				checkRoot(copy.setMappedSegmentSize(segmentSize), Arrays.asList("a", "1"),
+						ImmutableMap.of("c", Arrays.asList(1, 2)));
+				copy.setMemoryMapped(false);
+				assertThat("incorrect mapped", copy.isMemoryMapped(), is(false));
+				checkRoot(copy, Arrays.asList("g"), ImmutableMap.of("h", true));
+			}
+		} finally {
+			f.delete();
+		}
+		try {
+			new JsonTokenStream("{\"a\":1}".getBytes(utf8)).setMemoryMapped(true);
+			fail("expected exception");
+		} catch (IllegalArgumentException e) {
+			assertThat("incorrect exception", e.getMessage(),
+					is("Only file data sources can be memory mapped"));
+		}
+		try {
+			new JsonTokenStream("{\"a\":1}".getBytes(utf8)).setMappedSegmentSize(0);
+			fail("expected exception");
+		} catch (IllegalArgumentException e) {
+			assertThat("incorrect exception", e.getMessage(),
+					is("Mapped segment size must be at least 1"));
+		}
+	}
+	
+	@Test
+	public void writeTrustedBytes() throws Exception {
+		// bytes that aren't valid UTF-8 are only preserved if the data isn't decoded
+		final ByteArrayOutputStream d = new ByteArrayOutputStream();
+		d.write("{\"a\":[\"b\",\"".getBytes(utf8));
+		d.write(new byte[] {(byte) 0xc3, (byte) 0xa9, (byte) 0xff});
+		d.write("\"],\"c\":{}}".getBytes(utf8));
+		final byte[] data = d.toByteArray();
+		final File f = File.createTempFile("JsonTokenStreamTest", ".json");
+		final File out = File.createTempFile("JsonTokenStreamTest", ".out");
+		try {
+			final FileOutputStream fos = new FileOutputStream(f);
+			fos.write(data);
+			fos.close();
+			final ByteBuffer direct = ByteBuffer.allocateDirect(data.length + 2);
+			direct.put((byte) 'x').put(data).put((byte) 'x').flip().position(1);
+			direct.limit(data.length + 1);
+			final List<JsonTokenStream> sources = Arrays.asList(
+					new JsonTokenStream(data),
+					new JsonTokenStream(ByteBuffer.wrap(data)),
+					new JsonTokenStream(direct),
+					new JsonTokenStream(f),
+					new JsonTokenStream(f).setMappedSegmentSize(5).setMemoryMapped(true));
+			for (final JsonTokenStream jts: sources) {
+				jts.setTrustedWholeJson(true);
+				final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+				jts.writeJson(baos);
+				assertThat("incorrect bytes", Arrays.equals(baos.toByteArray(), data), is(true));
+				
+				// FileChannel.transferTo for file to file
+				jts.writeJson(out);
+				final byte[] written = Files.readAllBytes(out.toPath());
+				assertThat("incorrect bytes", Arrays.equals(written, data), is(true));
+				jts.close();
+			}
+		} finally {
+			f.delete();
+			out.delete();
+		}
+	}
+	
+	@Test
+	public void largeStrings() throws Exception {
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 300; i++) {
+			sb.append(i % 7 == 0 ? "\\\"" : i % 11 == 0 ? "\\\\" : "" + (char) ('a' + i % 26));
+		}
+		final String big = sb.toString();
+		final String data = "{\"a\":\"" + big + "\",\"b\":[\"" + big.substring(0, 90) + "\",1," +
+				"\"^*->#0,1\",\"" + big + "\"]}";
+		for (int threshold = 100; threshold < 120; threshold++) {
+			for (final Object source: Arrays.asList(data, data.getBytes(utf8))) {
+				final JsonTokenStream jts = new JsonTokenStream(source, threshold);
+				assertThat("incorrect threshold", jts.getLargeStringThreshold(), is(threshold));
+				final List<String> strings = new LinkedList<String>();
+				// parse twice to check strings found again aren't duplicated
+				for (int pass = 0; pass < 2; pass++) {
+					jts.setRoot(null);
+					JsonToken t;
+					while ((t = jts.nextToken()) != null) {
+						if (t == JsonToken.VALUE_STRING) {
+							strings.add(jts.getText());
+						}
+					}
+					jts.close();
+				}
+				assertThat("incorrect string count", strings.size(), is(8));
+				for (final int i: Arrays.asList(0, 3, 4, 7)) {
+					final String s = strings.get(i);
+					assertThat("incorrect large string", jts.isLargeString(s), is(true));
+					final Reader r = jts.getLargeStringReader(s);
+					final StringWriter sw = new StringWriter();
+					final char[] buf = new char[13];
+					int read;
+					while ((read = r.read(buf)) > 0) {
+						sw.write(buf, 0, read);
+					}
+					assertThat("incorrect large string", sw.toString(), is(big));
+				}
+				assertThat("incorrect string", strings.get(1),
+						is(new ObjectMapper().readValue("\"" + big.substring(0, 90) + "\"",
+								String.class)));
+				assertThat("incorrect large string", jts.isLargeString(strings.get(2)),
+						is(false));
+				assertThat("incorrect large string", jts.isLargeString("^*->#6,20"), is(false));
+				
+				final StringWriter sw = new StringWriter();
+				jts.setRoot(null);
+				jts.writeJson(sw);
+				assertThat("incorrect json", sw.toString(), is(data));
+			}
+		}
+		assertThat("incorrect threshold", new JsonTokenStream(data).getLargeStringThreshold(),
+				is(0));
+		try {
+			new JsonTokenStream(data, JsonTokenStream.MIN_LARGE_STRING_THRESHOLD - 1);
+			fail("expected exception");
+		} catch (IllegalArgumentException e) {
+			assertThat("incorrect exception", e.getMessage(),
+					is("Large string threshold must be 0 or at least 100"));
+		}
+	}
+	
+	@Test
+	public void largeStringBytes() throws Exception {
+		final StringBuilder plain = new StringBuilder();
+		final StringBuilder escaped = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			plain.append("ACGT\u00e9\u4e2d");
+			escaped.append("AC\\n\\\"\\u00e9\u4e2d\\ud83d\\ude00\\ud83d \\\\/");
+		}
+		final String data = "{\"\u00e9\":\"" + plain + "\",\"b\":\"" + escaped + "\"}";
+		final ObjectMapper mapper = new ObjectMapper();
+		final List<byte[]> expected = Arrays.asList(
+				plain.toString().getBytes(utf8),
+				mapper.readValue("\"" + escaped + "\"", String.class).getBytes(utf8));
+		final File f = File.createTempFile("JsonTokenStreamTest", ".json");
+		try {
+			final FileOutputStream fos = new FileOutputStream(f);
+			fos.write(data.getBytes(utf8));
+			fos.close();
+			final ByteBuffer direct = ByteBuffer.allocateDirect(data.getBytes(utf8).length);
+			direct.put(data.getBytes(utf8)).flip();
+			final List<Object> sources = Arrays.asList(data, data.getBytes(utf8),
+					data.getBytes(Charset.forName("UTF-16LE")), f, direct, f);
+			for (int s = 0; s < sources.size(); s++) {
+				final JsonTokenStream jts = new JsonTokenStream(sources.get(s), 100);
+				if (s == sources.size() - 1) {
+					jts.setMappedSegmentSize(1000).setMemoryMapped(true);
+				}
+				final List<String> keywords = new LinkedList<String>();
+				JsonToken t;
+				while ((t = jts.nextToken()) != null) {
+					if (t == JsonToken.VALUE_STRING) {
+						keywords.add(jts.getText());
+					}
+				}
+				jts.close();
+				assertThat("incorrect string count", keywords.size(), is(2));
+				for (int i = 0; i < 2; i++) {
+					final String k = keywords.get(i);
+					final byte[] exp = expected.get(i);
+					assertThat("incorrect large string", jts.isLargeString(k), is(true));
+					assertThat("incorrect length", jts.getLargeStringByteLength(k),
+							is((long) exp.length));
+					final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+					final InputStream is = jts.getLargeStringInputStream(k);
+					final byte[] buf = new byte[7];
+					int read;
+					while ((read = is.read(buf)) > 0) {
+						baos.write(buf, 0, read);
+					}
+					is.close();
+					assertThat("incorrect bytes", Arrays.equals(baos.toByteArray(), exp),
+							is(true));
+					final ByteBuffer bb = jts.getLargeStringBytes(k);
+					final byte[] b = new byte[bb.remaining()];
+					bb.get(b);
+					assertThat("incorrect bytes", Arrays.equals(b, exp), is(true));
+					assertThat("incorrect read only", bb.isReadOnly(), is(true));
+				}
+				if (s == 4) {
+					// a view of the source buffer
+					assertThat("incorrect view", jts.getLargeStringBytes(keywords.get(0))
+							.isDirect(), is(true));
+				}
+			}
+		} finally {
+			f.delete();
+		}
+		try {
+			new JsonTokenStream(data, 100).getLargeStringInputStream("b");
+			fail("expected exception");
+		} catch (IllegalArgumentException e) {
+			assertThat("incorrect exception", e.getMessage(), is("It's not large string"));
+		}
+	}
+	
+	@Test
+	public void buildIndex() throws Exception {
+		final String data = "{\"a b\":[1,\"x]\\\"{,\",{\"k\\\"e\\\\y\" : [[],{}],\"c\":\"\\\\\"}," +
+				"[2,[3,\"\\\\\\\\\"]]],\"d\\u00e9\u4e2d\":{\"e\":{\"f\":[true,null,{}]}},\"g\":\"}]\"}";
+		final JsonNode tree = new ObjectMapper().readTree(data);
+		final File f = File.createTempFile("JsonTokenStreamTest", ".json");
+		try {
+			final FileOutputStream fos = new FileOutputStream(f);
+			fos.write(data.getBytes(utf8));
+			fos.close();
+			for (int depth = 1; depth < 5; depth++) {
+				final List<List<String>> paths = new LinkedList<List<String>>();
+				findContainers(tree, new LinkedList<String>(), depth, paths);
+				final List<JsonTokenStream> sources = new LinkedList<JsonTokenStream>(
+						Arrays.asList(new JsonTokenStream(data.getBytes(utf8)),
+								new JsonTokenStream(ByteBuffer.wrap(data.getBytes(utf8))),
+								new JsonTokenStream(f)));
+				// each segment is scanned as a separate chunk
+				for (int segmentSize = 1; segmentSize < 20; segmentSize++) {
+					sources.add(new JsonTokenStream(f).setMappedSegmentSize(segmentSize)
+							.setMemoryMapped(true));
+				}
+				for (final JsonTokenStream jts: sources) {
+					jts.setIndexDepth(depth).buildIndex(3);
+					assertThat("incorrect index size", jts.getIndexSize(), is(paths.size()));
+					for (final List<String> path: paths) {
+						JsonNode expected = tree;
+						for (final String p: path) {
+							expected = expected.isArray() ?
+									expected.get(Integer.parseInt(p)) : expected.get(p);
+						}
+						checkRoot(jts, path, new ObjectMapper().treeToValue(
+								expected, Object.class));
+					}
+					assertThat("incorrect hits", jts.getIndexHits(), is((long) paths.size()));
+				}
+			}
+		} finally {
+			f.delete();
+		}
+		failBuildIndex(new JsonTokenStream(data.getBytes(utf8)).setIndexDepth(1), 0,
+				new IllegalArgumentException("threads must be at least 1"));
+		failBuildIndex(new JsonTokenStream(data.getBytes(utf8)), 1,
+				new IllegalStateException("The index depth must be set to build the index"));
+		failBuildIndex(new JsonTokenStream(data).setIndexDepth(1), 1,
+				new IllegalStateException(
+						"Only UTF-8 byte array, file and ByteBuffer data sources can be indexed"));
+		failBuildIndex(new JsonTokenStream("{\"a\":[]]}".getBytes(utf8)).setIndexDepth(1), 1,
+				new IOException("Unbalanced JSON at byte offset 7"));
+	}
+	
+	private void findContainers(
+			final JsonNode node,
+			final List<String> path,
+			final int depth,
+			final List<List<String>> paths) {
+		if (!path.isEmpty()) {
+			paths.add(new LinkedList<String>(path));
+		}
+		if (path.size() == depth) {
+			return;
+		}
+		final List<String> keys = node.isArray() ? new LinkedList<String>() :
+				Lists.newArrayList(node.fieldNames());
+		for (int i = 0; i < node.size(); i++) {
+			final String key = node.isArray() ? "" + i : keys.get(i);
+			final JsonNode child = node.isArray() ? node.get(i) : node.get(key);
+			if (child.isContainerNode()) {
+				path.add(key);
+				findContainers(child, path, depth, paths);
+				path.remove(path.size() - 1);
+			}
+		}
+	}
+	
+	@Test
+	public void malformedUTF8() throws Exception {
+		final byte[] data = {'{', '"', 'f', '"', ':', '"', 'a', (byte) 0xff, 'b', '"', '}'};
+		final File f = File.createTempFile("JsonTokenStreamTest", ".json");
+		f.deleteOnExit();
+		Files.write(f.toPath(), data);
+		// UTF-8 byte sources are parsed as bytes, which rejects malformed UTF-8
+		for (final Object source: Arrays.asList(data, f, ByteBuffer.wrap(data))) {
+			final JsonTokenStream jts = new JsonTokenStream(source);
+			try {
+				new ObjectMapper().readTree(jts);
+				fail("expected exception");
+			} catch (JsonParseException got) {
+				assertThat("incorrect message " + got.getMessage(),
+						got.getMessage().startsWith("Invalid UTF-8 start byte 0xff"), is(true));
+			} finally {
+				jts.close();
+			}
+		}
+		// sources parsed from a reader decode malformed UTF-8 to the replacement character
+		final JsonTokenStream jts = new JsonTokenStream(data, 10000);
+		try {
+			final JsonNode node = new ObjectMapper().readTree(jts);
+			assertThat("incorrect value", node.get("f").asText(), is("a\ufffdb"));
+		} finally {
+			jts.close();
+		}
+	}
+	
+	private void failBuildIndex(final JsonTokenStream jts, final int threads, final Exception e) {
+		try {
+			jts.buildIndex(threads);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, e);
+		}
+	}
 }
@@ -0,0 +1,150 @@
+package us.kbase.test.common.service;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+import us.kbase.common.service.RpcAdmissionController;
+import us.kbase.testutils.TestCommon;
+
+public class RpcAdmissionControllerTest {
+
+	private static final Map<String, Integer> NONE = Collections.emptyMap();
+
+	@Test
+	public void globalLimit() throws Exception {
+		final RpcAdmissionController c = new RpcAdmissionController(2, NONE, 0, 0);
+		assertThat("incorrect acquire", c.acquire("S.a"), is(true));
+		assertThat("incorrect acquire", c.acquire("S.b"), is(true));
+		assertThat("incorrect running", c.getRunningCount(), is(2));
+		assertThat("incorrect acquire", c.acquire("S.c"), is(false));
+		assertThat("incorrect rejected", c.getRejectedCount(), is(1L));
+		c.release("S.a");
+		assertThat("incorrect acquire", c.acquire("S.c"), is(true));
+		c.release("S.b");
+		c.release("S.c");
+		assertThat("incorrect running", c.getRunningCount(), is(0));
+	}
+
+	@Test
+	public void methodLimit() throws Exception {
+		final RpcAdmissionController c = new RpcAdmissionController(
+				0, ImmutableMap.of("S.a", 1), 0, 0);
+		assertThat("incorrect acquire", c.acquire("S.a"), is(true));
+		assertThat("incorrect acquire", c.acquire("S.a"), is(false));
+		assertThat("incorrect acquire", c.acquire("S.b"), is(true));
+		assertThat("incorrect acquire", c.acquire("S.b"), is(true));
+		c.release("S.a");
+		assertThat("incorrect acquire", c.acquire("S.a"), is(true));
+		assertThat("incorrect rejected", c.getRejectedCount(), is(1L));
+	}
+
+	@Test
+	public void methodLimitReleasedOnGlobalRejection() throws Exception {
+		final RpcAdmissionController c = new RpcAdmissionController(
+				1, ImmutableMap.of("S.a", 1), 0, 0);
+		assertThat("incorrect acquire", c.acquire("S.b"), is(true));
+		assertThat("incorrect acquire", c.acquire("S.a"), is(false));
+		c.release("S.b");
+		assertThat("incorrect acquire", c.acquire("S.a"), is(true));
+	}
+
+	@Test
+	public void queueTimeout() throws Exception {
+		final RpcAdmissionController c = new RpcAdmissionController(1, NONE, 1, 50);
+		assertThat("incorrect acquire", c.acquire("S.a"), is(true));
+		final long start = System.nanoTime();
+		assertThat("incorrect acquire", c.acquire("S.a"), is(false));
+		assertThat("didn't wait", System.nanoTime() - start >= 40000000L, is(true));
+		assertThat("incorrect queued", c.getQueuedCount(), is(0));
+	}
+
+	@Test
+	public void queueWaitsForRelease() throws Exception {
+		final RpcAdmissionController c = new RpcAdmissionController(1, NONE, 1, 10000);
+		assertThat("incorrect acquire", c.acquire("S.a"), is(true));
+		final CountDownLatch done = new CountDownLatch(1);
+		final AtomicBoolean admitted = new AtomicBoolean();
+		new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					admitted.set(c.acquire("S.a"));
+				} catch (InterruptedException e) {
+					// test will fail
+				}
+				done.countDown();
+			}
+		}).start();
+		while (c.getQueuedCount() == 0) {
+			Thread.sleep(5);
+		}
+		// queue is full
+		assertThat("incorrect acquire", c.acquire("S.b"), is(false));
+		c.release("S.a");
+		done.await();
+		assertThat("incorrect admitted", admitted.get(), is(true));
+		assertThat("incorrect running", c.getRunningCount(), is(1));
+	}
+
+	@Test
+	public void constructFail() throws Exception {
+		failConstruct(-1, NONE, 0, 0,
+				new IllegalArgumentException("globalLimit must be at least 0"));
+		failConstruct(0, null, 0, 0, new NullPointerException("perMethodLimits"));
+		failConstruct(0, ImmutableMap.of("S.a", 0), 0, 0,
+				new IllegalArgumentException("The limit for method S.a must be at least 1"));
+		failConstruct(0, NONE, -1, 0,
+				new IllegalArgumentException("maxQueued must be at least 0"));
+		failConstruct(0, NONE, 0, -1,
+				new IllegalArgumentException("queueTimeoutMS must be at least 0"));
+	}
+
+	private void failConstruct(
+			final int global,
+			final Map<String, Integer> perMethod,
+			final int maxQueued,
+			final long timeout,
+			final Exception expected) {
+		try {
+			new RpcAdmissionController(global, perMethod, maxQueued, timeout);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+
+	@Test
+	public void fromConfig() throws Exception {
+		assertThat("incorrect controller", RpcAdmissionController.fromConfig(
+				ImmutableMap.of("foo", "bar", "rpc-max-queued", "3")), is(nullValue()));
+
+		final RpcAdmissionController c = RpcAdmissionController.fromConfig(ImmutableMap.of(
+				"rpc-max-concurrent", " 3 ",
+				"rpc-max-concurrent.S.a", "1"));
+		assertThat("incorrect acquire", c.acquire("S.a"), is(true));
+		assertThat("incorrect acquire", c.acquire("S.a"), is(false));
+		assertThat("incorrect acquire", c.acquire("S.b"), is(true));
+		assertThat("incorrect acquire", c.acquire("S.b"), is(true));
+		assertThat("incorrect acquire", c.acquire("S.b"), is(false));
+
+		try {
+			RpcAdmissionController.fromConfig(ImmutableMap.of("rpc-max-concurrent", "foo"));
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(
+					"Configuration key rpc-max-concurrent must be an integer, got foo"));
+		}
+	}
+}
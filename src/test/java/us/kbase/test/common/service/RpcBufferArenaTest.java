@@ -0,0 +1,131 @@
+package us.kbase.test.common.service;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import us.kbase.common.service.RpcBufferArena;
+import us.kbase.testutils.TestCommon;
+
+public class RpcBufferArenaTest {
+
+	@Test
+	public void construct() throws Exception {
+		final RpcBufferArena a = new RpcBufferArena(35, 10, 20);
+		assertThat("incorrect cap", a.getPerRequestCap(), is(10));
+		assertThat("incorrect max", a.getMaxBuffers(), is(3));
+		assertThat("incorrect avail", a.getAvailableBuffers(), is(3));
+		assertThat("incorrect timeout", a.getAcquireTimeoutMS(), is(20L));
+
+		final RpcBufferArena a2 = new RpcBufferArena(1, 1, 0);
+		assertThat("incorrect cap", a2.getPerRequestCap(), is(1));
+		assertThat("incorrect max", a2.getMaxBuffers(), is(1));
+		assertThat("incorrect timeout", a2.getAcquireTimeoutMS(), is(0L));
+	}
+
+	@Test
+	public void constructFail() throws Exception {
+		failConstruct(10, 0, 1, new IllegalArgumentException("perRequestCap must be at least 1"));
+		failConstruct(9, 10, 1,
+				new IllegalArgumentException("totalBudget must be at least perRequestCap"));
+		failConstruct(10, 10, -1,
+				new IllegalArgumentException("acquireTimeoutMS must be at least 0"));
+	}
+
+	private void failConstruct(
+			final long budget,
+			final int cap,
+			final long timeout,
+			final Exception expected) {
+		try {
+			new RpcBufferArena(budget, cap, timeout);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+
+	@Test
+	public void acquireAndRelease() throws Exception {
+		final RpcBufferArena a = new RpcBufferArena(20, 10, 10);
+		final ByteBuffer b1 = a.acquire();
+		final ByteBuffer b2 = a.acquire();
+		assertThat("incorrect direct", b1.isDirect(), is(true));
+		assertThat("incorrect capacity", b1.capacity(), is(10));
+		assertThat("incorrect remaining", b2.remaining(), is(10));
+		assertThat("incorrect avail", a.getAvailableBuffers(), is(0));
+
+		assertThat("expected timeout", a.acquire(), is(nullValue()));
+
+		b1.put((byte) 1).put((byte) 2);
+		a.release(b1);
+		assertThat("incorrect avail", a.getAvailableBuffers(), is(1));
+		final ByteBuffer b3 = a.acquire();
+		assertThat("buffer not reused", b3 == b1, is(true));
+		assertThat("buffer not cleared", b3.position(), is(0));
+		assertThat("buffer not cleared", b3.limit(), is(10));
+
+		a.release(b2);
+		a.release(b3);
+		assertThat("incorrect avail", a.getAvailableBuffers(), is(2));
+	}
+
+	@Test
+	public void acquireWaitsForRelease() throws Exception {
+		final RpcBufferArena a = new RpcBufferArena(10, 10, 10000);
+		final ByteBuffer b1 = a.acquire();
+		final Thread t = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+				a.release(b1);
+			}
+		});
+		t.start();
+		final ByteBuffer b2 = a.acquire();
+		assertThat("incorrect buffer", b2 == b1, is(true));
+		t.join();
+	}
+
+	@Test
+	public void releaseFail() throws Exception {
+		final RpcBufferArena a = new RpcBufferArena(10, 10, 10);
+		failRelease(a, null, new NullPointerException("buffer"));
+		final IllegalArgumentException unknown = new IllegalArgumentException(
+				"buffer was not acquired from this arena or was already released");
+		failRelease(a, ByteBuffer.allocate(10), unknown);
+		failRelease(a, ByteBuffer.allocateDirect(9), unknown);
+		failRelease(a, ByteBuffer.allocateDirect(10), unknown);
+
+		final ByteBuffer b1 = a.acquire();
+		failRelease(a, ByteBuffer.allocateDirect(10), unknown);
+		a.release(b1);
+		failRelease(a, b1, unknown);
+		assertThat("incorrect avail", a.getAvailableBuffers(), is(1));
+		final ByteBuffer b2 = a.acquire();
+		assertThat("expected timeout", a.acquire(), is(nullValue()));
+		a.release(b2);
+	}
+
+	private void failRelease(
+			final RpcBufferArena arena,
+			final ByteBuffer buf,
+			final Exception expected) {
+		try {
+			arena.release(buf);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+}
@@ -1,7 +1,11 @@
 package us.kbase.test.common.service;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -12,7 +16,10 @@ import java.util.Map;
 import org.junit.Assert;
 import org.junit.Test;
 
+import us.kbase.common.service.JsonTokenStream;
 import us.kbase.common.service.UObject;
+import us.kbase.common.service.UObjectMeasurement;
+import us.kbase.common.utils.MD5DigestOutputStream;
 
 import com.fasterxml.jackson.annotation.JsonAnyGetter;
 import com.fasterxml.jackson.annotation.JsonAnySetter;
@@ -50,6 +57,138 @@ public class UObjectTest {
 		Assert.assertEquals(json, new UObject(array).toJsonString());
 	}
 	
+	@Test
+	public void testTokenStreamViews() throws Exception {
+		String json = "{\"a\":[1,10000000000,1.5,\"x\",true,null]," +
+				"\"b\":{\"c\":{\"d\":[2]},\"e\":\"y\"}}";
+		JsonTokenStream jts = new JsonTokenStream(json.getBytes("UTF-8"));
+		UObject root = new UObject(jts, null);
+		Assert.assertTrue(root.isMap());
+		Assert.assertFalse(root.isList());
+		Assert.assertFalse(root.isString());
+		Map<String, UObject> map = root.asMap();
+		Assert.assertEquals(Arrays.asList("a", "b"), new ArrayList<String>(map.keySet()));
+		Assert.assertEquals(0, jts.getIndexDepth());
+		Assert.assertEquals(2, jts.getIndexSize());
+		Assert.assertTrue(map.get("a").isList());
+		Assert.assertFalse(map.get("a").isMap());
+		List<UObject> list = map.get("a").asList();
+		Assert.assertEquals(6, list.size());
+		Assert.assertEquals(0, jts.getIndexDepth());
+		Assert.assertTrue(list.get(0).isInteger());
+		Assert.assertFalse(list.get(0).isLong());
+		Assert.assertEquals(1, (int) list.get(0).asScalar());
+		Assert.assertTrue(list.get(1).isLong());
+		Assert.assertEquals(10000000000L, (long) list.get(1).asScalar());
+		Assert.assertTrue(list.get(2).isDouble());
+		Assert.assertEquals(1.5, (double) list.get(2).asScalar(), 0);
+		Assert.assertTrue(list.get(3).isString());
+		Assert.assertEquals("x", list.get(3).asScalar());
+		Assert.assertTrue(list.get(4).isBoolean());
+		Assert.assertEquals(true, list.get(4).asScalar());
+		Assert.assertTrue(list.get(5).isNull());
+		Assert.assertFalse(list.get(5).isMap());
+		Assert.assertNull(list.get(5).asScalar());
+		long hits = jts.getIndexHits();
+		Map<String, UObject> b = map.get("b").asMap();
+		Assert.assertTrue(jts.getIndexHits() > hits);
+		Assert.assertEquals(0, jts.getIndexDepth());
+		// only containers inside the containers that were read are indexed
+		Assert.assertEquals(3, jts.getIndexSize());
+		Assert.assertEquals(Arrays.asList("c", "e"), new ArrayList<String>(b.keySet()));
+		Assert.assertEquals("y", b.get("e").asScalar());
+		try {
+			b.get("c").asScalar();
+			Assert.fail();
+		} catch (IllegalStateException ex) {
+			Assert.assertEquals("Expected a scalar but found START_OBJECT", ex.getMessage());
+		}
+		try {
+			map.get("a").asScalar();
+			Assert.fail();
+		} catch (IllegalStateException ex) {
+			Assert.assertEquals("Expected a scalar but found START_ARRAY", ex.getMessage());
+		}
+		Assert.assertEquals(Arrays.asList(2), b.get("c").asMap().get("d").asClassInstance(List.class));
+		try {
+			map.get("a").asMap();
+			Assert.fail();
+		} catch (IllegalStateException ex) {
+			Assert.assertEquals("Expected START_OBJECT but found START_ARRAY", ex.getMessage());
+		}
+	}
+	
+	@Test
+	public void testMeasure() throws Exception {
+		StringBuilder big = new StringBuilder();
+		for (int i = 0; i < 200; i++)
+			big.append("\\u00e9xyz");
+		String json = "{\"a\":[1,{\"b\":[[]],\"c\":2,\"d\":3}],\"e\":\"" + big + "\"}";
+		byte[] bytes = json.getBytes("UTF-8");
+		File f = File.createTempFile("measure", ".json");
+		f.deleteOnExit();
+		Files.write(f.toPath(), bytes);
+		List<UObject> objs = new ArrayList<UObject>();
+		objs.add(new UObject(UObject.getMapper().readValue(json, Map.class)));
+		objs.add(UObject.fromJsonString(json));
+		objs.add(new UObject(new JsonTokenStream(bytes), null));
+		objs.add(new UObject(new JsonTokenStream(bytes).setTrustedWholeJson(true), null));
+		objs.add(new UObject(new JsonTokenStream(f).setTrustedWholeJson(true), null));
+		objs.add(new UObject(new JsonTokenStream(ByteBuffer.wrap(bytes))
+				.setTrustedWholeJson(true), null));
+		objs.add(new UObject(new JsonTokenStream(json).setTrustedWholeJson(true), null));
+		objs.add(new UObject(new JsonTokenStream(bytes, 100), null));
+		for (UObject obj : objs) {
+			UObjectMeasurement m = obj.measure("SHA-256");
+			checkMeasurement(obj, m, MessageDigest.getInstance("SHA-256"));
+			Assert.assertEquals(5, m.getMaxDepth());
+			Assert.assertEquals(5, m.getKeyCount());
+			Assert.assertEquals(3, m.getMaxKeyCount());
+		}
+		UObjectMeasurement m = null;
+		for (JsonTokenStream jts : Arrays.asList(new JsonTokenStream(bytes),
+				new JsonTokenStream(bytes).setTrustedWholeJson(true))) {
+			UObject sub = new UObject(new UObject(jts, null), "a");
+			m = sub.measure();
+			checkMeasurement(sub, m, null);
+			Assert.assertEquals(4, m.getMaxDepth());
+			Assert.assertEquals(3, m.getKeyCount());
+		}
+		UObject scalar = new UObject(new UObject(new JsonTokenStream(bytes, 100), null), "e");
+		m = scalar.measure();
+		checkMeasurement(scalar, m, null);
+		Assert.assertEquals(0, m.getMaxDepth());
+		Assert.assertEquals(0, m.getKeyCount());
+		try {
+			m.getDigest("SHA-256");
+			Assert.fail();
+		} catch (IllegalArgumentException ex) {
+			Assert.assertEquals("No digest was calculated with algorithm SHA-256",
+					ex.getMessage());
+		}
+		try {
+			new UObject(1).measure("FOO");
+			Assert.fail();
+		} catch (IllegalArgumentException ex) {
+			Assert.assertEquals("Unsupported digest algorithm: FOO", ex.getMessage());
+		}
+	}
+	
+	private static void checkMeasurement(UObject obj, UObjectMeasurement m, MessageDigest other)
+			throws IOException {
+		MD5DigestOutputStream md5 = new MD5DigestOutputStream();
+		obj.write(md5);
+		Assert.assertEquals(md5.getSize(), m.getSize());
+		Assert.assertEquals(obj.getSizeInBytes(), m.getSize());
+		Assert.assertEquals(md5.getMD5(), m.getMD5());
+		if (other != null) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			obj.write(baos);
+			Assert.assertArrayEquals(other.digest(baos.toByteArray()),
+					m.getDigest(other.getAlgorithm()));
+		}
+	}
+	
 	@Test
 	public void testSerialization() throws Exception {
 		IntStruct intStr = new IntStruct();